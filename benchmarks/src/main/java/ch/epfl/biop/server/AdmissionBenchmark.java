@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the {@link ElastixServlet} admission ({@link ElastixServlet#admit}) : the job is looked up
+ * and removed from the ready queue, then the number of simultaneous tasks is checked.
+ *
+ * The ready queue is filled with queueSize jobs which are never admitted. Each benchmark thread owns
+ * one ready job, put back in the ready queue after each admission.
+ *
+ * The number of threads is set by {@link BenchmarkRunner}
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AdmissionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ReadyQueueState {
+
+        @Param({"10", "100", "1000", "10000"})
+        public int queueSize;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            ElastixServlet.maxNumberOfSimultaneousRequests = Integer.MAX_VALUE / 2;
+            synchronized (ElastixJobQueueServlet.queue) {
+                ElastixJobQueueServlet.queue.clear();
+                ElastixJobQueueServlet.queueReadyToBeProcessed.clear();
+                for (int i = 0; i < queueSize; i++) {
+                    ElastixJobQueueServlet.queueReadyToBeProcessed.add(QueueBenchmark.newJob());
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            synchronized (ElastixJobQueueServlet.queue) {
+                ElastixJobQueueServlet.queue.clear();
+                ElastixJobQueueServlet.queueReadyToBeProcessed.clear();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        ElastixJobQueueServlet.WaitingJob job;
+
+        HttpServletRequest request;
+
+        ServletMocks.MockResponse response;
+
+        @Setup(Level.Trial)
+        public void setup(ReadyQueueState readyQueueState) {
+            job = QueueBenchmark.newJob();
+            synchronized (ElastixJobQueueServlet.queue) {
+                ElastixJobQueueServlet.queueReadyToBeProcessed.add(job);
+            }
+            request = ServletMocks.request(Collections.singletonMap("id", Long.toString(job.jobId)));
+            response = ServletMocks.response();
+        }
+    }
+
+    @Benchmark
+    public long admit(ThreadState threadState) {
+        ElastixServlet.numberOfCurrentTask.incrementAndGet();
+        long jobId = ElastixServlet.admit(threadState.request, threadState.response.response);
+        if (jobId != -1) {
+            // Admitted : the task is immediately considered as done and the job is ready again
+            ElastixServlet.numberOfCurrentTask.decrementAndGet();
+            synchronized (ElastixJobQueueServlet.queue) {
+                ElastixJobQueueServlet.queueReadyToBeProcessed.add(threadState.job);
+            }
+        }
+        return jobId;
+    }
+}
@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Realistic job folders for the packaging and transfer benchmarks
+ *
+ * - "result" : output folder of an elastix job, two transform parameter files
+ * - "job_N" : whole job folder as archived by the server, two N x N 8 bits images, a parameter file,
+ * the metadata and the result
+ */
+public class BenchmarkData {
+
+    /**
+     * @param content "result" or "job_N"
+     * @return a new temporary folder with the content
+     * @throws IOException if the folder cannot be written
+     */
+    public static File createFolder(String content) throws IOException {
+        File folder = Files.createTempDirectory("bench_" + content + "_").toFile();
+        if (content.equals("result")) {
+            createResult(folder);
+        } else if (content.startsWith("job_")) {
+            int imageSize = Integer.parseInt(content.substring("job_".length()));
+            File inputs = new File(folder, "input");
+            File outputs = new File(folder, "output");
+            inputs.mkdirs();
+            outputs.mkdirs();
+            LoadGenerator.writeBlobsTiff(new File(inputs, "fixed.tif"), imageSize, 0, 1);
+            LoadGenerator.writeBlobsTiff(new File(inputs, "moving.tif"), imageSize, imageSize / 20, 1);
+            writeText(new File(inputs, "transform_0.txt"), 120, 2);
+            writeText(new File(inputs, "metadata.txt"), 10, 3);
+            createResult(outputs);
+        } else {
+            throw new IllegalArgumentException("Unknown content " + content);
+        }
+        return folder;
+    }
+
+    static void createResult(File folder) throws IOException {
+        writeText(new File(folder, "TransformParameters.0.txt"), 40, 4);
+        writeText(new File(folder, "TransformParameters.1.txt"), 40, 5);
+    }
+
+    /**
+     * Writes elastix like parameter lines
+     */
+    static void writeText(File file, int numberOfLines, long seed) throws IOException {
+        Random random = new Random(seed);
+        try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+            for (int i = 0; i < numberOfLines; i++) {
+                writer.println(String.format(Locale.US, "(Parameter%d %.6f %.6f \"value\")", i, random.nextDouble(), random.nextGaussian()));
+            }
+        }
+    }
+
+    /**
+     * @param size number of bytes
+     * @return bytes which compress like an image : smooth, with some noise
+     */
+    public static byte[] imageLikeBytes(int size) {
+        Random random = new Random(size);
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (128 + 100 * Math.sin(i / 500.0) + random.nextInt(8));
+        }
+        return bytes;
+    }
+
+    public static void delete(File folder) {
+        FileUtils.deleteQuietly(folder);
+    }
+}
@@ -0,0 +1,181 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks of the {@link ElastixJobQueueServlet} transitions, for different queue sizes:
+ * - enqueue : a new job (id = -1) enters the queue
+ * - poll : a job of the queue asks for an update and stays in the queue
+ * - ready : a job of the queue asks for an update and moves to the ready queue
+ *
+ * The queue is filled with queueSize jobs which never ask for updates. Each benchmark thread owns
+ * one job, put back in the queue after each operation so that the queue size stays constant.
+ *
+ * The number of threads is set by {@link BenchmarkRunner}
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueBenchmark {
+
+    /**
+     * Ids of jobs created by the benchmark, far from the ids given by the servlet
+     */
+    final static AtomicLong benchmarkJobIndex = new AtomicLong(1_000_000_000L);
+
+    static ElastixJobQueueServlet.WaitingJob newJob() {
+        ElastixJobQueueServlet.WaitingJob job = new ElastixJobQueueServlet.WaitingJob();
+        job.jobId = benchmarkJobIndex.getAndIncrement();
+        job.enqueueTimeInNs = System.nanoTime();
+        return job;
+    }
+
+    @State(Scope.Benchmark)
+    public static class QueueState {
+
+        @Param({"10", "100", "1000", "10000"})
+        public int queueSize;
+
+        final ElastixJobQueueServlet servlet = new ElastixJobQueueServlet();
+
+        @Setup(Level.Trial)
+        public void setup() {
+            ElastixJobQueueServlet.maxWaitingQueueTimeInS = Integer.MAX_VALUE;
+            ElastixJobQueueServlet.maxDelayBetweenQueueUpdateRequestInS = 10;
+            synchronized (ElastixJobQueueServlet.queue) {
+                ElastixJobQueueServlet.queue.clear();
+                ElastixJobQueueServlet.queueReadyToBeProcessed.clear();
+                for (int i = 0; i < queueSize; i++) {
+                    ElastixJobQueueServlet.queue.add(newJob());
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            synchronized (ElastixJobQueueServlet.queue) {
+                ElastixJobQueueServlet.queue.clear();
+                ElastixJobQueueServlet.queueReadyToBeProcessed.clear();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        ElastixJobQueueServlet.WaitingJob job;
+
+        HttpServletRequest newJobRequest;
+
+        HttpServletRequest jobRequest;
+
+        ServletMocks.MockResponse response;
+
+        @Setup(Level.Trial)
+        public void setup(QueueState queueState) {
+            job = newJob();
+            synchronized (ElastixJobQueueServlet.queue) {
+                ElastixJobQueueServlet.queue.add(job);
+            }
+            newJobRequest = ServletMocks.request(Collections.singletonMap("id", "-1"));
+            jobRequest = ServletMocks.request(Collections.singletonMap("id", Long.toString(job.jobId)));
+            response = ServletMocks.response();
+        }
+    }
+
+    /**
+     * No slot is available : all jobs stay in the queue
+     */
+    static void noSlotAvailable() {
+        ElastixServlet.maxNumberOfSimultaneousRequests = 0;
+    }
+
+    /**
+     * Many slots are available : any job asking for an update becomes ready
+     */
+    static void allSlotsAvailable() {
+        ElastixServlet.maxNumberOfSimultaneousRequests = Integer.MAX_VALUE / 2;
+    }
+
+    @Benchmark
+    public int enqueue(QueueState queueState, ThreadState threadState) throws IOException {
+        noSlotAvailable();
+        queueState.servlet.doPost(threadState.newJobRequest, threadState.response.response);
+        synchronized (ElastixJobQueueServlet.queue) {
+            // Removes the job which has just been created, to keep the queue size constant
+            ElastixJobQueueServlet.queue.removeLast();
+        }
+        return threadState.response.status;
+    }
+
+    @Benchmark
+    public int poll(QueueState queueState, ThreadState threadState) throws IOException {
+        noSlotAvailable();
+        queueState.servlet.doPost(threadState.jobRequest, threadState.response.response);
+        return threadState.response.status;
+    }
+
+    @Benchmark
+    public int ready(QueueState queueState, ThreadState threadState) throws IOException {
+        allSlotsAvailable();
+        queueState.servlet.doPost(threadState.jobRequest, threadState.response.response);
+        synchronized (ElastixJobQueueServlet.queue) {
+            // Puts the job back in the queue for the next operation
+            ElastixJobQueueServlet.queueReadyToBeProcessed.remove(threadState.job);
+            ElastixJobQueueServlet.queue.add(threadState.job);
+        }
+        return threadState.response.status;
+    }
+}
@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import org.apache.commons.io.output.NullWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
+import java.io.ByteArrayInputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Minimal servlet request and response mocks for the benchmarks, built with dynamic proxies:
+ * - the request only answers {@link HttpServletRequest#getParameter(String)} and {@link HttpServletRequest#getPart(String)}
+ * - the response writes its body to a null writer and keeps its status
+ *
+ * All other methods return null, 0 or false
+ */
+public class ServletMocks {
+
+    public static HttpServletRequest request(Map<String, String> parameters) {
+        return request(parameters, Collections.emptyMap());
+    }
+
+    /**
+     * @param parameters request parameters
+     * @param parts content of the multipart parts, by name
+     * @return a multipart request, each part can be read several times
+     */
+    public static HttpServletRequest request(Map<String, String> parameters, Map<String, byte[]> parts) {
+        return (HttpServletRequest) Proxy.newProxyInstance(ServletMocks.class.getClassLoader(),
+                new Class[]{HttpServletRequest.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getParameter":
+                            return parameters.get((String) args[0]);
+                        case "getPart":
+                            byte[] content = parts.get((String) args[0]);
+                            return (content == null) ? null : part((String) args[0], content);
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    static Part part(String name, byte[] content) {
+        return (Part) Proxy.newProxyInstance(ServletMocks.class.getClassLoader(),
+                new Class[]{Part.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getName":
+                            return name;
+                        case "getSubmittedFileName":
+                            return name + ".bin";
+                        case "getSize":
+                            return (long) content.length;
+                        case "getInputStream":
+                            return new ByteArrayInputStream(content);
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    public static MockResponse response() {
+        return new MockResponse();
+    }
+
+    public static class MockResponse {
+
+        public volatile int status = HttpServletResponse.SC_OK;
+
+        final PrintWriter writer = new PrintWriter(new NullWriter());
+
+        public final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(ServletMocks.class.getClassLoader(),
+                new Class[]{HttpServletResponse.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "setStatus":
+                            status = (Integer) args[0];
+                            return null;
+                        case "getStatus":
+                            return status;
+                        case "getWriter":
+                            return writer;
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) return null;
+        if (type == boolean.class) return false;
+        if (type == long.class) return 0L;
+        if (type == int.class) return 0;
+        if (type == char.class) return (char) 0;
+        if (type == short.class) return (short) 0;
+        if (type == byte.class) return (byte) 0;
+        if (type == float.class) return 0f;
+        return 0d;
+    }
+}
@@ -0,0 +1,206 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the file transfers of the servlets
+ *
+ * Response streaming, from a result file to the response output stream (a counting null stream):
+ * - sendByteByByte : one read() and write() per byte, as the servlets do
+ * - sendBuffered : copy with a buffer of the given size
+ * - sendTransferTo : {@link FileChannel#transferTo} to a channel over the output stream
+ * - sendFilesCopy : {@link Files#copy(java.nio.file.Path, java.io.OutputStream)}
+ *
+ * Multipart ingestion, from a mocked request part to a file:
+ * - ingestServletUtils : {@link ServletUtils#copyFileToServer}, as used by the servlets
+ * - ingestBuffered : copy with a buffer of the given size
+ * - ingestTransferFrom : {@link FileChannel#transferFrom} from a channel over the part input stream
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+
+    @Param({"16384", "1048576", "4194304"})
+    public int fileSize;
+
+    File file;
+
+    File uploadFolder;
+
+    File uploadFile;
+
+    HttpServletRequest uploadRequest;
+
+    /**
+     * Only used by the buffered benchmarks
+     */
+    @State(Scope.Benchmark)
+    public static class BufferSettings {
+
+        @Param({"8192", "65536", "262144"})
+        public int bufferSize;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[] content = BenchmarkData.imageLikeBytes(fileSize);
+        file = File.createTempFile("bench_transfer_", ".zip");
+        Files.write(file.toPath(), content);
+        uploadFolder = Files.createTempDirectory("bench_upload_").toFile();
+        uploadFile = new File(uploadFolder, "upload.bin");
+        uploadRequest = ServletMocks.request(Collections.emptyMap(), Collections.singletonMap("file", content));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkData.delete(file);
+        BenchmarkData.delete(uploadFolder);
+    }
+
+    static CountingOutputStream responseStream() {
+        return new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+    }
+
+    @Benchmark
+    public long sendByteByByte() throws IOException {
+        CountingOutputStream out = responseStream();
+        try (FileInputStream fileInputStream = new FileInputStream(file)) {
+            int bytes;
+            while ((bytes = fileInputStream.read()) != -1) {
+                out.write(bytes);
+            }
+        }
+        return out.getByteCount();
+    }
+
+    @Benchmark
+    public long sendBuffered(BufferSettings settings) throws IOException {
+        CountingOutputStream out = responseStream();
+        byte[] buffer = new byte[settings.bufferSize];
+        try (FileInputStream fileInputStream = new FileInputStream(file)) {
+            int length;
+            while ((length = fileInputStream.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+        }
+        return out.getByteCount();
+    }
+
+    @Benchmark
+    public long sendTransferTo() throws IOException {
+        CountingOutputStream out = responseStream();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0, size = channel.size();
+            while (position < size) {
+                position += channel.transferTo(position, size - position, Channels.newChannel(out));
+            }
+        }
+        return out.getByteCount();
+    }
+
+    @Benchmark
+    public long sendFilesCopy() throws IOException {
+        CountingOutputStream out = responseStream();
+        Files.copy(file.toPath(), out);
+        return out.getByteCount();
+    }
+
+    @Benchmark
+    public String ingestServletUtils() throws IOException, ServletException {
+        return ServletUtils.copyFileToServer("benchmark", 0, uploadFolder.getAbsolutePath() + File.separator, uploadRequest, "file", "upload");
+    }
+
+    @Benchmark
+    public long ingestBuffered(BufferSettings settings) throws IOException, ServletException {
+        byte[] buffer = new byte[settings.bufferSize];
+        long total = 0;
+        try (InputStream in = uploadRequest.getPart("file").getInputStream();
+             FileOutputStream out = new FileOutputStream(uploadFile)) {
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+                total += length;
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long ingestTransferFrom() throws IOException, ServletException {
+        long size = uploadRequest.getPart("file").getSize();
+        try (InputStream in = uploadRequest.getPart("file").getInputStream();
+             FileChannel channel = FileChannel.open(uploadFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            while (position < size) {
+                long transferred = channel.transferFrom(Channels.newChannel(in), position, size - position);
+                if (transferred <= 0) break;
+                position += transferred;
+            }
+            return position;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Servlet administrating the running server, see {@link ServerAdmin}. It can only be accessed from the server
+ * machine (loopback address)
+ *
+ * GET http://localhost/admin/config returns the json configuration of the server
+ * POST http://localhost/admin/config with a json body, like { "maxNumberOfSimultaneousRequests": 8 }, applies these
+ * settings : 200 with the new configuration, 400 if a setting is invalid, 409 if a setting needs a restart (nothing
+ * is applied in both cases)
+ *
+ * POST http://localhost/admin/drain stops accepting new jobs
+ * GET http://localhost/admin/drain returns the progress of the drain, see {@link ServerAdmin.DrainState}
+ * POST http://localhost/admin/resume accepts new jobs again
+ *
+ */
+
+public class AdminServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (JobsServlet.isNotLocal(request, response)) return;
+        String pathInfo = request.getPathInfo();
+        if ("/config".equals(pathInfo)) {
+            writeJson(response, HttpServletResponse.SC_OK, ServerAdmin.getConfiguration());
+        } else if ("/drain".equals(pathInfo)) {
+            writeJson(response, HttpServletResponse.SC_OK, ServerAdmin.getDrainState());
+        } else {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (JobsServlet.isNotLocal(request, response)) return;
+        String pathInfo = request.getPathInfo();
+        if ("/config".equals(pathInfo)) {
+            try {
+                JsonObject settings = new JsonParser().parse(request.getReader()).getAsJsonObject();
+                writeJson(response, HttpServletResponse.SC_OK, ServerAdmin.reconfigure(settings));
+            } catch (JsonParseException | IllegalStateException | IllegalArgumentException e) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().println(e.getMessage());
+            } catch (ServerAdmin.RestartRequiredException e) {
+                writeJson(response, HttpServletResponse.SC_CONFLICT, e.settings);
+            }
+        } else if ("/drain".equals(pathInfo)) {
+            ServerAdmin.drain();
+            writeJson(response, HttpServletResponse.SC_OK, ServerAdmin.getDrainState());
+        } else if ("/resume".equals(pathInfo)) {
+            ServerAdmin.resume();
+            writeJson(response, HttpServletResponse.SC_OK, ServerAdmin.getDrainState());
+        } else {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    static void writeJson(HttpServletResponse response, int status, Object o) throws IOException {
+        response.setContentType("application/json");
+        response.setStatus(status);
+        response.getWriter().println(new Gson().toJson(o));
+    }
+}
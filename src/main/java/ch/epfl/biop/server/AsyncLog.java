@@ -0,0 +1,263 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous structured logging, used in the request path instead of System.out
+ *
+ * Logging a message only builds a record and puts it into a bounded lock-free ring buffer: a request thread
+ * never waits for the console. A single background thread drains the buffer and writes the records, as
+ * json lines (default) or as plain text, to {@link AsyncLog#output}.
+ *
+ * If the buffer is full, the record is dropped and counted ({@link AsyncLog#getNumberOfDroppedRecords()}):
+ * logging never blocks.
+ *
+ * Each record carries the job id set for the current thread with {@link AsyncLog#setJobId(long)}
+ *
+ * Existing Consumer&lt;String&gt; log fields of the servlets and of the remote tasks can use {@link AsyncLog#consumer(Class, Level)}
+ *
+ */
+public class AsyncLog {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, records below this level are ignored
+     */
+    public static volatile Level level = Level.INFO;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, json lines if true, plain text otherwise
+     */
+    public static volatile boolean json = true;
+
+    /**
+     * Where records are written, only accessed by the writer thread
+     */
+    public static volatile PrintStream output = System.out;
+
+    final static int capacity = 1 << 14; // Should be a power of 2
+
+    final static int mask = capacity - 1;
+
+    final static AtomicReferenceArray<Record> buffer = new AtomicReferenceArray<>(capacity);
+
+    /**
+     * Sequence of the next record to be written by producers
+     */
+    final static AtomicLong writeSequence = new AtomicLong();
+
+    /**
+     * Sequence of the next record to be read by the writer thread
+     */
+    static volatile long readSequence = 0;
+
+    final static LongAdder dropped = new LongAdder();
+
+    final static ThreadLocal<Long> jobId = new ThreadLocal<>();
+
+    static final Thread writer;
+
+    static {
+        writer = new Thread(AsyncLog::drain, "async-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Sets the job id added to all records logged by the current thread
+     * @param id of the job processed by the current thread
+     */
+    public static void setJobId(long id) {
+        jobId.set(id);
+    }
+
+    /**
+     * Removes the job id of the current thread
+     */
+    public static void clearJobId() {
+        jobId.remove();
+    }
+
+    /**
+     * @param source class which logs
+     * @param level of the records
+     * @return a consumer logging each message it accepts
+     */
+    public static Consumer<String> consumer(Class<?> source, Level level) {
+        String logger = source.getSimpleName();
+        return message -> log(level, logger, message);
+    }
+
+    public static void debug(Class<?> source, String message) {
+        log(Level.DEBUG, source.getSimpleName(), message);
+    }
+
+    public static void info(Class<?> source, String message) {
+        log(Level.INFO, source.getSimpleName(), message);
+    }
+
+    public static void warn(Class<?> source, String message) {
+        log(Level.WARN, source.getSimpleName(), message);
+    }
+
+    public static void error(Class<?> source, String message) {
+        log(Level.ERROR, source.getSimpleName(), message);
+    }
+
+    /**
+     * Puts a record in the ring buffer, or drops it if the buffer is full. Never blocks.
+     * @param recordLevel level of the record
+     * @param logger name of the logger
+     * @param message message to log
+     */
+    public static void log(Level recordLevel, String logger, String message) {
+        if (recordLevel.compareTo(level) < 0) return;
+
+        Long id = jobId.get();
+        Record record = new Record(System.currentTimeMillis(), recordLevel, logger,
+                Thread.currentThread().getName(), (id == null) ? -1 : id, message);
+
+        while (true) {
+            long sequence = writeSequence.get();
+            if (sequence - readSequence >= capacity) {
+                dropped.increment();
+                return;
+            }
+            if (writeSequence.compareAndSet(sequence, sequence + 1)) {
+                // The slot is free : the writer thread has already read it
+                buffer.set((int) (sequence & mask), record);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the number of records dropped because the buffer was full
+     */
+    public static long getNumberOfDroppedRecords() {
+        return dropped.sum();
+    }
+
+    static void drain() {
+        Writer out = null;
+        PrintStream currentOutput = null;
+        int idleLoops = 0;
+        while (true) {
+            try {
+                if (currentOutput != output) {
+                    currentOutput = output;
+                    out = new OutputStreamWriter(currentOutput, StandardCharsets.UTF_8);
+                }
+                long sequence = readSequence;
+                int index = (int) (sequence & mask);
+                Record record = buffer.get(index);
+                if (record == null) {
+                    if (writeSequence.get() > sequence) {
+                        // A producer claimed the slot and is about to fill it
+                        Thread.yield();
+                        continue;
+                    }
+                    out.flush();
+                    idleLoops++;
+                    LockSupport.parkNanos(idleLoops < 100 ? 1_000_000L : 10_000_000L);
+                    continue;
+                }
+                idleLoops = 0;
+                buffer.set(index, null);
+                readSequence = sequence + 1;
+                out.write(json ? record.toJson() : record.toText());
+                out.write('\n');
+            } catch (Throwable t) {
+                // Logging should never stop
+                LockSupport.parkNanos(10_000_000L);
+            }
+        }
+    }
+
+    static class Record {
+
+        final long epochMs;
+        final Level level;
+        final String logger;
+        final String thread;
+        final long jobId;
+        final String message;
+
+        Record(long epochMs, Level level, String logger, String thread, long jobId, String message) {
+            this.epochMs = epochMs;
+            this.level = level;
+            this.logger = logger;
+            this.thread = thread;
+            this.jobId = jobId;
+            this.message = message;
+        }
+
+        String toJson() throws IOException {
+            StringWriter sw = new StringWriter();
+            JsonWriter writer = new JsonWriter(sw);
+            writer.beginObject();
+            writer.name("time").value(Instant.ofEpochMilli(epochMs).toString());
+            writer.name("level").value(level.name());
+            writer.name("logger").value(logger);
+            writer.name("thread").value(thread);
+            if (jobId != -1) writer.name("jobId").value(jobId);
+            writer.name("message").value(message);
+            writer.endObject();
+            writer.close();
+            return sw.toString();
+        }
+
+        String toText() {
+            return Instant.ofEpochMilli(epochMs) + " " + level + " [" + thread + "] " + logger
+                    + ((jobId != -1) ? " job=" + jobId : "") + " : " + message;
+        }
+    }
+}
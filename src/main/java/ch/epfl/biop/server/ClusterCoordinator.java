@@ -0,0 +1,496 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import ch.epfl.biop.wrappers.elastix.ElastixTask;
+import ch.epfl.biop.wrappers.elastix.ForwardingElastixTask;
+import ch.epfl.biop.wrappers.elastix.RemoteElastixTask;
+import ch.epfl.biop.wrappers.transformix.ForwardingTransformixTask;
+import ch.epfl.biop.wrappers.transformix.TransformixTask;
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Coordinator of a cluster of registration servers, used when {@link RegistrationServerConfig#executionBackend} is "cluster"
+ *
+ * The coordinator keeps the public api (/elastix/startjob, /elastix, /transformix), the queue, the uploads,
+ * the responses and the archive. Only the elastix and transformix runs are sent to the workers : the tasks
+ * of the coordinator ({@link ClusterCoordinator#BACKEND}) put their input files in a dispatch queue and wait for the result.
+ *
+ * Workers ({@link ClusterWorker}) pull the jobs: each worker has one pull request per free slot
+ * (POST /cluster/pull, answered as soon as a job is pending or after {@link ClusterCoordinator#pullTimeoutInMs}),
+ * runs the job with its own backend, and posts the zipped output folder with the measured duration (POST /cluster/result).
+ * A fast worker simply comes back more often: heterogeneous machines are balanced without any configuration.
+ *
+ * The number of elastix jobs the coordinator admits ({@link ElastixServlet#maxNumberOfSimultaneousRequests}) is the number
+ * of slots of the live workers, and the queue waiting time estimate ({@link ElastixJobQueueServlet#estimatedElastixJobProcessingTimeInMs})
+ * follows the durations measured by the workers. Adding a worker thus adds throughput.
+ *
+ * A job whose worker does not answer within {@link ClusterCoordinator#leaseInMs} is given to another worker,
+ * at most {@link ClusterCoordinator#maxAttempts} times.
+ *
+ * Elastix jobs are routed according to their fixed image ({@link JobRouter}), workers which already have it
+ * in their cache do not receive it again.
+ */
+public class ClusterCoordinator {
+
+    public static Consumer<String> log = AsyncLog.consumer(ClusterCoordinator.class, AsyncLog.Level.INFO);
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, max duration of a pull request without job
+     */
+    public static int pullTimeoutInMs = 20000;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, max duration of a job on a worker, and max waiting time
+     * for a worker, before the job fails
+     */
+    public static int leaseInMs = 50000;
+
+    /**
+     * Number of workers a job is given to before failing
+     */
+    public static int maxAttempts = 3;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, shared secret sent by the workers, required by a coordinator
+     */
+    public static String token = "";
+
+    /**
+     * Upper bound of the number of slots of all workers, used to size the thread pool of the coordinator
+     */
+    public static int maxNumberOfWorkerSlots = 256;
+
+    final static String TASK_FILE = "task.json";
+
+    final static LinkedBlockingDeque<DispatchedJob> pending = new LinkedBlockingDeque<>();
+
+    final static Map<Long, DispatchedJob> jobs = new ConcurrentHashMap<>();
+
+    final static Map<String, Worker> workers = new ConcurrentHashMap<>();
+
+    final static JobIdGenerator jobIds = new JobIdGenerator();
+
+    final static JobRouter router = new JobRouter();
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, routes the elastix jobs according to their fixed image
+     */
+    public static boolean affinity = true;
+
+    final static ExecutionBackend BACKEND = new ExecutionBackend() {
+        @Override
+        public ElastixTask newElastixTask() {
+            return new ClusterElastixTask();
+        }
+
+        @Override
+        public TransformixTask newTransformixTask() {
+            return new ClusterTransformixTask();
+        }
+    };
+
+    /**
+     * Description of a job sent to a worker, as task.json in the zip of the input files
+     */
+    public static class TaskDescription {
+        public long jobId;
+        public String task;
+
+        // Entry names of the input files in the zip
+        public String fixedImage;
+        public String fixedImageKey; // content key, null if the job is not routed by fixed image
+        public boolean fixedImageCached; // true if the fixed image is not in the zip because the worker has it
+        public String movingImage;
+        public String initialTransform;
+        public List<String> parameterFiles = new ArrayList<>();
+        public String points;
+        public String transform;
+
+        /**
+         * Paths of the files on the coordinator, the paths written by the worker in the result files are replaced by these ones
+         */
+        public Map<String, String> coordinatorPaths = new LinkedHashMap<>();
+        public String coordinatorOutputFolder;
+    }
+
+    /**
+     * A job waiting for a worker or being processed by one
+     */
+    static class DispatchedJob {
+        final TaskDescription description = new TaskDescription();
+        final Map<String, File> inputs = new LinkedHashMap<>();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final long dispatchTimeInMs = System.currentTimeMillis();
+        long queueTimeInMs;
+        boolean sendFixedImage; // set when the worker did not find the fixed image in its cache
+        File outputFolder;
+        volatile String worker;
+        volatile long leaseEndInMs;
+        int attempts;
+
+        String addInput(String prefix, String path) {
+            File file = new File(path);
+            String entry = prefix + "_" + file.getName();
+            inputs.put(entry, file);
+            description.coordinatorPaths.put(entry, file.getAbsolutePath());
+            return entry;
+        }
+    }
+
+    /**
+     * A worker, as seen by the coordinator
+     */
+    public static class Worker {
+        public String name;
+        public int slots;
+        public volatile long lastSeenEpochMs;
+        public long numberOfJobs;
+        public double meanDurationInMs;
+        final transient Set<Long> running = ConcurrentHashMap.newKeySet();
+        transient volatile Set<String> cachedKeys = Collections.emptySet();
+
+        boolean isAlive(long now) {
+            return (!running.isEmpty()) || (now - lastSeenEpochMs < 2L * pullTimeoutInMs);
+        }
+    }
+
+    /**
+     * Appends configuration
+     * @param config provided configuration
+     */
+    public static void setConfiguration(RegistrationServerConfig config) {
+        if (config.clusterToken.isEmpty()) {
+            // Anyone reaching the coordinator could pull the input images of the users, or send forged results
+            throw new IllegalArgumentException("A cluster coordinator needs a clusterToken, shared with its workers");
+        }
+        pullTimeoutInMs = config.clusterPullTimeoutInMs;
+        leaseInMs = config.requestTimeOutInMs;
+        token = config.clusterToken;
+        affinity = config.clusterAffinity;
+        JobRouter.loadFactor = config.clusterAffinityLoadFactor;
+        JobRouter.spillDelayInMs = config.clusterAffinitySpillDelayInMs;
+    }
+
+    static class ClusterElastixTask extends ForwardingElastixTask {
+        @Override
+        protected void run(String fixedImagePath, String movingImagePath, String initialTransformPath, List<String> parameterFilePaths, String outputFolder) throws Exception {
+            DispatchedJob job = new DispatchedJob();
+            job.description.task = ServerMetrics.ELASTIX;
+            job.description.fixedImage = job.addInput("fixed", fixedImagePath);
+            if (affinity) job.description.fixedImageKey = JobRouter.key(new File(fixedImagePath));
+            job.description.movingImage = job.addInput("moving", movingImagePath);
+            if (initialTransformPath != null) {
+                job.description.initialTransform = job.addInput("initial", initialTransformPath);
+            }
+            for (int i = 0; i < parameterFilePaths.size(); i++) {
+                job.description.parameterFiles.add(job.addInput("parameters_" + i, parameterFilePaths.get(i)));
+            }
+            dispatch(job, outputFolder);
+        }
+    }
+
+    static class ClusterTransformixTask extends ForwardingTransformixTask {
+        @Override
+        protected void run(String pointsPath, String transformPath, String outputFolder) throws Exception {
+            DispatchedJob job = new DispatchedJob();
+            job.description.task = ServerMetrics.TRANSFORMIX;
+            job.description.points = job.addInput("points", pointsPath);
+            job.description.transform = job.addInput("transform", transformPath);
+            dispatch(job, outputFolder);
+        }
+    }
+
+    /**
+     * Puts a job in the dispatch queue and waits for its result
+     */
+    static void dispatch(DispatchedJob job, String outputFolder) throws Exception {
+        job.description.jobId = jobIds.next();
+        job.outputFolder = new File(outputFolder);
+        job.description.coordinatorOutputFolder = job.outputFolder.getAbsolutePath() + File.separator;
+        jobs.put(job.description.jobId, job);
+        enqueue(job, false);
+        try {
+            while (true) {
+                try {
+                    job.done.get(1, TimeUnit.SECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    checkLease(job);
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        } finally {
+            jobs.remove(job.description.jobId);
+            synchronized (ClusterCoordinator.class) {
+                pending.remove(job);
+                release(job);
+            }
+        }
+    }
+
+    /**
+     * Puts a job in the pending jobs and wakes up the waiting pull requests
+     * @param first true for a job which was already given to a worker, it is given again before the others
+     */
+    static synchronized void enqueue(DispatchedJob job, boolean first) {
+        job.queueTimeInMs = System.currentTimeMillis();
+        if (first) {
+            pending.addFirst(job);
+        } else {
+            pending.addLast(job);
+        }
+        ClusterCoordinator.class.notifyAll();
+    }
+
+    /**
+     * Gives a job to another worker if its worker did not answer in time, fails it if no worker took it in time
+     */
+    static synchronized void checkLease(DispatchedJob job) {
+        long now = System.currentTimeMillis();
+        if ((job.worker == null) && (now - job.dispatchTimeInMs > (long) leaseInMs * maxAttempts)) {
+            job.done.completeExceptionally(new IOException("No cluster worker took the job " + job.description.jobId));
+        } else if ((job.worker != null) && (now > job.leaseEndInMs)) {
+            log.accept("Worker " + job.worker + " did not answer for job " + job.description.jobId);
+            release(job);
+            if (job.attempts >= maxAttempts) {
+                job.done.completeExceptionally(new IOException("Job " + job.description.jobId + " failed on " + job.attempts + " workers"));
+            } else {
+                metricsOf(job).requeued.increment();
+                enqueue(job, true);
+            }
+        }
+    }
+
+    static synchronized void release(DispatchedJob job) {
+        if (job.worker != null) {
+            Worker worker = workers.get(job.worker);
+            if (worker != null) worker.running.remove(job.description.jobId);
+            job.worker = null;
+        }
+    }
+
+    static ServerMetrics.TaskMetrics metricsOf(DispatchedJob job) {
+        return job.description.task.equals(ServerMetrics.ELASTIX) ? ServerMetrics.elastix : ServerMetrics.transformix;
+    }
+
+    /**
+     * Waits for a pending job and gives it to a worker
+     * @param workerName name of the worker
+     * @param slots total number of slots of the worker
+     * @param cachedKeys keys of the fixed images in the cache of the worker
+     * @return the job, or null if no job is pending for this worker within {@link ClusterCoordinator#pullTimeoutInMs}
+     * @throws InterruptedException if the request thread is interrupted
+     */
+    static DispatchedJob pull(String workerName, int slots, Set<String> cachedKeys) throws InterruptedException {
+        Worker worker = workers.computeIfAbsent(workerName, name -> {
+            log.accept("New cluster worker " + name + " with " + slots + " slots");
+            Worker w = new Worker();
+            w.name = name;
+            return w;
+        });
+        worker.slots = slots;
+        worker.lastSeenEpochMs = System.currentTimeMillis();
+        worker.cachedKeys = cachedKeys;
+        updateCapacity();
+        long end = System.currentTimeMillis() + pullTimeoutInMs;
+        synchronized (ClusterCoordinator.class) {
+            while (true) {
+                long now = System.currentTimeMillis();
+                long aliveTime = now;
+                router.update(workers.values().stream().filter(w -> w.isAlive(aliveTime)).collect(Collectors.toList()));
+                long nextSpillInMs = Long.MAX_VALUE;
+                for (DispatchedJob job : pending) {
+                    if (job.done.isDone()) continue;
+                    Worker target = router.target(job);
+                    boolean spill = (target != null) && (target != worker) && (now - job.queueTimeInMs > JobRouter.spillDelayInMs);
+                    if ((target == null) || (target == worker) || spill) {
+                        pending.remove(job);
+                        assign(job, worker);
+                        if (spill) metricsOf(job).spilled.increment();
+                        return job;
+                    }
+                    nextSpillInMs = Math.min(nextSpillInMs, job.queueTimeInMs + JobRouter.spillDelayInMs - now);
+                }
+                long waitInMs = Math.min(end - now, nextSpillInMs);
+                if (end - now <= 0) return null;
+                ClusterCoordinator.class.wait(Math.max(1, waitInMs));
+            }
+        }
+    }
+
+    static void assign(DispatchedJob job, Worker worker) {
+        job.worker = worker.name;
+        job.leaseEndInMs = System.currentTimeMillis() + leaseInMs;
+        job.attempts++;
+        worker.running.add(job.description.jobId);
+        ServerMetrics.TaskMetrics metrics = metricsOf(job);
+        metrics.dispatched.increment();
+        if (job.description.fixedImageKey != null) {
+            job.description.fixedImageCached = (!job.sendFixedImage) && worker.cachedKeys.contains(job.description.fixedImageKey);
+            if (job.description.fixedImageCached) metrics.cacheHits.increment();
+        }
+    }
+
+    /**
+     * Writes the zip sent to a worker : task.json followed by the input files
+     */
+    static void writeJob(DispatchedJob job, OutputStream out) throws IOException {
+        // The description is only changed by assign, before the job is written
+        ZipOutputStream zip = new ZipOutputStream(out);
+        zip.setLevel(ZipPackager.responseLevel);
+        zip.putNextEntry(new ZipEntry(TASK_FILE));
+        zip.write(new Gson().toJson(job.description).getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+        for (Map.Entry<String, File> input : job.inputs.entrySet()) {
+            if (job.description.fixedImageCached && input.getKey().equals(job.description.fixedImage)) continue;
+            zip.putNextEntry(new ZipEntry(input.getKey()));
+            Files.copy(input.getValue().toPath(), zip);
+            zip.closeEntry();
+        }
+        zip.finish();
+    }
+
+    /**
+     * Gives a job back to the queue when it could not be sent to its worker
+     */
+    static synchronized void requeue(DispatchedJob job) {
+        release(job);
+        if (!job.done.isDone()) enqueue(job, true);
+    }
+
+    /**
+     * Receives the result of a job
+     * @param jobId id of the dispatched job
+     * @param workerName worker sending the result
+     * @param durationInMs duration of the run measured by the worker
+     * @param error error message of the worker, null if the job succeeded
+     * @param cacheMiss true if the worker did not find the fixed image in its cache, the job is sent again with it
+     * @param zippedOutput zip of the output folder, read only if the job succeeded
+     * @return false if the job is unknown, or has been given to another worker
+     * @throws IOException if the result cannot be unzipped
+     */
+    static boolean result(long jobId, String workerName, long durationInMs, String error, boolean cacheMiss, InputStream zippedOutput) throws IOException {
+        DispatchedJob job = jobs.get(jobId);
+        Worker worker = workers.get(workerName);
+        if (worker != null) worker.lastSeenEpochMs = System.currentTimeMillis();
+        if (job == null) return false;
+        synchronized (ClusterCoordinator.class) {
+            // Checked with the lock : checkLease may give the job to another worker meanwhile
+            if ((!workerName.equals(job.worker)) || job.done.isDone()) return false;
+            if (cacheMiss) {
+                job.sendFixedImage = true;
+                job.attempts--;
+                requeue(job);
+                return true;
+            }
+            if (error != null) {
+                release(job);
+                job.done.completeExceptionally(new IOException("Job " + jobId + " failed on worker " + workerName + " : " + error));
+                return true;
+            }
+            // The job stays with this worker while its result is received
+            job.leaseEndInMs = Long.MAX_VALUE;
+        }
+        try {
+            RemoteElastixTask.unzip(zippedOutput, job.outputFolder);
+        } catch (IOException e) {
+            requeue(job);
+            throw e;
+        }
+        if (worker != null) {
+            synchronized (worker) {
+                worker.numberOfJobs++;
+                worker.meanDurationInMs += (durationInMs - worker.meanDurationInMs) / worker.numberOfJobs;
+            }
+        }
+        if (job.description.task.equals(ServerMetrics.ELASTIX)) {
+            // The queue estimate follows the measured durations (exponential moving average)
+            ElastixJobQueueServlet.estimatedElastixJobProcessingTimeInMs =
+                    (int) (0.9 * ElastixJobQueueServlet.estimatedElastixJobProcessingTimeInMs + 0.1 * durationInMs);
+        }
+        release(job);
+        job.done.complete(null);
+        updateCapacity();
+        return true;
+    }
+
+    /**
+     * Sets the max number of elastix jobs processed at the same time to the number of slots of the live workers
+     */
+    static void updateCapacity() {
+        if (ExecutionBackends.backend != BACKEND) return;
+        ElastixServlet.maxNumberOfSimultaneousRequests = Math.min(getNumberOfSlots(), maxNumberOfWorkerSlots);
+    }
+
+    /**
+     * @return the number of slots of the live workers
+     */
+    public static int getNumberOfSlots() {
+        long now = System.currentTimeMillis();
+        return workers.values().stream().filter(w -> w.isAlive(now)).mapToInt(w -> w.slots).sum();
+    }
+
+    /**
+     * @return the number of live workers
+     */
+    public static int getNumberOfWorkers() {
+        long now = System.currentTimeMillis();
+        return (int) workers.values().stream().filter(w -> w.isAlive(now)).count();
+    }
+}
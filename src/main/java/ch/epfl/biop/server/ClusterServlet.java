@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import com.google.gson.Gson;
+import org.apache.commons.io.IOUtils;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Servlet of the cluster coordinator, used by the workers, see {@link ClusterCoordinator} and {@link ClusterWorker}
+ *
+ * POST http://servername/cluster/pull?worker=name&slots=4
+ *      waits for a job, returns 204 if there is none, or the zip of the job input files with the header Job-Id
+ *      the header Cached-Keys lists the keys of the fixed images the worker has, see {@link JobRouter}
+ * POST http://servername/cluster/result?job=id&worker=name&durationMs=1234
+ *      body : zip of the output folder, or the error message with the parameter error=true
+ *      cacheMiss=true if the worker did not have the fixed image any more, the job is then sent again with it
+ * GET http://servername/cluster
+ *      returns the json state of the workers
+ *
+ * Requests without the Cluster-Token header of {@link ClusterCoordinator#token} are forbidden. A coordinator and its
+ * workers cannot start without a token; on other servers, /cluster can only be accessed from the server machine.
+ */
+public class ClusterServlet extends HttpServlet {
+
+    final public static String TOKEN_HEADER = "Cluster-Token";
+
+    final public static String JOB_ID_HEADER = "Job-Id";
+
+    final public static String CACHED_KEYS_HEADER = "Cached-Keys";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (isForbidden(request, response)) return;
+        ClusterState state = new ClusterState();
+        state.numberOfSlots = ClusterCoordinator.getNumberOfSlots();
+        state.numberOfPendingJobs = ClusterCoordinator.pending.size();
+        state.numberOfDispatchedJobs = ClusterCoordinator.jobs.size();
+        state.workers = new ArrayList<>(ClusterCoordinator.workers.values());
+        long dispatched = ServerMetrics.elastix.dispatched.sum();
+        state.fixedImageCacheHitRate = (dispatched == 0) ? 0 : (double) ServerMetrics.elastix.cacheHits.sum() / dispatched;
+        response.setContentType("application/json");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(new Gson().toJson(state));
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (isForbidden(request, response)) return;
+        if (ExecutionBackends.backend != ClusterCoordinator.BACKEND) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND); // Not a coordinator
+            return;
+        }
+        String worker = request.getParameter("worker");
+        if (worker == null) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        try {
+            if ("/pull".equals(request.getPathInfo())) {
+                String cachedKeys = request.getHeader(CACHED_KEYS_HEADER);
+                pull(worker, Integer.parseInt(request.getParameter("slots")),
+                        ((cachedKeys == null) || cachedKeys.isEmpty()) ? Collections.emptySet() : new HashSet<>(Arrays.asList(cachedKeys.split(","))),
+                        response);
+            } else if ("/result".equals(request.getPathInfo())) {
+                String error = null;
+                if ("true".equals(request.getParameter("error"))) {
+                    error = IOUtils.toString(request.getInputStream(), StandardCharsets.UTF_8);
+                }
+                boolean accepted = ClusterCoordinator.result(Long.parseLong(request.getParameter("job")), worker,
+                        Long.parseLong(request.getParameter("durationMs")), error, "true".equals(request.getParameter("cacheMiss")), request.getInputStream());
+                response.setStatus(accepted ? HttpServletResponse.SC_OK : HttpServletResponse.SC_GONE);
+            } else {
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            }
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        }
+    }
+
+    static void pull(String worker, int slots, Set<String> cachedKeys, HttpServletResponse response) throws IOException {
+        ClusterCoordinator.DispatchedJob job;
+        try {
+            job = ClusterCoordinator.pull(worker, slots, cachedKeys);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        if (job == null) {
+            response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            return;
+        }
+        try {
+            response.setContentType("application/zip");
+            response.addHeader(JOB_ID_HEADER, Long.toString(job.description.jobId));
+            response.setStatus(HttpServletResponse.SC_OK);
+            ClusterCoordinator.writeJob(job, response.getOutputStream());
+        } catch (IOException e) {
+            ClusterCoordinator.log.accept("Job " + job.description.jobId + " could not be sent to worker " + worker + " : " + e.getMessage());
+            ClusterCoordinator.requeue(job);
+            throw e;
+        }
+    }
+
+    static boolean isForbidden(HttpServletRequest request, HttpServletResponse response) {
+        if (ClusterCoordinator.token.isEmpty()) return JobsServlet.isNotLocal(request, response);
+        String token = request.getHeader(TOKEN_HEADER);
+        if ((token != null) && MessageDigest.isEqual(ClusterCoordinator.token.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) return false;
+        response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+        return true;
+    }
+
+    public static class ClusterState {
+        int numberOfSlots;
+        int numberOfPendingJobs;
+        int numberOfDispatchedJobs;
+        double fixedImageCacheHitRate;
+        Collection<ClusterCoordinator.Worker> workers;
+    }
+}
@@ -0,0 +1,367 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import ch.epfl.biop.wrappers.RemoteTaskClient;
+import ch.epfl.biop.wrappers.VirtualThreads;
+import ch.epfl.biop.wrappers.elastix.ElastixTask;
+import ch.epfl.biop.wrappers.elastix.ElastixTaskSettings;
+import ch.epfl.biop.wrappers.elastix.RemoteElastixTask;
+import ch.epfl.biop.wrappers.transformix.TransformixTask;
+import ch.epfl.biop.wrappers.transformix.TransformixTaskSettings;
+import com.google.gson.Gson;
+import org.apache.http.HttpException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Worker of a cluster of registration servers, started when {@link RegistrationServerConfig#coordinatorUrl} is set
+ *
+ * The worker runs {@link RegistrationServerConfig#maxNumberOfSimultaneousRequests} pull threads. Each thread asks the coordinator
+ * for a job (long polling, see {@link ClusterServlet}), unzips the input files in the worker folder, runs the job with
+ * the backend of this server ({@link ExecutionBackends#backend}), and posts the zipped output folder with the measured duration.
+ *
+ * The last fixed images received are kept in a cache ({@link ClusterWorker#fixedImageCacheSize}), their keys are sent with
+ * each pull request so that the coordinator does not send them again, see {@link JobRouter}.
+ *
+ * Paths of the worker written in the result files (InitialTransformParametersFileName of the elastix transform files)
+ * are replaced by the paths of the coordinator, so the results look the same as if the job was processed by the coordinator.
+ */
+public class ClusterWorker {
+
+    public static Consumer<String> log = AsyncLog.consumer(ClusterWorker.class, AsyncLog.Level.INFO);
+
+    /**
+     * Waiting time before pulling again when the coordinator cannot be reached
+     */
+    public static int retryDelayInMs = 2000;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, number of fixed images kept in the cache
+     */
+    public static int fixedImageCacheSize = 16;
+
+    static String coordinatorUrl;
+
+    static String name;
+
+    static String token;
+
+    static int slots;
+
+    static int pullTimeoutInMs;
+
+    static File workerFolder;
+
+    static File cacheFolder;
+
+    /**
+     * Fixed images by key, in access order
+     */
+    final static LinkedHashMap<String, File> fixedImageCache = new LinkedHashMap<>(16, 0.75f, true);
+
+    static volatile boolean running = false;
+
+    final static List<Thread> threads = new ArrayList<>();
+
+    /**
+     * Slots pulling or running a job : a job can still come from a pull started before a drain, see {@link ServerAdmin}
+     */
+    final static AtomicInteger busySlots = new AtomicInteger();
+
+    /**
+     * Starts pulling jobs from the coordinator
+     * @param config provided configuration, with a coordinator url
+     * @param localPort port of this server, used in the default worker name
+     * @throws IOException if the worker folder cannot be created
+     */
+    public static synchronized void start(RegistrationServerConfig config, int localPort) throws IOException {
+        if (ExecutionBackends.backend == ClusterCoordinator.BACKEND) {
+            throw new IllegalArgumentException("A cluster worker cannot use the cluster backend, it should be process or simulated");
+        }
+        if (config.clusterToken.isEmpty()) {
+            throw new IllegalArgumentException("A cluster worker needs the clusterToken of its coordinator");
+        }
+        stop();
+        coordinatorUrl = config.coordinatorUrl.endsWith("/") ? config.coordinatorUrl.substring(0, config.coordinatorUrl.length() - 1) : config.coordinatorUrl;
+        name = config.clusterWorkerName.isEmpty() ? InetAddress.getLocalHost().getHostName() + ":" + localPort : config.clusterWorkerName;
+        token = config.clusterToken;
+        slots = Math.max(1, config.maxNumberOfSimultaneousRequests);
+        pullTimeoutInMs = config.clusterPullTimeoutInMs;
+        fixedImageCacheSize = config.clusterWorkerFixedImageCacheSize;
+        RemoteTaskClient.http2 = config.http2;
+        workerFolder = new File(config.jobsDataLocation, "worker");
+        Files.createDirectories(workerFolder.toPath());
+        cacheFolder = new File(workerFolder, "cache");
+        synchronized (fixedImageCache) {
+            ServletUtils.eraseFolder(cacheFolder.getPath());
+            Files.createDirectories(cacheFolder.toPath());
+            fixedImageCache.clear();
+        }
+        running = true;
+        // A slot mostly waits, on its pull or on its job
+        ThreadFactory threadFactory = (config.virtualThreads && VirtualThreads.isAvailable()) ? VirtualThreads.threadFactory("cluster-worker-") : null;
+        for (int i = 0; i < slots; i++) {
+            Thread thread = (threadFactory != null) ? threadFactory.newThread(ClusterWorker::pullLoop) : new Thread(ClusterWorker::pullLoop, "cluster-worker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        log.accept("Worker " + name + " pulling jobs from " + coordinatorUrl + " with " + slots + " slots");
+    }
+
+    /**
+     * Stops pulling jobs, the jobs being processed are finished
+     */
+    public static synchronized void stop() {
+        running = false;
+        threads.clear();
+    }
+
+    static void pullLoop() {
+        while (running) {
+            if (ServerAdmin.draining) {
+                // Jobs are left to the other workers
+                try {
+                    Thread.sleep(retryDelayInMs);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                continue;
+            }
+            busySlots.incrementAndGet();
+            try {
+                pullAndRun();
+            } catch (Exception e) {
+                log.accept("Cluster pull failed : " + e.getMessage());
+                try {
+                    Thread.sleep(retryDelayInMs);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            } finally {
+                busySlots.decrementAndGet();
+            }
+        }
+    }
+
+    static HttpPost post(String path) throws IOException {
+        HttpPost post = new HttpPost(coordinatorUrl + RegistrationServer.CLUSTER_PATH_ROOT + path
+                + (path.contains("?") ? "&" : "?") + "worker=" + URLEncoder.encode(name, "UTF-8"));
+        post.setConfig(RemoteTaskClient.getRequestConfig(pullTimeoutInMs + 10000));
+        if (!token.isEmpty()) post.addHeader(ClusterServlet.TOKEN_HEADER, token);
+        return post;
+    }
+
+    /**
+     * Pulls one job, runs it and sends the result
+     * @return false if there was no job to run
+     */
+    static boolean pullAndRun() throws Exception {
+        long jobId;
+        File jobFolder;
+        HttpPost pull = post("/pull?slots=" + slots);
+        synchronized (fixedImageCache) {
+            pull.addHeader(ClusterServlet.CACHED_KEYS_HEADER, String.join(",", fixedImageCache.keySet()));
+        }
+        try (CloseableHttpResponse response = RemoteTaskClient.getHttpClient().execute(pull)) {
+            int status = response.getStatusLine().getStatusCode();
+            if (status == 204) return false;
+            if (status != 200) {
+                EntityUtils.consume(response.getEntity());
+                throw new HttpException("Coordinator answered " + response.getStatusLine());
+            }
+            jobId = Long.parseLong(response.getFirstHeader(ClusterServlet.JOB_ID_HEADER).getValue());
+            jobFolder = new File(workerFolder, "job_" + jobId);
+            try (InputStream is = response.getEntity().getContent()) {
+                RemoteElastixTask.unzip(is, new File(jobFolder, "input"));
+            }
+        }
+        try {
+            File inputFolder = new File(jobFolder, "input");
+            File outputFolder = new File(jobFolder, "output");
+            Files.createDirectories(outputFolder.toPath());
+            ClusterCoordinator.TaskDescription description = new Gson().fromJson(
+                    new String(Files.readAllBytes(new File(inputFolder, ClusterCoordinator.TASK_FILE).toPath()), StandardCharsets.UTF_8),
+                    ClusterCoordinator.TaskDescription.class);
+
+            if (!useFixedImageCache(description, inputFolder)) {
+                log.accept("Fixed image of job " + jobId + " not in the cache any more");
+                try (CloseableHttpResponse response = RemoteTaskClient.getHttpClient().execute(post("/result?job=" + jobId + "&durationMs=0&cacheMiss=true"))) {
+                    EntityUtils.consume(response.getEntity());
+                }
+                return true;
+            }
+
+            long start = System.nanoTime();
+            String error = null;
+            try {
+                run(description, inputFolder, outputFolder);
+                replacePaths(description, inputFolder, outputFolder);
+            } catch (Exception e) {
+                log.accept("Job " + jobId + " failed : " + e);
+                error = e.toString();
+            }
+            long durationInMs = (System.nanoTime() - start) / 1000000;
+
+            HttpPost result = post("/result?job=" + jobId + "&durationMs=" + durationInMs + ((error != null) ? "&error=true" : ""));
+            if (error != null) {
+                result.setEntity(new StringEntity(error, StandardCharsets.UTF_8));
+            } else {
+                File zip = new File(jobFolder, "result.zip");
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(zip), 64 * 1024)) {
+                    ZipPackager.zip(outputFolder, out, ZipPackager.responseLevel);
+                }
+                result.setEntity(new FileEntity(zip, ContentType.create("application/zip")));
+            }
+            try (CloseableHttpResponse response = RemoteTaskClient.getHttpClient().execute(result)) {
+                EntityUtils.consume(response.getEntity());
+                if (response.getStatusLine().getStatusCode() != 200) {
+                    log.accept("Result of job " + jobId + " refused by the coordinator : " + response.getStatusLine());
+                }
+            }
+        } finally {
+            ServletUtils.eraseFolder(jobFolder.getPath());
+        }
+        return true;
+    }
+
+    /**
+     * Puts the fixed image of a job in the cache, or takes it from the cache if the coordinator did not send it
+     * @return false if the fixed image should have been in the cache but is not
+     */
+    static boolean useFixedImageCache(ClusterCoordinator.TaskDescription description, File inputFolder) throws IOException {
+        if (description.fixedImageKey == null) return true;
+        File fixedImage = new File(inputFolder, description.fixedImage);
+        synchronized (fixedImageCache) {
+            if (description.fixedImageCached) {
+                File cached = fixedImageCache.get(description.fixedImageKey);
+                if ((cached == null) || (!cached.exists())) {
+                    fixedImageCache.remove(description.fixedImageKey);
+                    return false;
+                }
+                ServletUtils.link(cached, fixedImage);
+            } else if ((fixedImageCacheSize > 0) && (!fixedImageCache.containsKey(description.fixedImageKey))) {
+                String name = description.fixedImage;
+                File cached = new File(cacheFolder, description.fixedImageKey + (name.contains(".") ? name.substring(name.lastIndexOf('.')) : ""));
+                ServletUtils.link(fixedImage, cached);
+                fixedImageCache.put(description.fixedImageKey, cached);
+                Iterator<File> eldest = fixedImageCache.values().iterator();
+                while (fixedImageCache.size() > fixedImageCacheSize) {
+                    Files.deleteIfExists(eldest.next().toPath());
+                    eldest.remove();
+                }
+            }
+        }
+        return true;
+    }
+
+    static void run(ClusterCoordinator.TaskDescription description, File inputFolder, File outputFolder) throws Exception {
+        String outputPath = outputFolder.getAbsolutePath() + File.separator;
+        if (description.task.equals(ServerMetrics.ELASTIX)) {
+            ElastixTaskSettings settings = new ElastixTaskSettings();
+            settings.singleThread();
+            String fixedImagePath = new File(inputFolder, description.fixedImage).getAbsolutePath();
+            String movingImagePath = new File(inputFolder, description.movingImage).getAbsolutePath();
+            settings.fixedImage(() -> fixedImagePath);
+            settings.movingImage(() -> movingImagePath);
+            if (description.initialTransform != null) {
+                settings.addInitialTransform(new File(inputFolder, description.initialTransform).getAbsolutePath());
+            }
+            for (String parameterFile : description.parameterFiles) {
+                String parameterFilePath = new File(inputFolder, parameterFile).getAbsolutePath();
+                settings.addTransform(() -> parameterFilePath);
+            }
+            settings.outFolder(() -> outputPath);
+            settings.nThreads(ElastixServlet.nThreadPerTask);
+            ElastixTask task = ExecutionBackends.backend.newElastixTask();
+            task.setSettings(settings);
+            long runStart = System.nanoTime();
+            task.run();
+            ServerMetrics.elastix.run.recordSince(runStart);
+        } else {
+            TransformixTaskSettings settings = new TransformixTaskSettings();
+            String pointsPath = new File(inputFolder, description.points).getAbsolutePath();
+            String transformPath = new File(inputFolder, description.transform).getAbsolutePath();
+            settings.pts(() -> pointsPath);
+            settings.transform(() -> transformPath);
+            settings.outFolder(() -> outputPath);
+            TransformixTask task = ExecutionBackends.backend.newTransformixTask();
+            task.setSettings(settings);
+            long runStart = System.nanoTime();
+            task.run();
+            ServerMetrics.transformix.run.recordSince(runStart);
+        }
+    }
+
+    /**
+     * Replaces the paths of the worker by the ones of the coordinator in the text files of the output folder
+     */
+    static void replacePaths(ClusterCoordinator.TaskDescription description, File inputFolder, File outputFolder) throws IOException {
+        File[] files = outputFolder.listFiles((dir, fileName) -> fileName.endsWith(".txt"));
+        if (files == null) return;
+        for (File file : files) {
+            String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            String replaced = text.replace(outputFolder.getAbsolutePath() + File.separator, description.coordinatorOutputFolder);
+            for (Map.Entry<String, String> path : description.coordinatorPaths.entrySet()) {
+                replaced = replaced.replace(new File(inputFolder, path.getKey()).getAbsolutePath(), path.getValue());
+            }
+            if (!replaced.equals(text)) {
+                Files.write(file.toPath(), replaced.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+}
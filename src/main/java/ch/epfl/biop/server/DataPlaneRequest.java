@@ -0,0 +1,157 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An async request processed by the data plane (see {@link ServerPools}), completed exactly once:
+ *
+ * - by its worker, when the processing is over, whatever its outcome
+ * - by its timeout, only if the processing has not started yet : the task will then never run
+ *
+ * If the timeout expires while the processing runs, {@link DataPlaneRequest#isAlive()} becomes false and the worker
+ * is interrupted, but the worker still completes the request : the request and the response are not recycled while
+ * it uses them. The container timeout is thus disabled, jetty would otherwise answer and recycle the request itself.
+ */
+class DataPlaneRequest {
+
+    final AsyncContext async;
+
+    final ServerMetrics.TaskMetrics metrics;
+
+    final int timeOutInMs;
+
+    final AtomicBoolean started = new AtomicBoolean(false);
+
+    final AtomicBoolean alive = new AtomicBoolean(true);
+
+    final AtomicBoolean completed = new AtomicBoolean(false);
+
+    volatile Future<?> future;
+
+    volatile ScheduledFuture<?> timeout;
+
+    /**
+     * Puts the request in async mode
+     * @param request handled by a servlet
+     * @param metrics where the timeouts are counted
+     * @param timeOutInMs time after which the request is cancelled, counted from its hand off to the data plane
+     */
+    DataPlaneRequest(HttpServletRequest request, ServerMetrics.TaskMetrics metrics, int timeOutInMs) {
+        this.metrics = metrics;
+        this.timeOutInMs = timeOutInMs;
+        async = request.startAsync();
+        async.setTimeout(0);
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {}
+            @Override
+            public void onError(AsyncEvent event) {
+                alive.set(false);
+            }
+            @Override
+            public void onComplete(AsyncEvent event) {}
+            @Override
+            public void onStartAsync(AsyncEvent event) {}
+        });
+    }
+
+    /**
+     * Hands off the processing to the data plane once jetty has released the request, see {@link ServerPools#submitOnRelease}
+     * @param task processing, which calls {@link DataPlaneRequest#start()} first and {@link DataPlaneRequest#complete()} at the end
+     * @param onRejected releases the request if the data plane is saturated, before it is completed
+     * @param onExpired releases the request if it times out before its processing started, before it is completed
+     */
+    void submitOnRelease(HttpServletRequest request, Runnable task, Runnable onRejected, Runnable onExpired) {
+        ServerPools.submitOnRelease(request, () -> {
+            try {
+                future = ServerPools.submit(task);
+            } catch (RejectedExecutionException e) {
+                started.set(true);
+                onRejected.run();
+                complete();
+                return;
+            }
+            timeout = ServerPools.schedule(() -> expire(onExpired), timeOutInMs);
+            if (completed.get()) timeout.cancel(false);
+        });
+    }
+
+    void expire(Runnable onExpired) {
+        if (completed.get()) return;
+        metrics.timeouts.increment();
+        alive.set(false);
+        if (started.compareAndSet(false, true)) {
+            // Still waiting for a data plane thread : the task will not run
+            future.cancel(false);
+            onExpired.run();
+            complete();
+        } else {
+            // The worker stops at its next check and completes the request
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * @return false if the request timed out before its processing started : the task should return immediately
+     */
+    boolean start() {
+        return started.compareAndSet(false, true);
+    }
+
+    /**
+     * @return false if the request timed out or failed, its processing should stop
+     */
+    boolean isAlive() {
+        return alive.get();
+    }
+
+    /**
+     * Completes the request, only the first call has an effect
+     */
+    void complete() {
+        if (completed.compareAndSet(false, true)) {
+            ScheduledFuture<?> t = timeout;
+            if (t != null) t.cancel(false);
+            async.complete();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import ch.epfl.biop.wrappers.elastix.ElastixTask;
+import ch.epfl.biop.wrappers.elastix.ElastixTaskSettings;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Processing of the elastix jobs, whatever the way they reach the server :
+ * - http requests, see {@link ElastixServlet}
+ * - jobs submitted within the JVM of the server, see {@link ElastixJobProcessor#process} and
+ * {@link ch.epfl.biop.wrappers.elastix.LocalElastixTask}
+ *
+ * Both go through the same queue ({@link ElastixJobQueueServlet}), the same admission, the same execution backend,
+ * archive and metrics. Jobs submitted within the JVM skip the multipart upload, the zip of the results and their
+ * download : the input files are read where they are and the results are written directly in the output folder.
+ *
+ */
+public class ElastixJobProcessor {
+
+    public static Consumer<String> log = AsyncLog.consumer(ElastixJobProcessor.class, AsyncLog.Level.INFO);
+
+    /**
+     * Admission of an elastix job: the job should have been set as ready by the {@link ElastixJobQueueServlet}
+     * and a processing slot should be available.
+     *
+     * {@link ElastixServlet#numberOfCurrentTask} should already be incremented for this job, it is
+     * decremented if the job is rejected.
+     *
+     * @param jobId id of the job
+     * @return 200 if the job is admitted, 400 if it is not ready, 503 if all processing slots are busy
+     */
+    static int admit(long jobId) {
+        synchronized (ElastixJobQueueServlet.queue) {
+            Optional<ElastixJobQueueServlet.WaitingJob> job = ElastixJobQueueServlet.queueReadyToBeProcessed.stream()
+                    .filter(j -> j.jobId == jobId).findFirst();
+            if (job.isPresent()) {
+                // Ok - it's a valid job - let's remove it from the ready queue
+                ElastixJobQueueServlet.queueReadyToBeProcessed.remove(job.get());
+                QueueJournal.removed(jobId);
+            } else {
+                log.accept("Job "+jobId+" has not been queued before - this request will not be processed");
+                ElastixServlet.numberOfCurrentTask.decrementAndGet();
+                return 400;
+            }
+        }
+
+        synchronized (ElastixServlet.class) {
+            if (ElastixServlet.numberOfCurrentTask.get()>ElastixServlet.maxNumberOfSimultaneousRequests) {
+                log.accept("Too many elastix requests in elastix servlet");
+                ServerMetrics.elastix.rejectedBusy.increment();
+                ElastixServlet.numberOfCurrentTask.decrementAndGet();
+                return 503; // Too many requests - server temporarily unavailable - this should not happen with the queueing system however ...
+            }
+        }
+        return 200;
+    }
+
+    /**
+     * Runs the registration of an admitted job with the execution backend ({@link ExecutionBackends})
+     * @param jobId id of the job
+     * @param settings inputs of the registration
+     * @param outputFolder where the results are written
+     * @param trace of the job
+     * @throws Exception if the registration failed
+     */
+    static void run(long jobId, ElastixTaskSettings settings, String outputFolder, JobTrace trace) throws Exception {
+        settings.outFolder(() -> outputFolder);
+        settings.nThreads(ElastixServlet.nThreadPerTask);
+        ElastixTask elastixTask = ExecutionBackends.backend.newElastixTask();
+        elastixTask.setSettings(settings);
+
+        trace.mark("process_start");
+        long runStart = System.nanoTime();
+        ServerEventRecorder.Span runSpan = ServerEvents.recorder.jobStage(ServerMetrics.ELASTIX, jobId, "run");
+        ServerEventRecorder.ProcessSpan processSpan = ServerEvents.recorder.subprocess(ServerMetrics.ELASTIX, jobId);
+        int exitCode = -1; // failed or interrupted
+        long outputSize = -1;
+        try {
+            elastixTask.run(); // DOES the registration thus most of the time is spent there
+            exitCode = 0; // the task throws if the process did not succeed
+            outputSize = ServletUtils.sizeOf(new File(outputFolder));
+        } finally {
+            processSpan.end(outputSize, exitCode);
+            runSpan.end(outputSize);
+        }
+        ServerMetrics.elastix.run.recordSince(runStart);
+        trace.mark("process_end");
+    }
+
+    /**
+     * Removes (unnecessary?) log files from the results
+     * @param outputFolder results of a job
+     */
+    static void cleanLogFiles(String outputFolder) {
+        File[] allContents = new File(outputFolder).listFiles();
+        if (allContents!=null) {
+            for (File f : allContents) {
+                if (f.getName().startsWith("elastix") || f.getName().startsWith("IterationInfo")) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the inputs of a job to the archive if the server stores the jobs data and if the user agreed
+     * (some task metadata was sent), then erases the job folder
+     * @param jobId id of the job
+     * @param taskMetadata sent with the job, null if none
+     * @param jobFolder folder of the job, its outputs should already be removed
+     * @param inputsFolder folder of the job inputs, where the metadata is written
+     * @throws IOException if the metadata cannot be written
+     */
+    static void storeOrErase(long jobId, String taskMetadata, String jobFolder, String inputsFolder) throws IOException {
+        if ((!StatusServlet.config.storeJobsData) || (taskMetadata == null)) {
+            // Server set to not store anything, or no metadata = no user agreement to store job : erase data
+            ServletUtils.eraseFolder(jobFolder);
+        } else {
+            // We have some metadata : the user agreed to store data
+            long archiveStart = System.nanoTime();
+            ServerEventRecorder.Span archiveSpan = ServerEvents.recorder.jobStage(ServerMetrics.ELASTIX, jobId, "archive");
+            FileUtils.writeStringToFile(new File(inputsFolder,"metadata.txt"), taskMetadata, Charset.defaultCharset());
+
+            // Appends the job folder to the archive (factor 2 gained on average)
+            long archivedSize = JobArchive.archive(jobId, taskMetadata, new File(jobFolder));
+
+            // and delete original result folder
+            ServletUtils.eraseFolder(jobFolder);
+            ServerMetrics.elastix.archive.recordSince(archiveStart);
+            archiveSpan.end(Math.max(0, archivedSize));
+        }
+    }
+
+    /**
+     * Processes an elastix job within the JVM of the server, without any http request, multipart encoding or zip.
+     * The job waits in the queue of the server like the remote jobs, then blocks a processing slot while it runs.
+     *
+     * A {@link RegistrationServer} should be started in this JVM.
+     *
+     * @param fixedImagePath fixed image
+     * @param movingImagePath moving image
+     * @param initialTransformPath initial transform file, null if there is none
+     * @param parameterFilePaths registration parameter files, in order
+     * @param outputFolder where the results are written
+     * @param taskMetadata if not null, the user agrees that the inputs are archived by the server
+     * @throws RejectedExecutionException if the queue of the server is full
+     * @throws Exception if the registration failed
+     */
+    public static void process(String fixedImagePath, String movingImagePath, String initialTransformPath,
+                               List<String> parameterFilePaths, String outputFolder, String taskMetadata) throws Exception {
+        ElastixJobQueueServlet.WaitingJob job;
+        try {
+            job = ElastixJobQueueServlet.poll(-1);
+            while (job.waitingTimeInMs != 0) {
+                Thread.sleep(job.waitingTimeInMs);
+                long queuedJobId = job.jobId;
+                job = ElastixJobQueueServlet.poll(queuedJobId);
+                if (job == null) throw new IllegalStateException("Job " + queuedJobId + " is not in the queue anymore");
+            }
+        } catch (ElastixJobQueueServlet.QueueFullException e) {
+            throw new RejectedExecutionException(e.getMessage());
+        }
+
+        long jobId = job.jobId;
+        ElastixServlet.numberOfCurrentTask.getAndIncrement();
+        int admission = admit(jobId);
+        if (admission != 200) {
+            throw new RejectedExecutionException("Job " + jobId + " not admitted (" + admission + ")");
+        }
+
+        AsyncLog.setJobId(jobId);
+        String jobFolder = null; // only created if the inputs are archived
+        try {
+            log.accept("----------- ELASTIX JOB " + jobId + " START (in process)");
+            ServerMetrics.elastix.inProcess.increment();
+            JobTrace trace = JobTrace.get(ServerMetrics.ELASTIX, jobId);
+
+            ElastixTaskSettings settings = new ElastixTaskSettings();
+            settings.singleThread();
+            settings.fixedImage(() -> fixedImagePath);
+            settings.movingImage(() -> movingImagePath);
+            if (initialTransformPath != null) {
+                settings.addInitialTransform(initialTransformPath);
+            }
+            for (String parameterFilePath : parameterFilePaths) {
+                settings.addTransform(() -> parameterFilePath);
+            }
+
+            Files.createDirectories(Paths.get(outputFolder));
+            run(jobId, settings, outputFolder, trace);
+            cleanLogFiles(outputFolder);
+
+            if ((StatusServlet.config.storeJobsData) && (taskMetadata != null)) {
+                // Same archive content as for the remote jobs, the inputs are linked instead of uploaded
+                long archivedJobId = ElastixJobQueueServlet.jobIds.createJobFolder(ElastixServlet.elastixJobsFolder, jobId);
+                jobFolder = Paths.get(ElastixServlet.elastixJobsFolder, "job_" + archivedJobId).toString() + File.separator;
+                String inputsFolder = jobFolder + "input" + File.separator;
+                Files.createDirectory(Paths.get(inputsFolder));
+                linkInput(fixedImagePath, inputsFolder, "fixed");
+                linkInput(movingImagePath, inputsFolder, "moving");
+                if (initialTransformPath != null) {
+                    linkInput(initialTransformPath, inputsFolder, "iniTransform");
+                }
+                for (int idxTransform = 0; idxTransform < parameterFilePaths.size(); idxTransform++) {
+                    linkInput(parameterFilePaths.get(idxTransform), inputsFolder, "transform_" + idxTransform);
+                }
+                storeOrErase(archivedJobId, taskMetadata, jobFolder, inputsFolder);
+            }
+            ServerMetrics.elastix.completed.increment();
+            log.accept("Job " + jobId + " done");
+        } catch (Exception e) {
+            log.accept("Error during in process elastix job " + jobId);
+            ServerMetrics.elastix.errors.increment();
+            if (jobFolder != null) ServletUtils.eraseFolder(jobFolder);
+            throw e;
+        } finally {
+            ElastixServlet.numberOfCurrentTask.decrementAndGet();
+            AsyncLog.clearJobId();
+        }
+    }
+
+    static void linkInput(String path, String inputsFolder, String name) throws IOException {
+        ServletUtils.link(new File(path), new File(inputsFolder + name + "." + FilenameUtils.getExtension(path)));
+    }
+
+}
@@ -39,6 +39,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
@@ -93,7 +94,7 @@ import java.util.stream.Collectors;
 
 public class ElastixJobQueueServlet extends HttpServlet {
 
-    public static Consumer<String> log = (str) -> {};//System.out.println(ElastixJobQueueServlet.class+":"+str);
+    public static Consumer<String> log = AsyncLog.consumer(ElastixJobQueueServlet.class, AsyncLog.Level.DEBUG);
 
     /**
      * Queue containing the job that are expected to be processed in the future
@@ -138,6 +139,8 @@ public class ElastixJobQueueServlet extends HttpServlet {
      * a task has not been forgotten ba the client
      *
      * Cleans both {@link ElastixJobQueueServlet#queue} and {@link ElastixJobQueueServlet#queueReadyToBeProcessed}
+     *
+     * Started by the {@link RegistrationServer}, see {@link ElastixJobQueueServlet#startCleaner()}
      */
     public static Thread wall_e;
 
@@ -146,64 +149,87 @@ public class ElastixJobQueueServlet extends HttpServlet {
      */
     public final static AtomicInteger numberOfRejectedRequestsFullQueue = new AtomicInteger(0);
 
-    static {
-        // statically launch the cleaner thread
+    /**
+     * Starts the cleaner thread {@link ElastixJobQueueServlet#wall_e}, if it is not running yet
+     */
+    public static synchronized void startCleaner() {
+        if (wall_e != null) return;
         wall_e = new Thread(() -> {
             while (true) {
                 try {
                     Thread.sleep(cleanupTimeoutInS * 1000); // it makes sense to wait the cleanup time before each check
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    return; // stopped
                 }
 
-                synchronized (queue) { // locks on the queue
-
-                    final LocalDateTime now = LocalDateTime.now();
-
-                    List<WaitingJob> jobsToRemove = queue.stream()
-                         .filter(job -> {
-                             if (job.updateTimeTarget!=null) { // If this field is not initialized, it's an early job
-                                 LocalDateTime maxDateForUpdate = job.updateTimeTarget.plusSeconds(cleanupTimeoutInS);
-                                 log.accept("Clean check job[" + job.jobId + "]: " + job.updateTimeTarget);
-                                 log.accept("Job should be updated before " + maxDateForUpdate);
-                                 log.accept("And it is " + now);
-                                 return !(now.isBefore(maxDateForUpdate));
-                             } else return false;
-                         }).collect(Collectors.toList());
-
-                    queue.removeAll(jobsToRemove);
-
-                    if (jobsToRemove.size()>0) {
-                        log.accept("Number of jobs removed because of timeout : "+jobsToRemove.size());
-                    }
-
-                    synchronized (queueReadyToBeProcessed) { // TODO : is it the right lock ?
-                        try {
-                            Thread.sleep(cleanupTimeoutInS * 1000);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-
-                        jobsToRemove = queueReadyToBeProcessed.stream()
-                                .filter(job -> {
-                                    if (job.updateTimeTarget!=null) {
-                                    return job.updateTimeTarget.plusSeconds(cleanupTimeoutInS).isAfter(now);
-                                    } else return false;
-                                })
-                                .collect(Collectors.toList());
-
-                        queueReadyToBeProcessed.removeAll(jobsToRemove);
-
-                        if (jobsToRemove.size()>0) {
-                            log.accept("(Ready) number of jobs removed because of timeout : "+jobsToRemove.size());
-                        }
-
-                    }
+                cleanExpiredLeases(LocalDateTime.now());
+            }
+        }, "queue-cleaner");
+        wall_e.setDaemon(true);
+        wall_e.start();
+    }
+
+    /**
+     * Stops the cleaner thread, the queued jobs are kept
+     */
+    public static synchronized void stopCleaner() {
+        if (wall_e == null) return;
+        wall_e.interrupt();
+        wall_e = null;
+    }
+
+    /**
+     * One pass of the cleaner thread : removes the jobs of both queues whose client did not come back
+     * within {@link ElastixJobQueueServlet#cleanupTimeoutInS} after the end of their lease
+     * @param now current time
+     * @return the number of jobs removed
+     */
+    static int cleanExpiredLeases(LocalDateTime now) {
+        synchronized (queue) { // locks on the queue
+
+            List<WaitingJob> jobsToRemove = queue.stream()
+                 .filter(job -> {
+                     if (job.updateTimeTarget!=null) { // If this field is not initialized, it's an early job
+                         LocalDateTime maxDateForUpdate = job.updateTimeTarget.plusSeconds(cleanupTimeoutInS);
+                         log.accept("Clean check job[" + job.jobId + "]: " + job.updateTimeTarget);
+                         log.accept("Job should be updated before " + maxDateForUpdate);
+                         log.accept("And it is " + now);
+                         return !(now.isBefore(maxDateForUpdate));
+                     } else return false;
+                 }).collect(Collectors.toList());
+
+            int numberOfJobsRemoved = jobsToRemove.size();
+            queue.removeAll(jobsToRemove);
+            jobsToRemove.forEach(job -> QueueJournal.removed(job.jobId));
+            ServerMetrics.elastix.cleanedLeases.add(jobsToRemove.size());
+            jobsToRemove.forEach(job -> ServerEvents.recorder.queueEvent("lease_expired", job.jobId, queue.size()));
+
+            if (jobsToRemove.size()>0) {
+                log.accept("Number of jobs removed because of timeout : "+jobsToRemove.size());
+            }
+
+            synchronized (queueReadyToBeProcessed) { // TODO : is it the right lock ?
+                jobsToRemove = queueReadyToBeProcessed.stream()
+                        .filter(job -> {
+                            if (job.updateTimeTarget!=null) {
+                            return !job.updateTimeTarget.plusSeconds(cleanupTimeoutInS).isAfter(now);
+                            } else return false;
+                        })
+                        .collect(Collectors.toList());
+
+                numberOfJobsRemoved += jobsToRemove.size();
+                queueReadyToBeProcessed.removeAll(jobsToRemove);
+                jobsToRemove.forEach(job -> QueueJournal.removed(job.jobId));
+                ServerMetrics.elastix.cleanedLeases.add(jobsToRemove.size());
+                jobsToRemove.forEach(job -> ServerEvents.recorder.queueEvent("lease_expired", job.jobId, queue.size()));
+
+                if (jobsToRemove.size()>0) {
+                    log.accept("(Ready) number of jobs removed because of timeout : "+jobsToRemove.size());
                 }
 
             }
-        });
-        wall_e.start();
+            return numberOfJobsRemoved;
+        }
     }
 
     /**
@@ -231,30 +257,66 @@ public class ElastixJobQueueServlet extends HttpServlet {
         response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
     }
 
-    static long jobIndex=0;
+    /**
+     * Gives the ids of the elastix jobs, see {@link JobIdGenerator}
+     */
+    final static JobIdGenerator jobIds = new JobIdGenerator();
 
-    static synchronized long getNextJobIndex() {
-        jobIndex++;
-        return jobIndex;
+    static long getNextJobIndex() {
+        return jobIds.next();
     }
 
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         // Is it a new job ( = id = -1  ? ) or an old job asking for an update ?
+        WaitingJob wjob;
+        try {
+            wjob = poll(Long.parseLong(request.getParameter("id")));
+        } catch (QueueFullException e) {
+            response.setStatus(503); // Too many requests - server temporarily unavailable
+            return;
+        }
+        if (wjob == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_ACCEPTABLE);
+            return; // end of request
+        }
 
-        synchronized (queue) { // only one request processed at a time - this should be fine because it's fast - also avoids cleaning of the queue while processing the request
+        response.setContentType("application/json");
+        // Send jsonized version of WaitingJob class
+        response.getWriter().println(new Gson().toJson(wjob));
+        response.setStatus(HttpServletResponse.SC_OK);
+    }
 
-            long requestId = Long.parseLong(request.getParameter("id"));
+    /**
+     * Enters a new job in the queue, or updates the waiting time of a queued job. Used by this servlet
+     * and by the jobs submitted within the server JVM ({@link ElastixJobProcessor#process})
+     * @param requestId -1 for a new job, the id of the queued job otherwise
+     * @return the job with its waiting time, 0 if it can be processed now, null if the job is not in the queue
+     * @throws QueueFullException if the estimated waiting time exceeds {@link ElastixJobQueueServlet#maxWaitingQueueTimeInS},
+     * or if the server is draining (see {@link ServerAdmin#drain()})
+     */
+    static WaitingJob poll(long requestId) throws QueueFullException {
+        synchronized (queue) { // only one request processed at a time - this should be fine because it's fast - also avoids cleaning of the queue while processing the request
 
             // First : create or retrieve the referenced waiting job
             WaitingJob wjob;
 
             if (requestId == -1) {
+                if (ServerAdmin.draining) {
+                    // Jobs already queued are still processed
+                    ServerMetrics.elastix.rejectedDraining.increment();
+                    ServerEvents.recorder.queueEvent("rejected_draining", -1, queue.size());
+                    throw new QueueFullException("The server is draining, it does not accept new jobs");
+                }
                 // New job
                 log.accept("New job to enqueue:"+requestId);
                 wjob = new WaitingJob();
                 wjob.jobId = getNextJobIndex();
+                wjob.enqueueTimeInNs = System.nanoTime();
                 queue.add(wjob);
+                QueueJournal.enqueued(wjob.jobId);
+                JobTrace.get(ServerMetrics.ELASTIX, wjob.jobId).mark("enqueue");
+                ServerEvents.recorder.queueEvent("enqueue", wjob.jobId, queue.size());
             } else {
                 log.accept("Already existing job :"+requestId);
                 // Already existing job
@@ -262,10 +324,10 @@ public class ElastixJobQueueServlet extends HttpServlet {
                 Optional<WaitingJob> j = queue.stream().filter(job -> job.jobId == requestId).findFirst();
                 if (j.isPresent()) {
                     wjob = j.get();
+                    JobTrace.get(ServerMetrics.ELASTIX, wjob.jobId).mark("poll");
                 } else {
                     log.accept("Invalid request : job not found, maybe it does not exists or it has been cleaned, or it has already been set as ready to be processed");
-                    response.setStatus(HttpServletResponse.SC_NOT_ACCEPTABLE);
-                    return; // end of request
+                    return null;
                 }
             }
 
@@ -283,9 +345,15 @@ public class ElastixJobQueueServlet extends HttpServlet {
                 // Move job from waiting queue to ready queue
                 queue.remove(wjob);
                 queueReadyToBeProcessed.add(wjob);
+                QueueJournal.ready(wjob.jobId);
+                ServerMetrics.elastix.queueWait.recordSince(wjob.enqueueTimeInNs);
+                JobTrace.get(ServerMetrics.ELASTIX, wjob.jobId).mark("ready");
+                ServerEvents.recorder.queueEvent("ready", wjob.jobId, queue.size());
                 // Let's warn the client he can start : waiting time = 0
                 wjob.waitingTimeInMs = 0;
-                wjob.updateTimeTarget = LocalDateTime.now();
+                // The ready lease covers the whole elastix request : the job is only claimed once the
+                // request reaches the data plane, possibly after a long upload
+                wjob.updateTimeTarget = LocalDateTime.now().plus(ElastixServlet.timeOut, ChronoUnit.MILLIS);
             } else {
                 // Too many jobs waiting - the server cannot process the job immediately
 
@@ -297,9 +365,11 @@ public class ElastixJobQueueServlet extends HttpServlet {
                 if (waitingTimeInMs/1000>maxWaitingQueueTimeInS) {
                     log.accept("Too many elastix job requests in elastix queue servlet - expected time exceed "+maxWaitingQueueTimeInS+" seconds");
                     queue.remove(wjob);
+                    QueueJournal.removed(wjob.jobId);
                     numberOfRejectedRequestsFullQueue.incrementAndGet();
-                    response.setStatus(503); // Too many requests - server temporarily unavailable
-                    return;
+                    ServerMetrics.elastix.rejectedQueueFull.increment();
+                    ServerEvents.recorder.queueEvent("rejected", wjob.jobId, queue.size());
+                    throw new QueueFullException();
                 }
 
                 // We don't want the client to wait too long before asking for a queue state update
@@ -314,12 +384,22 @@ public class ElastixJobQueueServlet extends HttpServlet {
                 log.accept("Updated update time to "+wjob.updateTimeTarget);
             }
 
-            response.setContentType("application/json");
-            // Send jsonized version of WaitingJob class
-            response.getWriter().println(new Gson().toJson(wjob));
-            response.setStatus(HttpServletResponse.SC_OK);
+            return wjob;
+        }
+    }
+
+    /**
+     * The estimated waiting time of the queue is above {@link ElastixJobQueueServlet#maxWaitingQueueTimeInS},
+     * or the server is draining
+     */
+    static class QueueFullException extends Exception {
+        QueueFullException() {
+            super("Too many elastix jobs in the queue");
         }
 
+        QueueFullException(String message) {
+            super(message);
+        }
     }
 
     /**
@@ -345,5 +425,10 @@ public class ElastixJobQueueServlet extends HttpServlet {
          * when a job has been forgotten by the client and should be cleaned
          */
         volatile transient LocalDateTime updateTimeTarget;
+
+        /**
+         * {@link System#nanoTime()} when the job entered the queue, used to measure the queue waiting time
+         */
+        transient long enqueueTimeInNs;
     }
 }
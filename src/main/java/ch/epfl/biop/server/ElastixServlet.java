@@ -32,10 +32,7 @@
  */
 package ch.epfl.biop.server;
 
-import ch.epfl.biop.wrappers.elastix.DefaultElastixTask;
-import ch.epfl.biop.wrappers.elastix.ElastixTask;
 import ch.epfl.biop.wrappers.elastix.ElastixTaskSettings;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.eclipse.jetty.server.Response;
 
@@ -45,18 +42,13 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
 import java.io.*;
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Optional;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
-import java.util.zip.ZipOutputStream;
 
 import static ch.epfl.biop.server.ServletUtils.copyFileToServer;
 
@@ -81,23 +73,26 @@ import static ch.epfl.biop.server.ServletUtils.copyFileToServer;
  *
  * Otherwise all data are deleted.
  *
- * Note : all jobs are performed on a single thread
+ * Note : each job is performed on a thread of the data plane, not on a jetty thread, see {@link ServerPools}
+ *
+ * The admission, the registration itself and the archive are shared with the jobs submitted within the JVM
+ * of the server, see {@link ElastixJobProcessor}
  *
  */
 
 public class ElastixServlet extends HttpServlet{
 
-    public static Consumer<String> log = (str) -> System.out.println(ElastixServlet.class+":"+str);
+    public static Consumer<String> log = AsyncLog.consumer(ElastixServlet.class, AsyncLog.Level.INFO);
 
     /**
      * Can be configured in {@link RegistrationServerConfig}
      */
-    public static int maxNumberOfSimultaneousRequests = 1;
+    public static volatile int maxNumberOfSimultaneousRequests = 1;
 
     /**
      * Can be configured in {@link RegistrationServerConfig}
      */
-    public static int nThreadPerTask = 1;
+    public static volatile int nThreadPerTask = 1;
 
     /**
      * Tags to identity multipart http request parts
@@ -116,7 +111,7 @@ public class ElastixServlet extends HttpServlet{
     /**
      * Can be configured in {@link RegistrationServerConfig}, http timeout
      */
-    public static int timeOut = 50000;
+    public static volatile int timeOut = 50000;
 
     /**
      * Several successive transformations can exist in an elastix registration job
@@ -160,6 +155,35 @@ public class ElastixServlet extends HttpServlet{
         response.getWriter().println("{ \"status\": \"ok\"}");
     }
 
+    /**
+     * Admission of an elastix request, see {@link ElastixJobProcessor#admit(long)}
+     *
+     * {@link ElastixServlet#numberOfCurrentTask} should already be incremented for this request, it is
+     * decremented if the request is rejected.
+     *
+     * @param request client
+     * @param response of the server, its status is set if the request is rejected
+     * @return the id of the admitted job, or -1 if the request is rejected
+     */
+    static long admit(HttpServletRequest request, HttpServletResponse response) {
+        // The id is read from the query string: the job leaves the ready queue before the upload is parsed
+        String id = ServletUtils.queryParameter(request, "id");
+        if (id==null) {
+            log.accept("Registration job has no id - this request will not be processed");
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            numberOfCurrentTask.decrementAndGet();
+            return -1;
+        }
+
+        long currentJobId = Long.parseLong(id);
+        int admission = ElastixJobProcessor.admit(currentJobId);
+        if (admission != HttpServletResponse.SC_OK) {
+            response.setStatus(admission);
+            return -1;
+        }
+        return currentJobId;
+    }
+
     /**
      * Where the elastix registration happens
      * @param request client
@@ -168,52 +192,35 @@ public class ElastixServlet extends HttpServlet{
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) {
 
-        // Flag which indicates whether the job has been / should be cancelled
-        final AtomicBoolean isAlive = new AtomicBoolean(true);
-
         // Notify that we're processing a task
         numberOfCurrentTask.getAndIncrement();
 
-        // Not sure whether it's useful to put it into a Runnable...
+        // The request is processed by the data plane, the jetty thread goes back to the short requests (see ServerPools)
+        // Its flag isAlive indicates whether the job has been / should be cancelled
+        DataPlaneRequest dataPlaneRequest = new DataPlaneRequest(request, ServerMetrics.elastix, timeOut);
+
         Runnable taskToPerform = () -> {
+            if (!dataPlaneRequest.start()) return; // Timed out while waiting for a data plane thread
             try {
 
                 Instant start = Instant.now();
 
-                if (request.getParameter("id")==null) {
-                    log.accept("Registration job has no id - this request will not be processed");
-                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                    numberOfCurrentTask.decrementAndGet();
-                    return;
-                }
-
-                int currentJobId = Integer.parseInt(request.getParameter("id"));
-
-                synchronized (ElastixJobQueueServlet.queue) {
-                    Optional<ElastixJobQueueServlet.WaitingJob> job = ElastixJobQueueServlet.queueReadyToBeProcessed.stream()
-                            .filter(j -> j.jobId == currentJobId).findFirst();
-                    if (job.isPresent()) {
-                        // Ok - it's a valid job - let's remove it from the ready queue
-                        ElastixJobQueueServlet.queueReadyToBeProcessed.remove(job.get());
-                    } else {
-                        log.accept("Job "+currentJobId+" has not been queued before - this request will not be processed");
-                        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                        numberOfCurrentTask.decrementAndGet();
-                        return;
-                    }
-                }
-
-                synchronized (ElastixServlet.class) {
-                    if (numberOfCurrentTask.get()>maxNumberOfSimultaneousRequests) {
-                        log.accept("Too many elastix requests in elastix servlet");
-                        response.setStatus(503); // Too many requests - server temporarily unavailable - this should not happen with the queueing system however ...
-                        numberOfCurrentTask.decrementAndGet();
-                        return;
-                    }
+                long queuedJobId = admit(request, response);
+                if (queuedJobId == -1) return;
+                // A folder left by another server sharing the jobs folder is never reused
+                long currentJobId = ElastixJobQueueServlet.jobIds.createJobFolder(elastixJobsFolder, queuedJobId);
+                AsyncLog.setJobId(currentJobId);
+                if (currentJobId != queuedJobId) {
+                    log.accept("Folder of job " + queuedJobId + " already exists, the job is processed as job " + currentJobId);
                 }
 
                 log.accept("----------- ELASTIX JOB " + currentJobId + " START");
 
+                JobTrace trace = JobTrace.get(ServerMetrics.ELASTIX, currentJobId);
+                trace.mark("upload_start");
+                long uploadStart = System.nanoTime();
+                ServerEventRecorder.Span uploadSpan = ServerEvents.recorder.jobStage(ServerMetrics.ELASTIX, currentJobId, "upload");
+
                 ElastixTaskSettings settings = new ElastixTaskSettings();
                 settings.singleThread(); //
 
@@ -232,31 +239,24 @@ public class ElastixServlet extends HttpServlet{
                 }
 
                 // Prepare temp folders
-                if (!new File(elastixJobsFolder, "job_" + currentJobId).exists()) {
-                    Files.createDirectory(Paths.get(elastixJobsFolder, "job_" + currentJobId));
-                }
                 String currentElastixJobFolder = Paths.get(elastixJobsFolder, "job_" + currentJobId).toString()+File.separator;
                 String currentElastixJobFolderInputs = currentElastixJobFolder+"input"+File.separator;
                 String currentElastixJobFolderOutputs = currentElastixJobFolder+"output"+File.separator;
-                if (!new File(currentElastixJobFolderInputs).exists()) {
-                    Files.createDirectory(Paths.get(elastixJobsFolder, "job_" + currentJobId, "input"));
-                }
-                if (!new File(currentElastixJobFolderOutputs).exists()) {
-                    Files.createDirectory(Paths.get(elastixJobsFolder, "job_" + currentJobId, "output"));
-                }
+                Files.createDirectory(Paths.get(elastixJobsFolder, "job_" + currentJobId, "input"));
+                Files.createDirectory(Paths.get(elastixJobsFolder, "job_" + currentJobId, "output"));
 
                 // Copy files to server HDD and sets elastix job settings
-                String fImagePath = copyFileToServer(currentElastixJobFolderInputs, request, FixedImageTag, "fixed" );
+                String fImagePath = copyFileToServer(ServerMetrics.ELASTIX, currentJobId, currentElastixJobFolderInputs, request, FixedImageTag, "fixed" );
                 settings.fixedImage(() -> fImagePath);
 
-                String mImagePath = copyFileToServer(currentElastixJobFolderInputs, request, MovingImageTag, "moving" );
+                String mImagePath = copyFileToServer(ServerMetrics.ELASTIX, currentJobId, currentElastixJobFolderInputs, request, MovingImageTag, "moving" );
                 settings.movingImage(() -> mImagePath);
 
                 // Is there an initial transform file ?
                 Part iniTransformPart = request.getPart(InitialTransformTag);
 
                 if (iniTransformPart != null) {
-                    String iniTransformPath = copyFileToServer(currentElastixJobFolderInputs, request, InitialTransformTag, "iniTransform" );
+                    String iniTransformPath = copyFileToServer(ServerMetrics.ELASTIX, currentJobId, currentElastixJobFolderInputs, request, InitialTransformTag, "iniTransform" );
                     settings.addInitialTransform(iniTransformPath);
                 }
 
@@ -267,43 +267,52 @@ public class ElastixServlet extends HttpServlet{
 
                 // Gets all successive transforms and copy to server hdd
                 for (int idxTransform = 0; idxTransform < numberOfTransforms; idxTransform++) {
-                    String transformPath = copyFileToServer(currentElastixJobFolderInputs, request, TransformParameterTag(idxTransform), "transform_" + idxTransform);
+                    String transformPath = copyFileToServer(ServerMetrics.ELASTIX, currentJobId, currentElastixJobFolderInputs, request, TransformParameterTag(idxTransform), "transform_" + idxTransform);
                     settings.addTransform(() -> transformPath);
                 }
 
+                ServerMetrics.elastix.upload.recordSince(uploadStart);
+                uploadSpan.end(request.getContentLengthLong());
+                trace.mark("upload_end");
+
                 // Where to store the result
                 String outputFolder = currentElastixJobFolderOutputs;//elastixJobsFolder + "job_" + currentJobId;
-                settings.outFolder(() -> outputFolder);
-
-                ElastixTask elastixTask = new DefaultElastixTask();
-                settings.nThreads(nThreadPerTask);
-                elastixTask.setSettings(settings);
 
-                if (isAlive.get()) { // not cancelled ?
+                if (dataPlaneRequest.isAlive()) { // not cancelled ?
                     try {
 
-                        elastixTask.run(); // DOES the registration thus most of the time is spent there
+                        ElastixJobProcessor.run(currentJobId, settings, outputFolder, trace);
 
-                        if (isAlive.get()) { // still not cancelled ?
+                        if (dataPlaneRequest.isAlive()) { // still not cancelled ?
 
                             String sourceFile = outputFolder;
 
                             // Removes (unnecessary?) log files
-                            cleanLogFiles(outputFolder);
+                            ElastixJobProcessor.cleanLogFiles(outputFolder);
 
                             // Zip response files to send back to the client
-                            FileOutputStream fos = new FileOutputStream(currentElastixJobFolder + "res.zip");
-                            ZipOutputStream zipOut = new ZipOutputStream(fos);
-                            File fileToZip = new File(sourceFile);
-
-                            ServletUtils.zipFile(fileToZip, fileToZip.getName(), zipOut);
-                            zipOut.close();
-                            fos.close();
+                            long zipStart = System.nanoTime();
+                            ServerEventRecorder.Span zipSpan = ServerEvents.recorder.jobStage(ServerMetrics.ELASTIX, currentJobId, "zip");
+                            try (OutputStream fos = new BufferedOutputStream(new FileOutputStream(currentElastixJobFolder + "res.zip"), 64 * 1024)) {
+                                ZipPackager.zip(new File(sourceFile), fos, ZipPackager.responseLevel);
+                            }
 
                             File fileResZip = new File(currentElastixJobFolder + "res.zip");
                             String registrationResultFileName = "registration_result.zip";
+                            ServerMetrics.elastix.zip.recordSince(zipStart);
+                            zipSpan.end(fileResZip.length());
+                            trace.mark("zip");
+
+                            // Response information - set before the body is written
+                            response.setContentType("application/zip");
+                            response.addHeader("Content-Disposition", "attachment; filename=" + registrationResultFileName);
+                            response.addHeader("Server-Timing", trace.getServerTiming());
+                            response.setContentLength((int) fileResZip.length());
+                            response.setStatus(Response.SC_OK);
 
                             // Really sends back the result
+                            long sendStart = System.nanoTime();
+                            ServerEventRecorder.Span sendSpan = ServerEvents.recorder.jobStage(ServerMetrics.ELASTIX, currentJobId, "send");
                             FileInputStream fileInputStream = new FileInputStream(fileResZip);
                             ServletOutputStream responseOutputStream = response.getOutputStream();
                             int bytes;
@@ -312,46 +321,22 @@ public class ElastixServlet extends HttpServlet{
                             }
                             responseOutputStream.close();
                             fileInputStream.close();
-
-                            // Response information
-                            response.setContentType("application/zip");
-                            response.addHeader("Content-Disposition", "attachment; filename=" + registrationResultFileName);
-                            response.setContentLength((int) fileResZip.length());
-                            response.setStatus(Response.SC_OK);
+                            ServerMetrics.elastix.send.recordSince(sendStart);
+                            sendSpan.end(fileResZip.length());
+                            trace.mark("send");
 
                             // Clean Up : let's remove the output folder because it has already been zipped
                             ServletUtils.eraseFolder(outputFolder);
 
                             // Should we store the job data ?
-                            if (!StatusServlet.config.storeJobsData) {
-                                // Server set to not store anything -> just delete the data
-                                ServletUtils.eraseFolder(currentElastixJobFolder);
-                            } else {
-                                // Server can store some user data, if the user agrees
-                                if (taskMetadata == null) {
-                                    // No metadata = no user agreement to store job, erase data
-                                    ServletUtils.eraseFolder(currentElastixJobFolder);
-                                } else {
-                                    // We have some metadata : the user agreed to store data
-                                    FileUtils.writeStringToFile(new File(currentElastixJobFolderInputs,"metadata.txt"), taskMetadata, Charset.defaultCharset());
-
-                                    // Zip result folder (factor 2 gained on average)
-                                    fos = new FileOutputStream(elastixJobsFolder + "job_"+currentJobId+".zip");
-                                    zipOut = new ZipOutputStream(fos);
-                                    fileToZip = new File(currentElastixJobFolder);
-
-                                    ServletUtils.zipFile(fileToZip, fileToZip.getName(), zipOut);
-                                    zipOut.close();
-                                    fos.close();
-
-                                    // and delete original result folder
-                                    ServletUtils.eraseFolder(currentElastixJobFolder);
-                                }
-                            }
+                            ElastixJobProcessor.storeOrErase(currentJobId, taskMetadata, currentElastixJobFolder, currentElastixJobFolderInputs);
+                            ServerMetrics.elastix.completed.increment();
                             Instant end = Instant.now();
                             log.accept("Job "+currentJobId+" done in "+ Duration.between(start,end).getSeconds()+" s.");
                         } else {
                             log.accept("Job "+currentJobId+" interrupted");
+                            ServerMetrics.elastix.cancellations.increment();
+                            response.setStatus(Response.SC_INTERNAL_SERVER_ERROR);
                             ServletUtils.eraseFolder(currentElastixJobFolder);
                         }
 
@@ -361,47 +346,41 @@ public class ElastixServlet extends HttpServlet{
                     } catch (Exception e) {
                         numberOfCurrentTask.decrementAndGet();
                         log.accept("Error during elastix request");
+                        ServerMetrics.elastix.errors.increment();
                         response.setStatus(Response.SC_INTERNAL_SERVER_ERROR);
                         e.printStackTrace();
                         ServletUtils.eraseFolder(currentElastixJobFolder);
                     }
                 } else {
                     log.accept("Job "+currentJobId+" interrupted");
+                    ServerMetrics.elastix.cancellations.increment();
+                    response.setStatus(Response.SC_INTERNAL_SERVER_ERROR);
                     numberOfCurrentTask.decrementAndGet();
                     ServletUtils.eraseFolder(currentElastixJobFolder);
                 }
-            } catch (IOException|ServletException  e) {
+            } catch (IOException|ServletException|RuntimeException e) {
+                // Also catches unchecked exceptions : the data plane would swallow them and leave the request hanging
                 response.setStatus(Response.SC_INTERNAL_SERVER_ERROR);
                 log.accept("Servlet Exception "+e.getMessage());
+                ServerMetrics.elastix.errors.increment();
                 numberOfCurrentTask.decrementAndGet();
+            } finally {
+                AsyncLog.clearJobId();
+                ServletUtils.deleteParts(getServletContext(), request);
+                dataPlaneRequest.complete();
             }
         };
 
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Future<?> future = executor.submit(taskToPerform);
-
-        try {
-            future.get(timeOut, TimeUnit.MILLISECONDS);
-            log.accept("Task completed successfully");
-        } catch (InterruptedException | ExecutionException e) {
-            isAlive.set(false);
-        } catch (TimeoutException e) {
-            log.accept("Timed out. Cancelling the runnable...");
-            isAlive.set(false);
-            future.cancel(true);
-        }
-        executor.shutdown();
-    }
-
-    private void cleanLogFiles(String outputFolder) {
-        File[] allContents = new File(outputFolder).listFiles();
-        if (allContents!=null) {
-            for (File f : allContents) {
-                if (f.getName().startsWith("elastix") || f.getName().startsWith("IterationInfo")) {
-                    f.delete();
-                }
-            }
-        }
+        dataPlaneRequest.submitOnRelease(request, taskToPerform, () -> {
+            log.accept("Data plane saturated - this request will not be processed");
+            numberOfCurrentTask.decrementAndGet();
+            response.setStatus(503);
+        }, () -> {
+            log.accept("Timed out while waiting for a data plane thread - this request will not be processed");
+            numberOfCurrentTask.decrementAndGet();
+            ServletUtils.deleteParts(getServletContext(), request);
+            response.setStatus(503);
+        });
     }
 
 }
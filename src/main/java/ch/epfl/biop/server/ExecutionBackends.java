@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import ch.epfl.biop.wrappers.SimulatedDuration;
+import ch.epfl.biop.wrappers.elastix.DefaultElastixTask;
+import ch.epfl.biop.wrappers.elastix.ElastixTask;
+import ch.epfl.biop.wrappers.elastix.SimulatedElastixTask;
+import ch.epfl.biop.wrappers.transformix.DefaultTransformixTask;
+import ch.epfl.biop.wrappers.transformix.SimulatedTransformixTask;
+import ch.epfl.biop.wrappers.transformix.TransformixTask;
+
+/**
+ * Gives access to the {@link ExecutionBackend} of the server, set by {@link RegistrationServerConfig#executionBackend}:
+ * - "process" : the elastix and transformix executables are run
+ * - "simulated" : {@link SimulatedElastixTask} and {@link SimulatedTransformixTask}, for capacity tests on any machine
+ * - "cluster" : the jobs are sent to the workers pulling them, see {@link ClusterCoordinator}
+ *
+ */
+public class ExecutionBackends {
+
+    final static ExecutionBackend PROCESS = new ExecutionBackend() {
+        @Override
+        public ElastixTask newElastixTask() {
+            return new DefaultElastixTask();
+        }
+
+        @Override
+        public TransformixTask newTransformixTask() {
+            return new DefaultTransformixTask();
+        }
+    };
+
+    final static ExecutionBackend SIMULATED = new ExecutionBackend() {
+        @Override
+        public ElastixTask newElastixTask() {
+            return new SimulatedElastixTask();
+        }
+
+        @Override
+        public TransformixTask newTransformixTask() {
+            return new SimulatedTransformixTask();
+        }
+    };
+
+    public static volatile ExecutionBackend backend = PROCESS;
+
+    /**
+     * Selects the backend, and the durations of the simulated tasks
+     * @param config provided configuration
+     */
+    public static void setConfiguration(RegistrationServerConfig config) {
+        switch (config.executionBackend) {
+            case "process":
+                backend = PROCESS;
+                break;
+            case "simulated":
+                SimulatedElastixTask.duration = new SimulatedDuration(config.simulatedDurationDistribution,
+                        config.simulatedElastixDurationInMs, config.simulatedElastixDurationSdInMs, config.simulatedSeed);
+                SimulatedTransformixTask.duration = new SimulatedDuration(config.simulatedDurationDistribution,
+                        config.simulatedTransformixDurationInMs, config.simulatedTransformixDurationSdInMs, config.simulatedSeed + 1);
+                SimulatedTransformixTask.durationPerPointInMs = config.simulatedTransformixDurationPerPointInMs;
+                backend = SIMULATED;
+                break;
+            case "cluster":
+                ClusterCoordinator.setConfiguration(config);
+                backend = ClusterCoordinator.BACKEND;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown execution backend " + config.executionBackend + ", it should be process, simulated or cluster");
+        }
+    }
+}
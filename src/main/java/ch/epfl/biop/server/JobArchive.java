@@ -0,0 +1,386 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Append-only store of the archived elastix jobs (jobs sent with metadata, when {@link RegistrationServerConfig#storeJobsData} is true)
+ *
+ * Instead of one zip file per job, jobs are appended as records into large segment files (segment_000001.dat, ...)
+ * in the archive folder. A new segment is started when the current one exceeds {@link JobArchive#segmentSizeInBytes}.
+ *
+ * Record layout:
+ * - int RECORD_MAGIC, long job id, long archive time (epoch ms)
+ * - int metadata length, metadata (utf-8)
+ * - long data length (-1 until the record is complete), data : zip of the job folder
+ * - int END_MAGIC
+ *
+ * The index (job id to segment, offset and metadata) is kept in memory. It is rebuilt at startup by reading the
+ * record headers only; an incomplete record at the end of a segment (crash during an append) is truncated.
+ *
+ * When the archive exceeds {@link JobArchive#maxSizeInBytes}, the policy {@link JobArchive#evictionPolicy} applies:
+ * - "oldest" : the oldest segments are deleted, with all their jobs
+ * - "none" : new jobs are not archived anymore
+ *
+ * Job folders are zipped by {@link ZipPackager} : the result already sent to the client (res.zip) is stored
+ * without compression, other files are deflated at {@link ZipPackager#archiveLevel}.
+ */
+public class JobArchive {
+
+    public static Consumer<String> log = AsyncLog.consumer(JobArchive.class, AsyncLog.Level.INFO);
+
+    final static int RECORD_MAGIC = 0x4A4F4252; // "JOBR"
+
+    final static int END_MAGIC = 0x454E4452; // "ENDR"
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}
+     */
+    public static long segmentSizeInBytes = 256L * 1024 * 1024;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, disk quota of the archive
+     */
+    public static long maxSizeInBytes = 10L * 1024 * 1024 * 1024;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, "oldest" or "none"
+     */
+    public static String evictionPolicy = "oldest";
+
+    static File archiveFolder = null;
+
+    /**
+     * Index of the archived jobs
+     */
+    final static Map<Long, Entry> index = new ConcurrentHashMap<>();
+
+    /**
+     * Segment files by segment number, the last one is the one appended
+     */
+    final static TreeMap<Integer, File> segments = new TreeMap<>();
+
+    static FileChannel currentSegment = null;
+
+    static int currentSegmentNumber = 0;
+
+    /**
+     * Location of an archived job
+     */
+    public static class Entry {
+        public long jobId;
+        public long archiveTimeEpochMs;
+        public String metadata;
+        public int segment;
+        public long dataOffset;
+        public long dataLength;
+    }
+
+    /**
+     * Appends the configuration, opens the archive folder and rebuilds the index
+     * @param config provided configuration
+     * @param folder archive folder
+     * @throws IOException if the folder or the segments cannot be read
+     */
+    public static synchronized void setConfiguration(RegistrationServerConfig config, File folder) throws IOException {
+        segmentSizeInBytes = config.archiveSegmentSizeInMB * 1024L * 1024L;
+        maxSizeInBytes = config.archiveMaxSizeInMB * 1024L * 1024L;
+        evictionPolicy = config.archiveEvictionPolicy;
+        open(folder);
+    }
+
+    static synchronized void open(File folder) throws IOException {
+        close();
+        Files.createDirectories(folder.toPath());
+        archiveFolder = folder;
+        index.clear();
+        segments.clear();
+        File[] files = folder.listFiles((dir, name) -> name.startsWith("segment_") && name.endsWith(".dat"));
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    segments.put(Integer.parseInt(file.getName().substring("segment_".length(), file.getName().length() - ".dat".length())), file);
+                } catch (NumberFormatException e) {
+                    log.accept("Ignoring file " + file);
+                }
+            }
+        }
+        for (Map.Entry<Integer, File> segment : segments.entrySet()) {
+            scan(segment.getKey(), segment.getValue());
+        }
+        currentSegmentNumber = segments.isEmpty() ? 0 : segments.lastKey();
+        log.accept("Archive " + folder + " : " + index.size() + " jobs in " + segments.size() + " segments, " + getSizeInBytes() + " bytes");
+    }
+
+    /**
+     * Reads the record headers of a segment into the index, and truncates an incomplete last record
+     */
+    static void scan(int segmentNumber, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = 0;
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(24);
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(8);
+            ByteBuffer endBuffer = ByteBuffer.allocate(4);
+            while (position < size) {
+                header.clear();
+                if ((readFully(channel, header, position) < 24) || (header.getInt(0) != RECORD_MAGIC)) break;
+                Entry entry = new Entry();
+                entry.jobId = header.getLong(4);
+                entry.archiveTimeEpochMs = header.getLong(12);
+                int metadataLength = header.getInt(20);
+                if ((metadataLength < 0) || (position + 24 + metadataLength + 8 > size)) break;
+                ByteBuffer metadata = ByteBuffer.allocate(metadataLength);
+                readFully(channel, metadata, position + 24);
+                entry.metadata = new String(metadata.array(), StandardCharsets.UTF_8);
+                lengthBuffer.clear();
+                readFully(channel, lengthBuffer, position + 24 + metadataLength);
+                entry.dataLength = lengthBuffer.getLong(0);
+                entry.dataOffset = position + 24 + metadataLength + 8;
+                entry.segment = segmentNumber;
+                long end = entry.dataOffset + entry.dataLength;
+                endBuffer.clear();
+                if ((entry.dataLength < 0) || (end + 4 > size) || (readFully(channel, endBuffer, end) < 4) || (endBuffer.getInt(0) != END_MAGIC)) break;
+                index.put(entry.jobId, entry);
+                position = end + 4;
+            }
+            if (position < size) {
+                log.accept("Truncating incomplete record at " + position + " in " + file);
+                channel.truncate(position);
+            }
+        }
+    }
+
+    static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) break;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Appends a job folder to the archive
+     * @param jobId id of the job
+     * @param metadata metadata sent by the client
+     * @param jobFolder folder to archive
+     * @return the size of the record data, or -1 if the job is not archived because of the quota
+     * @throws IOException if the record cannot be written
+     */
+    public static synchronized long archive(long jobId, String metadata, File jobFolder) throws IOException {
+        if (archiveFolder == null) throw new IOException("Job archive not opened");
+        if (!makeRoom()) {
+            log.accept("Archive full, job " + jobId + " not archived");
+            return -1;
+        }
+
+        FileChannel channel = getCurrentSegment();
+        long start = channel.size();
+        byte[] metadataBytes = metadata.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(24 + metadataBytes.length + 8);
+        header.putInt(RECORD_MAGIC).putLong(jobId).putLong(System.currentTimeMillis()).putInt(metadataBytes.length);
+        header.put(metadataBytes).putLong(-1L);
+        header.flip();
+        try {
+            channel.position(start);
+            while (header.hasRemaining()) channel.write(header);
+
+            long dataOffset = channel.position();
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            ZipPackager.zip(jobFolder, out, ZipPackager.archiveLevel);
+            long dataLength = channel.position() - dataOffset;
+
+            ByteBuffer end = ByteBuffer.allocate(4).putInt(END_MAGIC);
+            end.flip();
+            while (end.hasRemaining()) channel.write(end);
+            // The record is complete : its length is written last
+            ByteBuffer length = ByteBuffer.allocate(8).putLong(dataLength);
+            length.flip();
+            channel.write(length, dataOffset - 8);
+
+            Entry entry = new Entry();
+            entry.jobId = jobId;
+            entry.archiveTimeEpochMs = header.getLong(12);
+            entry.metadata = metadata;
+            entry.segment = currentSegmentNumber;
+            entry.dataOffset = dataOffset;
+            entry.dataLength = dataLength;
+            index.put(jobId, entry);
+            return dataLength;
+        } catch (IOException e) {
+            // Removes the incomplete record
+            channel.truncate(start);
+            throw e;
+        }
+    }
+
+    static FileChannel getCurrentSegment() throws IOException {
+        if (currentSegment == null) {
+            // The last segment found at startup is appended, unless it is full
+            if (currentSegmentNumber == 0) currentSegmentNumber = 1;
+            openCurrentSegment();
+        }
+        if (currentSegment.size() >= segmentSizeInBytes) {
+            currentSegment.close();
+            currentSegmentNumber++;
+            openCurrentSegment();
+        }
+        return currentSegment;
+    }
+
+    static void openCurrentSegment() throws IOException {
+        File file = new File(archiveFolder, String.format("segment_%06d.dat", currentSegmentNumber));
+        segments.put(currentSegmentNumber, file);
+        currentSegment = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Applies the eviction policy if the archive exceeds its quota
+     * @return true if a new record can be appended
+     */
+    static boolean makeRoom() throws IOException {
+        while (getSizeInBytes() >= maxSizeInBytes) {
+            if ((!evictionPolicy.equals("oldest")) || (segments.isEmpty())) return false;
+            int oldest = segments.firstKey();
+            if ((oldest == currentSegmentNumber) && (currentSegment != null)) {
+                // Only the current segment is left
+                currentSegment.close();
+                currentSegment = null;
+                currentSegmentNumber++;
+            }
+            File file = segments.remove(oldest);
+            List<Long> evicted = new ArrayList<>();
+            index.values().stream().filter(e -> e.segment == oldest).forEach(e -> evicted.add(e.jobId));
+            evicted.forEach(index::remove);
+            Files.deleteIfExists(file.toPath());
+            ServerMetrics.elastix.archiveEvictions.add(evicted.size());
+            log.accept("Archive quota reached : segment " + oldest + " deleted with " + evicted.size() + " jobs");
+        }
+        return true;
+    }
+
+    /**
+     * @return the total size of the segment files
+     */
+    public static synchronized long getSizeInBytes() {
+        return segments.values().stream().mapToLong(File::length).sum();
+    }
+
+    /**
+     * @return the number of archived jobs
+     */
+    public static int getNumberOfJobs() {
+        return index.size();
+    }
+
+    /**
+     * @param jobId id of the job
+     * @return the index entry of the job, or null if it is not archived
+     */
+    public static Entry find(long jobId) {
+        return index.get(jobId);
+    }
+
+    /**
+     * @return the index entries, oldest first
+     */
+    public static List<Entry> list() {
+        List<Entry> entries = new ArrayList<>(index.values());
+        entries.sort(Comparator.comparingLong((Entry e) -> e.archiveTimeEpochMs).thenComparingLong(e -> e.jobId));
+        return entries;
+    }
+
+    /**
+     * Copies the zip of an archived job
+     * @param jobId id of the job
+     * @param out where the zip is written
+     * @return false if the job is not archived (or has been evicted)
+     * @throws IOException if the segment cannot be read
+     */
+    public static boolean copyTo(long jobId, OutputStream out) throws IOException {
+        Entry entry = index.get(jobId);
+        File file;
+        synchronized (JobArchive.class) {
+            file = segments.get((entry == null) ? -1 : entry.segment);
+        }
+        if ((entry == null) || (file == null)) return false;
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return false; // Evicted in the meantime
+        }
+        try {
+            long position = entry.dataOffset, end = entry.dataOffset + entry.dataLength;
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) throw new IOException("Unexpected end of segment " + file);
+                out.write(buffer.array(), 0, read);
+                position += read;
+            }
+        } finally {
+            channel.close();
+        }
+        return true;
+    }
+
+    static synchronized void close() throws IOException {
+        if (currentSegment != null) {
+            currentSegment.close();
+            currentSegment = null;
+        }
+    }
+}
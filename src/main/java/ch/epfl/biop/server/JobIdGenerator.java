@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates unique, time ordered job ids without lock and without coordination between servers
+ *
+ * An id is a positive long made of:
+ * - 41 bits : milliseconds since {@link JobIdGenerator#EPOCH_MS} (2021-01-01), enough until 2090
+ * - 10 bits : node id, {@link JobIdGenerator#nodeId}
+ * - 12 bits : sequence number within the millisecond
+ *
+ * Two servers sharing the same jobsDataLocation never give the same id as long as they have different node ids.
+ * Each server locks its node id in the jobsDataLocation ({@link JobIdGenerator#lockNodeId(File, boolean)}): a server does not
+ * start with the node id of a running one, nor with a default node id if another server runs on the same jobsDataLocation.
+ * Job folders are created atomically and never reused ({@link JobIdGenerator#createJobFolder(String, long)}).
+ * A restarted server gives ids greater than the ones of the previous run, because time went on. The generator never
+ * goes backwards : if the clock does, or if more than 4096 ids are asked within one millisecond, the ids are taken
+ * from the next milliseconds. {@link JobIdGenerator#atLeast(long)} also moves the generator above the ids found on disk.
+ *
+ * Ids given by the former counters (1, 2, 3...) are much smaller than any generated id, so job folders
+ * and archived jobs keep sorting in creation order.
+ */
+public class JobIdGenerator {
+
+    final static long EPOCH_MS = 1609459200000L; // 2021-01-01T00:00:00Z
+
+    final static int NODE_BITS = 10;
+
+    final static int SEQUENCE_BITS = 12;
+
+    final static long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, should be unique among the servers sharing a jobs folder.
+     * By default, derived from the process id and the host name, which is only safe for a server alone on its jobs folder.
+     */
+    public static volatile long nodeId = defaultNodeId();
+
+    static FileLock nodeLock = null;
+
+    /**
+     * Timestamp (ms since {@link JobIdGenerator#EPOCH_MS}) and sequence of the last given id,
+     * packed as timestamp &lt;&lt; SEQUENCE_BITS | sequence
+     */
+    final AtomicLong state = new AtomicLong();
+
+    /**
+     * Appends configuration, a negative node id keeps the default one, and locks the node id in the jobsDataLocation
+     * @param config provided configuration
+     * @throws IllegalStateException if the node id is used by another server, or if the jobsDataLocation is shared
+     * and no node id is set
+     */
+    public static void setConfiguration(RegistrationServerConfig config) {
+        if (config.nodeId >= 0) {
+            if (config.nodeId > MAX_NODE_ID) {
+                throw new IllegalArgumentException("Node id " + config.nodeId + " should be between 0 and " + MAX_NODE_ID);
+            }
+            nodeId = config.nodeId;
+        }
+        try {
+            lockNodeId(new File(config.jobsDataLocation), config.nodeId >= 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not lock the node id in " + config.jobsDataLocation, e);
+        }
+    }
+
+    /**
+     * Holds the lock of the file nodes/node_{nodeId}.lock of the jobsDataLocation until {@link JobIdGenerator#releaseNodeId()}
+     * or the end of the process
+     * @param jobsDataLocation folder of the jobs of this server
+     * @param explicitNodeId true if the node id is set in the configuration, otherwise no other server should use the folder
+     * @throws IOException if the lock file cannot be created
+     * @throws IllegalStateException if another server holds the same node id, or any node id without explicit node id
+     */
+    static synchronized void lockNodeId(File jobsDataLocation, boolean explicitNodeId) throws IOException {
+        releaseNodeId();
+        File nodesFolder = new File(jobsDataLocation, "nodes");
+        Files.createDirectories(nodesFolder.toPath());
+        File lockFile = new File(nodesFolder, "node_" + nodeId + ".lock");
+        FileLock lock = tryLock(lockFile);
+        if (lock == null) {
+            throw new IllegalStateException("Node id " + nodeId + " is already used by another server on " + jobsDataLocation
+                    + ", set a different nodeId in the configuration of each server sharing it");
+        }
+        if (!explicitNodeId) {
+            File[] others = nodesFolder.listFiles((dir, name) -> name.startsWith("node_") && !name.equals(lockFile.getName()));
+            for (File other : (others == null) ? new File[0] : others) {
+                FileLock otherLock = tryLock(other);
+                if (otherLock == null) {
+                    lock.channel().close();
+                    throw new IllegalStateException(jobsDataLocation + " is shared with another server, set a different nodeId in the configuration of each server sharing it");
+                }
+                otherLock.channel().close();
+            }
+        }
+        nodeLock = lock;
+    }
+
+    /**
+     * @return the lock of the file, null if it is held by another server
+     */
+    static FileLock tryLock(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null; // held by this process
+        }
+        if (lock == null) channel.close();
+        return lock;
+    }
+
+    /**
+     * Lets another server use the node id of this one
+     */
+    static synchronized void releaseNodeId() {
+        if (nodeLock == null) return;
+        try {
+            nodeLock.channel().close();
+        } catch (IOException e) {
+            // the lock is released with the process anyway
+        }
+        nodeLock = null;
+    }
+
+    static long defaultNodeId() {
+        return ManagementFactory.getRuntimeMXBean().getName().hashCode() & MAX_NODE_ID; // "pid@hostname"
+    }
+
+    /**
+     * @return a new unique id, greater than all the ids previously given by this generator
+     */
+    public long next() {
+        long now = System.currentTimeMillis() - EPOCH_MS;
+        long current, next;
+        do {
+            current = state.get();
+            next = Math.max(now << SEQUENCE_BITS, current + 1);
+        } while (!state.compareAndSet(current, next));
+        return toId(next);
+    }
+
+    /**
+     * @return the last id given, 0 if none
+     */
+    public long last() {
+        long current = state.get();
+        return current == 0 ? 0 : toId(current);
+    }
+
+    /**
+     * Makes sure the next ids are greater than the id given (at least in time, whatever its node)
+     * @param id id already used, by this server or another one
+     */
+    public void atLeast(long id) {
+        long floor = ((id >>> (NODE_BITS + SEQUENCE_BITS)) << SEQUENCE_BITS) | (id & ((1L << SEQUENCE_BITS) - 1));
+        state.accumulateAndGet(floor, Math::max);
+    }
+
+    /**
+     * Creates the folder of a new job, without reusing an existing one : if the folder of the id already exists,
+     * for instance created by another server with the same node id, a new id is taken
+     * @param jobsFolder folder of the jobs (elastix or transformix)
+     * @param id id of the job
+     * @return the id of the job, whose folder job_{id} has been created in the jobs folder
+     * @throws IOException if the folder cannot be created
+     */
+    public long createJobFolder(String jobsFolder, long id) throws IOException {
+        while (true) {
+            try {
+                Files.createDirectory(Paths.get(jobsFolder, "job_" + id));
+                return id;
+            } catch (FileAlreadyExistsException e) {
+                id = next();
+            }
+        }
+    }
+
+    static long toId(long state) {
+        return ((state >>> SEQUENCE_BITS) << (NODE_BITS + SEQUENCE_BITS)) | (nodeId << SEQUENCE_BITS) | (state & ((1L << SEQUENCE_BITS) - 1));
+    }
+
+}
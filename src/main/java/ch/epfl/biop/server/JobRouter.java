@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Chooses the cluster worker of a job from the content of its fixed image, see {@link ClusterCoordinator}
+ *
+ * Atlas-like workloads register many moving images to the same few fixed images. Workers keep the last fixed images
+ * they received ({@link ClusterWorker#fixedImageCacheSize}), so a job sent to a worker which already has its fixed image
+ * does not transfer it again.
+ *
+ * The fixed image key (hash of its content) is placed on a consistent hashing ring where each live worker has
+ * {@link JobRouter#virtualNodesPerSlot} points per slot. The target of a job is the first worker clockwise
+ * from its key whose load is below the bound (consistent hashing with bounded load): number of running jobs
+ * below ceil({@link JobRouter#loadFactor} * (running jobs of the cluster + 1) * worker slots / cluster slots), and below its slots.
+ * Adding or removing a worker only moves the keys of its neighbours on the ring, so the caches of the other workers stay warm.
+ *
+ * A pending job is only given to its target, unless it has waited more than {@link JobRouter#spillDelayInMs}:
+ * it then goes to any worker asking for a job.
+ */
+public class JobRouter {
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, max load of a worker relative to the mean load, above 1
+     */
+    public static double loadFactor = 1.25;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, after this delay a job is given to any worker
+     */
+    public static int spillDelayInMs = 100;
+
+    /**
+     * Points of a worker on the ring per slot
+     */
+    public static int virtualNodesPerSlot = 40;
+
+    TreeMap<Long, ClusterCoordinator.Worker> ring = new TreeMap<>();
+
+    List<ClusterCoordinator.Worker> members = new ArrayList<>();
+
+    String ringWorkers = "";
+
+    /**
+     * Rebuilds the ring if the live workers changed
+     * @param workers live workers
+     */
+    void update(Collection<ClusterCoordinator.Worker> workers) {
+        TreeSet<String> names = new TreeSet<>();
+        for (ClusterCoordinator.Worker worker : workers) names.add(worker.name + "/" + worker.slots);
+        String signature = String.join(",", names);
+        if (signature.equals(ringWorkers)) return;
+        TreeMap<Long, ClusterCoordinator.Worker> newRing = new TreeMap<>();
+        for (ClusterCoordinator.Worker worker : workers) {
+            for (int i = 0; i < virtualNodesPerSlot * Math.max(1, worker.slots); i++) {
+                newRing.put(hash(worker.name + "#" + i), worker);
+            }
+        }
+        ring = newRing;
+        members = new ArrayList<>(workers);
+        ringWorkers = signature;
+    }
+
+    /**
+     * @param key fixed image key
+     * @return the first worker of the ring from the key with a load below the bound, null if all workers are full
+     */
+    ClusterCoordinator.Worker target(String key) {
+        if (ring.isEmpty()) return null;
+        int runningJobs = 0, slots = 0;
+        for (ClusterCoordinator.Worker worker : members) {
+            runningJobs += worker.running.size();
+            slots += worker.slots;
+        }
+        long position = Long.parseUnsignedLong(key.substring(0, 15), 16);
+        for (ClusterCoordinator.Worker worker : ring.tailMap(position).values()) {
+            if (isBelowBound(worker, runningJobs, slots)) return worker;
+        }
+        for (ClusterCoordinator.Worker worker : ring.headMap(position).values()) {
+            if (isBelowBound(worker, runningJobs, slots)) return worker;
+        }
+        return null;
+    }
+
+    static boolean isBelowBound(ClusterCoordinator.Worker worker, int runningJobs, int slots) {
+        int running = worker.running.size();
+        double bound = Math.ceil(loadFactor * (runningJobs + 1) * worker.slots / Math.max(1, slots));
+        return (running < bound) && (running < worker.slots);
+    }
+
+    /**
+     * @param job pending job
+     * @return the worker the job should be given to, null if any worker can take it
+     */
+    ClusterCoordinator.Worker target(ClusterCoordinator.DispatchedJob job) {
+        return (job.description.fixedImageKey == null) ? null : target(job.description.fixedImageKey);
+    }
+
+    static long hash(String text) {
+        byte[] digest = digest().digest(text.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) hash = (hash << 8) | (digest[i] & 0xFF);
+        return hash >>> 4; // same range as the 15 hex digits of the keys
+    }
+
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // SHA-256 is available on all java platforms
+        }
+    }
+
+    /**
+     * @param file fixed image
+     * @return the content key of the file : hex SHA-256 of its content
+     * @throws IOException if the file cannot be read
+     */
+    static String key(File file) throws IOException {
+        MessageDigest digest = digest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream is = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = is.read(buffer)) > 0) digest.update(buffer, 0, read);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
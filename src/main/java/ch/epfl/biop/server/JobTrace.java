@@ -0,0 +1,209 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Timeline of a job: timestamped events from its enqueue request to the moment its result is sent
+ *
+ * Elastix jobs events: enqueue, poll (each queue update request), ready, upload_start, upload_end, process_start,
+ * process_end, zip, send. Transformix jobs have the same events, except the queue ones.
+ *
+ * The traces of the last {@link JobTrace#maxNumberOfTraces} jobs are kept in memory and can be retrieved from the
+ * {@link JobsServlet}. A summary is sent to the client in the Server-Timing header of the result (see {@link JobTrace#getServerTiming()})
+ *
+ */
+public class JobTrace {
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, number of recent jobs for which the trace is kept
+     */
+    public static int maxNumberOfTraces = 1000;
+
+    /**
+     * Limits the memory taken by a job whose client polls the queue a lot
+     */
+    final static int maxNumberOfEvents = 256;
+
+    final static Map<String, JobTrace> traces = new ConcurrentHashMap<>();
+
+    /**
+     * Keys of the traces, oldest first, to remove the oldest traces
+     */
+    final static ConcurrentLinkedQueue<String> tracesOrder = new ConcurrentLinkedQueue<>();
+
+    final String task;
+
+    final long jobId;
+
+    final long startEpochMs = System.currentTimeMillis();
+
+    final long startNs = System.nanoTime();
+
+    final List<Event> events = new ArrayList<>();
+
+    JobTrace(String task, long jobId) {
+        this.task = task;
+        this.jobId = jobId;
+    }
+
+    static String key(String task, long jobId) {
+        return task + "/" + jobId;
+    }
+
+    /**
+     * @param task {@link ServerMetrics#ELASTIX} or {@link ServerMetrics#TRANSFORMIX}
+     * @param jobId id of the job
+     * @return the trace of this job, created if it does not exist yet
+     */
+    public static JobTrace get(String task, long jobId) {
+        String key = key(task, jobId);
+        JobTrace trace = traces.get(key);
+        if (trace != null) return trace;
+        JobTrace newTrace = new JobTrace(task, jobId);
+        trace = traces.putIfAbsent(key, newTrace);
+        if (trace != null) return trace;
+        tracesOrder.add(key);
+        while (tracesOrder.size() > maxNumberOfTraces) {
+            String oldest = tracesOrder.poll();
+            if (oldest == null) break;
+            traces.remove(oldest);
+        }
+        return newTrace;
+    }
+
+    /**
+     * @param task {@link ServerMetrics#ELASTIX} or {@link ServerMetrics#TRANSFORMIX}
+     * @param jobId id of the job
+     * @return the trace of this job, or null if it is unknown or too old
+     */
+    public static JobTrace find(String task, long jobId) {
+        return traces.get(key(task, jobId));
+    }
+
+    /**
+     * Records that an event happened now
+     * @param name of the event
+     */
+    public void mark(String name) {
+        double atMs = (System.nanoTime() - startNs) / 1e6;
+        synchronized (events) {
+            if (events.size() < maxNumberOfEvents) {
+                events.add(new Event(name, atMs));
+            }
+        }
+    }
+
+    /**
+     * @param name of the event
+     * @return time of the last occurrence of this event in ms since the trace creation, or -1
+     */
+    double lastTime(String name) {
+        synchronized (events) {
+            for (int i = events.size() - 1; i >= 0; i--) {
+                if (events.get(i).name.equals(name)) return events.get(i).atMs;
+            }
+        }
+        return -1;
+    }
+
+    double duration(String fromEvent, String toEvent) {
+        double from = lastTime(fromEvent);
+        double to = lastTime(toEvent);
+        if ((from < 0) || (to < 0)) return -1;
+        return to - from;
+    }
+
+    /**
+     * @return the duration of each stage known so far, formatted for a Server-Timing http header,
+     * for instance: queue;dur=5012.3, upload;dur=20.1, run;dur=4012.0, zip;dur=2.3
+     */
+    public String getServerTiming() {
+        StringBuilder sb = new StringBuilder();
+        appendTiming(sb, "queue", duration("enqueue", "ready"));
+        appendTiming(sb, "upload", duration("upload_start", "upload_end"));
+        appendTiming(sb, "run", duration("process_start", "process_end"));
+        appendTiming(sb, "zip", duration("process_end", "zip"));
+        return sb.toString();
+    }
+
+    private static void appendTiming(StringBuilder sb, String stage, double durationInMs) {
+        if (durationInMs < 0) return;
+        if (sb.length() > 0) sb.append(", ");
+        sb.append(stage).append(";dur=").append(String.format(Locale.ROOT, "%.1f", durationInMs));
+    }
+
+    /**
+     * @return a snapshot of this trace, which can be serialized while the job is still running
+     */
+    Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.task = task;
+        snapshot.jobId = jobId;
+        snapshot.startEpochMs = startEpochMs;
+        synchronized (events) {
+            snapshot.events = new ArrayList<>(events);
+        }
+        snapshot.serverTiming = getServerTiming();
+        return snapshot;
+    }
+
+    static class Snapshot {
+        String task;
+        long jobId;
+        long startEpochMs;
+        List<Event> events;
+        String serverTiming;
+    }
+
+    public static class Event {
+
+        final String name;
+
+        /**
+         * Time of the event in ms since the trace creation
+         */
+        final double atMs;
+
+        Event(String name, double atMs) {
+            this.name = name;
+            this.atMs = atMs;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import com.google.gson.Gson;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+
+/**
+ * Servlet giving access to the recent jobs:
+ *
+ * http://servername/jobs/{id}/trace returns the json timeline of an elastix job
+ * http://servername/jobs/{id}/trace?task=transformix returns the json timeline of a transformix job
+ *
+ * see {@link JobTrace}
+ *
+ * Archived jobs contain user data : they can only be accessed from the server machine (loopback address)
+ *
+ * http://localhost/jobs/archive returns the json index of the archived jobs
+ * http://localhost/jobs/{id}/archive returns the zip of an archived elastix job
+ *
+ * see {@link JobArchive}
+ *
+ */
+
+public class JobsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // Expected path info : /{id}/trace, /{id}/archive or /archive
+        String pathInfo = request.getPathInfo();
+        String[] parts = (pathInfo == null) ? new String[0] : pathInfo.split("/");
+
+        if ((parts.length == 2) && (parts[1].equals("archive"))) {
+            if (isNotLocal(request, response)) return;
+            ArchiveIndex archiveIndex = new ArchiveIndex();
+            archiveIndex.sizeInBytes = JobArchive.getSizeInBytes();
+            archiveIndex.maxSizeInBytes = JobArchive.maxSizeInBytes;
+            archiveIndex.jobs = JobArchive.list();
+            response.setContentType("application/json");
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().println(new Gson().toJson(archiveIndex));
+            return;
+        }
+
+        if ((parts.length != 3) || ((!parts[2].equals("trace")) && (!parts[2].equals("archive")))) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        long jobId;
+        try {
+            jobId = Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        if (parts[2].equals("archive")) {
+            if (isNotLocal(request, response)) return;
+            JobArchive.Entry entry = JobArchive.find(jobId);
+            if (entry == null) {
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            response.setContentType("application/zip");
+            response.addHeader("Content-Disposition", "attachment; filename=job_" + jobId + ".zip");
+            response.setContentLengthLong(entry.dataLength);
+            response.setStatus(HttpServletResponse.SC_OK);
+            if (!JobArchive.copyTo(jobId, response.getOutputStream())) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND); // Evicted in the meantime
+            }
+            return;
+        }
+
+        String task = request.getParameter("task");
+        if (task == null) task = ServerMetrics.ELASTIX;
+
+        JobTrace trace = JobTrace.find(task, jobId);
+        if (trace == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        response.setContentType("application/json");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(new Gson().toJson(trace.snapshot()));
+    }
+
+    static boolean isNotLocal(HttpServletRequest request, HttpServletResponse response) {
+        try {
+            if (InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress()) return false;
+        } catch (UnknownHostException e) {
+            // Not local
+        }
+        response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+        return true;
+    }
+
+    public static class ArchiveIndex {
+        long sizeInBytes;
+        long maxSizeInBytes;
+        List<JobArchive.Entry> jobs;
+    }
+}
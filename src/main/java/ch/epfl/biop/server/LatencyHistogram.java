@@ -0,0 +1,123 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with fixed buckets, exported in the Prometheus text format by the {@link MetricsServlet}
+ *
+ * Recording a value only increments atomic counters: it can be called from any request thread without contention
+ *
+ */
+public class LatencyHistogram {
+
+    /**
+     * Upper bounds of the buckets in seconds, from 1 ms to 10 min - the last bucket (+Inf) is implicit
+     */
+    final static double[] bucketUpperBoundsInS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+            1, 2.5, 5, 10, 20, 30, 60, 120, 300, 600
+    };
+
+    final static long[] bucketUpperBoundsInNs = new long[bucketUpperBoundsInS.length];
+
+    static {
+        for (int i = 0; i < bucketUpperBoundsInS.length; i++) {
+            bucketUpperBoundsInNs[i] = (long) (bucketUpperBoundsInS[i] * 1e9);
+        }
+    }
+
+    /**
+     * Non cumulative counts, the last element counts values above the last bound
+     */
+    final AtomicLongArray counts = new AtomicLongArray(bucketUpperBoundsInS.length + 1);
+
+    final LongAdder sumInNs = new LongAdder();
+
+    final LongAdder count = new LongAdder();
+
+    /**
+     * @param durationInNs duration to record, in nanoseconds
+     */
+    public void record(long durationInNs) {
+        if (durationInNs < 0) durationInNs = 0;
+        int bucket = 0;
+        while (bucket < bucketUpperBoundsInNs.length && durationInNs > bucketUpperBoundsInNs[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        sumInNs.add(durationInNs);
+        count.increment();
+    }
+
+    /**
+     * Records the time elapsed since a {@link System#nanoTime()} value
+     * @param startInNs start time, given by {@link System#nanoTime()}
+     */
+    public void recordSince(long startInNs) {
+        record(System.nanoTime() - startInNs);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the mean of all recorded values in ms, or -1 if no value has been recorded
+     */
+    public double getMeanInMs() {
+        long n = count.sum();
+        if (n == 0) return -1;
+        return sumInNs.sum() / 1e6 / n;
+    }
+
+    /**
+     * Appends this histogram in the Prometheus text format
+     * @param sb where to write
+     * @param name metric name
+     * @param labels labels of this histogram, without braces, for instance: task="elastix",stage="run"
+     */
+    void writeTo(StringBuilder sb, String name, String labels) {
+        long cumulative = 0;
+        for (int i = 0; i < bucketUpperBoundsInS.length; i++) {
+            cumulative += counts.get(i);
+            sb.append(name).append("_bucket{").append(labels).append(",le=\"").append(bucketUpperBoundsInS[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts.get(bucketUpperBoundsInS.length);
+        sb.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+        sb.append(name).append("_sum{").append(labels).append("} ").append(sumInNs.sum() / 1e9).append('\n');
+        sb.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+}
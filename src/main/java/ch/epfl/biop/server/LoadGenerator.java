@@ -0,0 +1,613 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import ch.epfl.biop.wrappers.RemoteTaskClient;
+import ch.epfl.biop.wrappers.RemoteTaskExecutor;
+import ch.epfl.biop.wrappers.elastix.ElastixTaskSettings;
+import ch.epfl.biop.wrappers.elastix.RegParamAffine_Fast;
+import ch.epfl.biop.wrappers.elastix.RegisterHelper;
+import ch.epfl.biop.wrappers.elastix.RemoteElastixTask;
+import ch.epfl.biop.wrappers.transformix.RemoteTransformixTask;
+import ch.epfl.biop.wrappers.transformix.TransformixTaskSettings;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End to end load test of a registration server :
+ *
+ * java -cp biop_registration_server-x.y.z.jar ch.epfl.biop.server.LoadGenerator loadtest.json (optional)
+ *
+ * See {@link LoadGeneratorConfig} for the parameters. Without argument, the default configuration is printed and used.
+ *
+ * Elastix and transformix requests are sent through {@link RemoteElastixTask} and {@link RemoteTransformixTask}, as Fiji does.
+ * Their inputs are synthetic : two shifted images of blobs, an identity affine transform and random points.
+ *
+ * At the end of the test, a json report is written with, for elastix, transformix and all requests:
+ * the throughput, the latencies (p50, p99, p999, max), the rejection and error rates, and with the time series
+ * of the queue depth of the server. If a baseline report is given, both reports are compared.
+ *
+ * For the open workload, the latency is measured from the scheduled arrival time of the request, so that
+ * a slow request sender does not hide server delays.
+ *
+ * Every server side performance change should come with the reports of this load test, before and after the change
+ */
+public class LoadGenerator {
+
+    final LoadGeneratorConfig config;
+
+    final Random random;
+
+    final RequestRecorder elastix = new RequestRecorder();
+
+    final RequestRecorder transformix = new RequestRecorder();
+
+    final List<QueueSample> queueDepth = new ArrayList<>();
+
+    final AtomicLong requestIndex = new AtomicLong();
+
+    final AtomicInteger requestsInFlight = new AtomicInteger();
+
+    final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, r -> {
+        Thread t = new Thread(r, "load-generator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    String serverUrl;
+
+    String fixedImagePath, movingImagePath, elastixParametersPath, transformPath, pointsPath;
+
+    long startTimeInNs, warmupEndInNs, endInNs;
+
+    public LoadGenerator(LoadGeneratorConfig config) {
+        this.config = config;
+        this.random = new Random(config.seed);
+    }
+
+    public static void main(String... args) throws Exception {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        LoadGeneratorConfig config;
+        if ((args == null) || (args.length == 0)) {
+            config = new LoadGeneratorConfig();
+            System.out.println("No args, using default load test configuration:");
+            System.out.println(gson.toJson(config));
+        } else {
+            try (Reader reader = Files.newBufferedReader(Paths.get(args[0]))) {
+                config = gson.fromJson(reader, LoadGeneratorConfig.class);
+            }
+        }
+
+        LoadReport report = new LoadGenerator(config).run();
+
+        if ((config.baselineReportFile != null) && (new File(config.baselineReportFile).exists())) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(config.baselineReportFile))) {
+                compare(gson.fromJson(reader, LoadReport.class), report);
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Starts the embedded server if needed, sends the requests, waits for them and writes the report
+     * @return the report of the load test
+     * @throws Exception if the server or the inputs cannot be set up
+     */
+    public LoadReport run() throws Exception {
+        RegistrationServer embeddedServer = null;
+        if ((config.serverUrl == null) || (config.serverUrl.isEmpty())) {
+            System.out.println("--- Starting embedded registration server on port " + config.server.localPort);
+            embeddedServer = new RegistrationServer(config.server);
+            embeddedServer.start(config.server.localPort);
+            serverUrl = "http://localhost:" + config.server.localPort;
+        } else {
+            serverUrl = config.serverUrl;
+        }
+        // The client is created with the protocol of this load test
+        RemoteTaskClient.close();
+        RemoteTaskClient.http2 = config.http2;
+        RemoteTaskClient.useUnixSocket(serverUrl, config.unixSocket.isEmpty() ? null : config.unixSocket);
+        RemoteTaskExecutor.close();
+        RemoteTaskExecutor.virtualThreads = config.virtualThreads;
+
+        try {
+            createInputs();
+
+            System.out.println("--- Load test on " + serverUrl + " : " + config.workload + " workload, "
+                    + config.warmupInS + " s warmup, " + config.durationInS + " s measurement");
+
+            startTimeInNs = System.nanoTime();
+            warmupEndInNs = startTimeInNs + TimeUnit.SECONDS.toNanos(config.warmupInS);
+            endInNs = warmupEndInNs + TimeUnit.SECONDS.toNanos(config.durationInS);
+
+            scheduler.scheduleAtFixedRate(this::sampleQueue, 0, config.queueSamplingPeriodInMs, TimeUnit.MILLISECONDS);
+
+            if (config.workload.equals("open")) {
+                runOpenWorkload();
+            } else if (config.workload.equals("closed")) {
+                runClosedWorkload();
+            } else {
+                throw new IllegalArgumentException("Unknown workload " + config.workload + ", it should be open or closed");
+            }
+
+            // Lets the requests in flight complete
+            long drainEndInNs = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.drainTimeoutInS);
+            while ((requestsInFlight.get() > 0) && (System.nanoTime() < drainEndInNs)) {
+                Thread.sleep(100);
+            }
+            if (requestsInFlight.get() > 0) {
+                System.out.println("--- " + requestsInFlight.get() + " requests still in flight after the drain timeout");
+            }
+            scheduler.shutdownNow();
+
+            LoadReport report = createReport();
+            Gson gson = new GsonBuilder().setPrettyPrinting().create();
+            try (PrintWriter writer = new PrintWriter(config.reportFile, StandardCharsets.UTF_8.name())) {
+                writer.println(gson.toJson(report));
+            }
+            report.print();
+            System.out.println("--- Report written in " + config.reportFile);
+            return report;
+        } finally {
+            if (embeddedServer != null) {
+                embeddedServer.stop();
+            }
+        }
+    }
+
+    /**
+     * Poisson arrivals at {@link LoadGeneratorConfig#arrivalRatePerS}
+     */
+    void runOpenWorkload() throws InterruptedException {
+        long arrivalInNs = startTimeInNs;
+        while (true) {
+            arrivalInNs += (long) (-Math.log(1 - random.nextDouble()) / config.arrivalRatePerS * 1e9);
+            if (arrivalInNs >= endInNs) return;
+            long delayInNs = arrivalInNs - System.nanoTime();
+            if (delayInNs > 0) {
+                TimeUnit.NANOSECONDS.sleep(delayInNs);
+            }
+            send(arrivalInNs, random.nextDouble() < config.elastixFraction);
+        }
+    }
+
+    /**
+     * {@link LoadGeneratorConfig#numberOfUsers} users, each one sending a request after the previous one is done
+     */
+    void runClosedWorkload() throws InterruptedException {
+        for (int i = 0; i < config.numberOfUsers; i++) {
+            nextUserRequest();
+        }
+        TimeUnit.NANOSECONDS.sleep(Math.max(0, endInNs - System.nanoTime()));
+    }
+
+    void nextUserRequest() {
+        long nowInNs = System.nanoTime();
+        if (nowInNs >= endInNs) return;
+        boolean isElastix;
+        synchronized (random) {
+            isElastix = random.nextDouble() < config.elastixFraction;
+        }
+        // Always goes through the scheduler : a request failing immediately does not recurse
+        send(nowInNs, isElastix).whenComplete((v, e) ->
+                scheduler.schedule(this::nextUserRequest, config.thinkTimeInMs, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Sends a request asynchronously and records its outcome
+     * @param arrivalInNs {@link System#nanoTime()} at which the request should be sent
+     * @param isElastix elastix request if true, transformix request otherwise
+     * @return a future completed when the request is done, successfully or not
+     */
+    CompletableFuture<Void> send(long arrivalInNs, boolean isElastix) {
+        RequestRecorder recorder = isElastix ? elastix : transformix;
+        boolean measured = arrivalInNs >= warmupEndInNs;
+        String outputFolder = config.workingFolder + "out" + File.separator + (isElastix ? "elastix_" : "transformix_") + requestIndex.getAndIncrement() + File.separator;
+
+        CompletableFuture<Void> result;
+        try {
+            Files.createDirectories(Paths.get(outputFolder));
+            if (isElastix) {
+                RemoteElastixTask task = new RemoteElastixTask(serverUrl);
+                task.setSettings(new ElastixTaskSettings()
+                        .fixedImage(() -> fixedImagePath)
+                        .movingImage(() -> movingImagePath)
+                        .addTransform(() -> elastixParametersPath)
+                        .outFolder(() -> outputFolder));
+                result = task.runAsync();
+            } else {
+                RemoteTransformixTask task = new RemoteTransformixTask(serverUrl);
+                task.setSettings(new TransformixTaskSettings()
+                        .pts(() -> pointsPath)
+                        .transform(() -> transformPath)
+                        .outFolder(() -> outputFolder));
+                result = task.runAsync();
+            }
+        } catch (Exception e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+
+        if (measured) recorder.sent.incrementAndGet();
+        requestsInFlight.incrementAndGet();
+
+        return result.handle((v, e) -> {
+            long latencyInNs = System.nanoTime() - arrivalInNs;
+            if (measured) {
+                if (e == null) {
+                    recorder.recordLatency(latencyInNs);
+                } else if (isRejection(e)) {
+                    recorder.rejected.incrementAndGet();
+                } else {
+                    recorder.errors.incrementAndGet();
+                }
+            }
+            FileUtils.deleteQuietly(new File(outputFolder));
+            requestsInFlight.decrementAndGet();
+            return null;
+        });
+    }
+
+    /**
+     * @param e error of a request
+     * @return true if the server rejected the request because it is overloaded (503)
+     */
+    static boolean isRejection(Throwable e) {
+        Throwable cause = (e instanceof CompletionException) && (e.getCause() != null) ? e.getCause() : e;
+        return (cause instanceof HttpException) && (cause.getMessage() != null)
+                && ((cause.getMessage().contains("overload")) || (cause.getMessage().contains("503")));
+    }
+
+    void sampleQueue() {
+        HttpGet request = new HttpGet(serverUrl + RegistrationServer.STATUS_PATH);
+        request.setConfig(RemoteTaskClient.getRequestConfig(Math.max(100, config.queueSamplingPeriodInMs)));
+        try (CloseableHttpResponse response = RemoteTaskClient.getHttpClient().execute(request)) {
+            JsonObject status = new JsonParser().parse(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8)).getAsJsonObject();
+            QueueSample sample = new QueueSample();
+            sample.timeInMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTimeInNs);
+            sample.elastixTasksEnqueued = status.get("numberOfElastixTasksEnqueued").getAsInt();
+            sample.elastixTasksRunning = status.get("numberOfCurrentElastixTasks").getAsInt();
+            sample.transformixTasksRunning = status.get("numberOfCurrentTransformixTasks").getAsInt();
+            sample.requestsInFlight = requestsInFlight.get();
+            synchronized (queueDepth) {
+                queueDepth.add(sample);
+            }
+        } catch (Exception e) {
+            // The sample is missing from the time series
+        }
+    }
+
+    /**
+     * Writes the synthetic inputs in the working folder
+     * @throws IOException if a file cannot be written
+     */
+    void createInputs() throws IOException {
+        File folder = new File(config.workingFolder);
+        Files.createDirectories(folder.toPath());
+        int size = config.imageSizeInPixels;
+
+        fixedImagePath = new File(folder, "fixed_" + size + ".tif").getAbsolutePath();
+        writeBlobsTiff(new File(fixedImagePath), size, 0, config.seed);
+
+        movingImagePath = new File(folder, "moving_" + size + ".tif").getAbsolutePath();
+        writeBlobsTiff(new File(movingImagePath), size, Math.max(1, size / 20), config.seed);
+
+        elastixParametersPath = RegisterHelper.getFileFromRegistrationParameters(new RegParamAffine_Fast());
+
+        transformPath = new File(folder, "identity_transform.txt").getAbsolutePath();
+        writeIdentityTransform(new File(transformPath), size);
+
+        pointsPath = new File(folder, "points_" + config.numberOfPointsPerTransformixRequest + ".txt").getAbsolutePath();
+        Random pointsRandom = new Random(config.seed);
+        try (PrintWriter writer = new PrintWriter(pointsPath, StandardCharsets.UTF_8.name())) {
+            writer.println("point");
+            writer.println(config.numberOfPointsPerTransformixRequest);
+            for (int i = 0; i < config.numberOfPointsPerTransformixRequest; i++) {
+                writer.println(pointsRandom.nextDouble() * size + " " + pointsRandom.nextDouble() * size);
+            }
+        }
+    }
+
+    /**
+     * Writes an uncompressed 8 bits grayscale tiff of gaussian blobs
+     * @param file to write
+     * @param size width and height of the image
+     * @param shift translation of the blobs, in pixels, along x and y
+     * @param seed of the blobs positions
+     * @throws IOException if the file cannot be written
+     */
+    static void writeBlobsTiff(File file, int size, int shift, long seed) throws IOException {
+        Random blobsRandom = new Random(seed);
+        int numberOfBlobs = 12;
+        double[] x = new double[numberOfBlobs], y = new double[numberOfBlobs], sigma = new double[numberOfBlobs];
+        for (int i = 0; i < numberOfBlobs; i++) {
+            x[i] = size * (0.15 + 0.7 * blobsRandom.nextDouble()) + shift;
+            y[i] = size * (0.15 + 0.7 * blobsRandom.nextDouble()) + shift;
+            sigma[i] = size * (0.03 + 0.05 * blobsRandom.nextDouble());
+        }
+
+        byte[] pixels = new byte[size * size];
+        for (int py = 0; py < size; py++) {
+            for (int px = 0; px < size; px++) {
+                double value = 0;
+                for (int i = 0; i < numberOfBlobs; i++) {
+                    double dx = px - x[i], dy = py - y[i];
+                    value += Math.exp(-(dx * dx + dy * dy) / (2 * sigma[i] * sigma[i]));
+                }
+                pixels[py * size + px] = (byte) Math.min(255, (int) (200 * value));
+            }
+        }
+
+        // Little endian tiff : header, a single image file directory, then the pixels in a single strip
+        int numberOfEntries = 9;
+        int dataOffset = 8 + 2 + numberOfEntries * 12 + 4;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeByte('I');
+            out.writeByte('I');
+            writeShort(out, 42);
+            writeInt(out, 8);
+            writeShort(out, numberOfEntries);
+            writeEntry(out, 256, 4, size);           // ImageWidth
+            writeEntry(out, 257, 4, size);           // ImageLength
+            writeEntry(out, 258, 3, 8);              // BitsPerSample
+            writeEntry(out, 259, 3, 1);              // Compression : none
+            writeEntry(out, 262, 3, 1);              // PhotometricInterpretation : black is zero
+            writeEntry(out, 273, 4, dataOffset);     // StripOffsets
+            writeEntry(out, 277, 3, 1);              // SamplesPerPixel
+            writeEntry(out, 278, 4, size);           // RowsPerStrip
+            writeEntry(out, 279, 4, size * size);    // StripByteCounts
+            writeInt(out, 0);                        // No next image file directory
+            out.write(pixels);
+        }
+    }
+
+    static void writeEntry(DataOutputStream out, int tag, int type, int value) throws IOException {
+        writeShort(out, tag);
+        writeShort(out, type);
+        writeInt(out, 1);
+        if (type == 3) { // SHORT values are left justified
+            writeShort(out, value);
+            writeShort(out, 0);
+        } else {
+            writeInt(out, value);
+        }
+    }
+
+    static void writeShort(OutputStream out, int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >> 8) & 0xFF);
+    }
+
+    static void writeInt(OutputStream out, int value) throws IOException {
+        writeShort(out, value & 0xFFFF);
+        writeShort(out, (value >> 16) & 0xFFFF);
+    }
+
+    static void writeIdentityTransform(File file, int size) throws IOException {
+        try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+            writer.println("(Transform \"AffineTransform\")");
+            writer.println("(NumberOfParameters 6)");
+            writer.println("(TransformParameters 1 0 0 1 0 0)");
+            writer.println("(InitialTransformParametersFileName \"NoInitialTransform\")");
+            writer.println("(HowToCombineTransforms \"Compose\")");
+            writer.println("(FixedImageDimension 2)");
+            writer.println("(MovingImageDimension 2)");
+            writer.println("(FixedInternalImagePixelType \"float\")");
+            writer.println("(MovingInternalImagePixelType \"float\")");
+            writer.println("(Size " + size + " " + size + ")");
+            writer.println("(Index 0 0)");
+            writer.println("(Spacing 1 1)");
+            writer.println("(Origin 0 0)");
+            writer.println("(Direction 1 0 0 1)");
+            writer.println("(UseDirectionCosines \"true\")");
+            writer.println("(CenterOfRotationPoint 0 0)");
+            writer.println("(ResampleInterpolator \"FinalBSplineInterpolator\")");
+            writer.println("(FinalBSplineInterpolationOrder 3)");
+            writer.println("(Resampler \"DefaultResampler\")");
+            writer.println("(DefaultPixelValue 0)");
+            writer.println("(ResultImageFormat \"mhd\")");
+            writer.println("(ResultImagePixelType \"short\")");
+            writer.println("(CompressResultImage \"false\")");
+        }
+    }
+
+    LoadReport createReport() {
+        LoadReport report = new LoadReport();
+        report.date = Instant.now().toString();
+        report.serverUrl = serverUrl;
+        report.config = config;
+        report.elastix = elastix.getStats(config.durationInS);
+        report.transformix = transformix.getStats(config.durationInS);
+        RequestRecorder all = new RequestRecorder();
+        all.add(elastix);
+        all.add(transformix);
+        report.all = all.getStats(config.durationInS);
+        synchronized (queueDepth) {
+            report.queueDepth = new ArrayList<>(queueDepth);
+        }
+        return report;
+    }
+
+    /**
+     * Prints the differences between a baseline report and a new report
+     * @param baseline report before the change
+     * @param report report after the change
+     */
+    public static void compare(LoadReport baseline, LoadReport report) {
+        System.out.println("--- Comparison with the baseline of " + baseline.date);
+        System.out.println(String.format("%-24s %14s %14s %10s", "all requests", "baseline", "current", "change"));
+        compare("throughput (req/s)", baseline.all.throughputPerS, report.all.throughputPerS);
+        compare("p50 (ms)", baseline.all.p50InMs, report.all.p50InMs);
+        compare("p99 (ms)", baseline.all.p99InMs, report.all.p99InMs);
+        compare("p999 (ms)", baseline.all.p999InMs, report.all.p999InMs);
+        compare("max (ms)", baseline.all.maxInMs, report.all.maxInMs);
+        compare("rejection rate", baseline.all.rejectionRate, report.all.rejectionRate);
+        compare("error rate", baseline.all.errorRate, report.all.errorRate);
+        compare("max elastix queue", baseline.getMaxElastixQueue(), report.getMaxElastixQueue());
+    }
+
+    static void compare(String name, double baseline, double current) {
+        String change = (baseline != 0) ? String.format("%+.1f %%", 100 * (current - baseline) / baseline) : "-";
+        System.out.println(String.format("%-24s %14.3f %14.3f %10s", name, baseline, current, change));
+    }
+
+    /**
+     * Outcomes of one type of request
+     */
+    static class RequestRecorder {
+
+        final AtomicLong sent = new AtomicLong();
+
+        final AtomicLong rejected = new AtomicLong();
+
+        final AtomicLong errors = new AtomicLong();
+
+        long[] latenciesInNs = new long[1024];
+
+        int numberOfLatencies = 0;
+
+        synchronized void recordLatency(long latencyInNs) {
+            if (numberOfLatencies == latenciesInNs.length) {
+                latenciesInNs = Arrays.copyOf(latenciesInNs, 2 * latenciesInNs.length);
+            }
+            latenciesInNs[numberOfLatencies++] = latencyInNs;
+        }
+
+        synchronized void add(RequestRecorder other) {
+            sent.addAndGet(other.sent.get());
+            rejected.addAndGet(other.rejected.get());
+            errors.addAndGet(other.errors.get());
+            synchronized (other) {
+                for (int i = 0; i < other.numberOfLatencies; i++) {
+                    recordLatency(other.latenciesInNs[i]);
+                }
+            }
+        }
+
+        synchronized RequestStats getStats(int durationInS) {
+            RequestStats stats = new RequestStats();
+            stats.sent = sent.get();
+            stats.completed = numberOfLatencies;
+            stats.rejected = rejected.get();
+            stats.errors = errors.get();
+            stats.throughputPerS = (double) numberOfLatencies / Math.max(1, durationInS);
+            stats.rejectionRate = (stats.sent > 0) ? (double) stats.rejected / stats.sent : 0;
+            stats.errorRate = (stats.sent > 0) ? (double) stats.errors / stats.sent : 0;
+            if (numberOfLatencies > 0) {
+                long[] sorted = Arrays.copyOf(latenciesInNs, numberOfLatencies);
+                Arrays.sort(sorted);
+                stats.meanInMs = Arrays.stream(sorted).average().getAsDouble() / 1e6;
+                stats.p50InMs = percentile(sorted, 0.5);
+                stats.p99InMs = percentile(sorted, 0.99);
+                stats.p999InMs = percentile(sorted, 0.999);
+                stats.maxInMs = sorted[sorted.length - 1] / 1e6;
+            }
+            return stats;
+        }
+
+        static double percentile(long[] sorted, double p) {
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+        }
+    }
+
+    public static class RequestStats {
+        public long sent, completed, rejected, errors;
+        public double throughputPerS, rejectionRate, errorRate;
+        public double meanInMs, p50InMs, p99InMs, p999InMs, maxInMs;
+
+        void print(String name) {
+            System.out.println(String.format("%-12s sent %6d - completed %6d - rejected %6d - errors %6d - %.2f req/s - p50 %.1f ms - p99 %.1f ms - p999 %.1f ms - max %.1f ms",
+                    name, sent, completed, rejected, errors, throughputPerS, p50InMs, p99InMs, p999InMs, maxInMs));
+        }
+    }
+
+    public static class QueueSample {
+        public long timeInMs;
+        public int elastixTasksEnqueued, elastixTasksRunning, transformixTasksRunning, requestsInFlight;
+    }
+
+    /**
+     * Json report of a load test
+     */
+    public static class LoadReport {
+        public String date;
+        public String serverUrl;
+        public LoadGeneratorConfig config;
+        public RequestStats elastix, transformix, all;
+        public List<QueueSample> queueDepth;
+
+        double getMaxElastixQueue() {
+            return (queueDepth == null) ? 0 : queueDepth.stream().mapToInt(s -> s.elastixTasksEnqueued).max().orElse(0);
+        }
+
+        void print() {
+            System.out.println("--- Load test report");
+            elastix.print("elastix");
+            transformix.print("transformix");
+            all.print("all");
+            System.out.println("Max elastix queue size : " + (int) getMaxElastixQueue());
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+/**
+ * Parameters of a load test performed by {@link LoadGenerator}
+ *
+ * This object is created by deserializing a json file given as an argument to {@link LoadGenerator}
+ *
+ * Keep the json of each load test with its report : with the same seed and the same configuration,
+ * the same sequence of requests is sent to the server.
+ */
+public class LoadGeneratorConfig {
+
+    /**
+     * Url of the server to test. If null or empty, an embedded server is started with {@link LoadGeneratorConfig#server}
+     */
+    public String serverUrl = null;
+
+    /**
+     * Configuration of the embedded server
+     */
+    public RegistrationServerConfig server = new RegistrationServerConfig();
+
+    /**
+     * Sends the requests over HTTP/2 (the server should have http2 enabled), see {@link ch.epfl.biop.wrappers.RemoteTaskClient#http2}
+     */
+    public boolean http2 = false;
+
+    /**
+     * If not empty, the requests are sent through this unix socket of the server, see {@link RegistrationServerConfig#unixSocket}
+     */
+    public String unixSocket = "";
+
+    /**
+     * Sends the requests from virtual threads if they are available, see {@link ch.epfl.biop.wrappers.RemoteTaskExecutor#virtualThreads}
+     */
+    public boolean virtualThreads = false;
+
+    /**
+     * "open" : requests arrive at a fixed mean rate {@link LoadGeneratorConfig#arrivalRatePerS} (Poisson arrivals), whatever the server response time
+     * "closed" : {@link LoadGeneratorConfig#numberOfUsers} users send a new request as soon as their previous request is done (plus a think time)
+     */
+    public String workload = "closed";
+
+    /**
+     * Open workload only, mean number of requests sent per second
+     */
+    public double arrivalRatePerS = 2;
+
+    /**
+     * Closed workload only, number of simultaneous users
+     */
+    public int numberOfUsers = 8;
+
+    /**
+     * Closed workload only, delay between the end of a request of a user and its next request
+     */
+    public int thinkTimeInMs = 0;
+
+    /**
+     * Fraction of elastix requests, the other requests are transformix requests
+     */
+    public double elastixFraction = 0.8;
+
+    /**
+     * Width and height of the synthetic images sent with each elastix request
+     */
+    public int imageSizeInPixels = 256;
+
+    /**
+     * Number of points sent with each transformix request
+     */
+    public int numberOfPointsPerTransformixRequest = 1000;
+
+    /**
+     * Requests sent during the warmup are not part of the report
+     */
+    public int warmupInS = 10;
+
+    /**
+     * Duration of the measurement, after the warmup
+     */
+    public int durationInS = 60;
+
+    /**
+     * Maximal time given to the requests in flight to complete after the end of the measurement
+     */
+    public int drainTimeoutInS = 120;
+
+    /**
+     * Period of the queue depth time series
+     */
+    public int queueSamplingPeriodInMs = 500;
+
+    /**
+     * Seed of the random arrivals and of the elastix / transformix mix
+     */
+    public long seed = 42;
+
+    /**
+     * Folder where synthetic inputs and request outputs are written
+     */
+    public String workingFolder = "src/test/resources/loadtest/";
+
+    /**
+     * Json report written at the end of the load test
+     */
+    public String reportFile = "loadtest-report.json";
+
+    /**
+     * Json report of a previous load test (before a change), compared to the new report. Ignored if null.
+     */
+    public String baselineReportFile = null;
+
+}
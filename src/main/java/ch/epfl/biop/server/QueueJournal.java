@@ -0,0 +1,361 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Write-ahead log of the elastix job queue ({@link ElastixJobQueueServlet}), so that a restarted server
+ * knows the jobs that were waiting and the last job id given to a client.
+ *
+ * Each queue change is one text line:
+ * - "E id" : job enqueued
+ * - "R id" : job ready to be processed
+ * - "D id" : job done with the queue (admitted, rejected or lease expired)
+ * - "N id" : last job id given, written at the top of a compacted log
+ *
+ * The servlets only put the line in memory ({@link QueueJournal#enqueued(long)}, ...), the request is not
+ * slowed down by the disk. A writer thread appends all pending lines and calls fsync once per batch (group commit):
+ * the more requests, the bigger the batches. A crash loses at most the lines of the batch being written. The lines
+ * of a failed write are kept and written again with the next batch.
+ *
+ * At startup, the log is replayed ({@link QueueJournal#open(File, int)}) : waiting and ready jobs are put back in the queues,
+ * their clients get a new lease of {@link RegistrationServerConfig#maxDelayBetweenQueueUpdateRequestInS} to come back.
+ * The log is then rewritten with the current queue state only, and again each time it exceeds
+ * {@link QueueJournal#compactionThreshold} lines. Replaying is idempotent, so lines written after a compaction snapshot
+ * can repeat changes already contained in the snapshot.
+ *
+ * Job ids are time based ({@link JobIdGenerator}), the generators are also moved above the ids found in the log,
+ * in the job folders and in the archive, see {@link QueueJournal#recoverJobIndexes(RegistrationServerConfig)}.
+ */
+public class QueueJournal {
+
+    public static Consumer<String> log = AsyncLog.consumer(QueueJournal.class, AsyncLog.Level.INFO);
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, max time a change waits before being written
+     * when no other change arrives
+     */
+    public static int groupCommitIntervalInMs = 5;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, the log is compacted above this number of lines
+     */
+    public static int compactionThreshold = 100000;
+
+    /**
+     * Delay before writing again the lines of a failed write
+     */
+    static int retryDelayInMs = 1000;
+
+    static volatile QueueJournal journal = null;
+
+    final File file;
+
+    final LinkedBlockingQueue<String> pending = new LinkedBlockingQueue<>();
+
+    final Thread writer;
+
+    FileChannel channel;
+
+    long numberOfLines = 0;
+
+    volatile boolean running = true;
+
+    /**
+     * Appends the configuration, replays the log of the elastix job folder and starts writing it
+     * @param config provided configuration
+     * @throws IOException if the log cannot be read or written
+     */
+    public static synchronized void setConfiguration(RegistrationServerConfig config) throws IOException {
+        groupCommitIntervalInMs = config.queueJournalGroupCommitIntervalInMs;
+        compactionThreshold = config.queueJournalCompactionThreshold;
+        close();
+        if (config.queueJournal) {
+            open(new File(ElastixServlet.elastixJobsFolder, "queue.wal"), config.maxDelayBetweenQueueUpdateRequestInS);
+        }
+        recoverJobIndexes(config);
+    }
+
+    /**
+     * Job enqueued in the waiting queue
+     */
+    public static void enqueued(long jobId) {
+        append("E " + jobId);
+    }
+
+    /**
+     * Job moved to the ready queue
+     */
+    public static void ready(long jobId) {
+        append("R " + jobId);
+    }
+
+    /**
+     * Job removed from the queues
+     */
+    public static void removed(long jobId) {
+        append("D " + jobId);
+    }
+
+    static void append(String line) {
+        QueueJournal current = journal;
+        if (current != null) current.pending.add(line);
+    }
+
+    /**
+     * Replays the log into the queues of {@link ElastixJobQueueServlet}, compacts it, and starts the writer thread
+     * @param file log file, created if it does not exist
+     * @param leaseInS time given to the clients of the restored jobs to come back
+     * @throws IOException if the log cannot be read or written
+     */
+    static synchronized void open(File file, int leaseInS) throws IOException {
+        close();
+        LinkedHashMap<Long, Boolean> jobs = new LinkedHashMap<>(); // job id to ready
+        long lastJobId = replay(file, jobs);
+        LocalDateTime leaseEnd = LocalDateTime.now().plusSeconds(leaseInS);
+        int nWaiting = 0, nReady = 0;
+        synchronized (ElastixJobQueueServlet.queue) {
+            for (Map.Entry<Long, Boolean> job : jobs.entrySet()) {
+                ElastixJobQueueServlet.WaitingJob wjob = new ElastixJobQueueServlet.WaitingJob();
+                wjob.jobId = job.getKey();
+                wjob.enqueueTimeInNs = System.nanoTime();
+                wjob.updateTimeTarget = leaseEnd;
+                if (job.getValue()) {
+                    ElastixJobQueueServlet.queueReadyToBeProcessed.add(wjob);
+                    nReady++;
+                } else {
+                    ElastixJobQueueServlet.queue.add(wjob);
+                    nWaiting++;
+                }
+            }
+        }
+        ElastixJobQueueServlet.jobIds.atLeast(lastJobId);
+        log.accept("Queue log " + file + " replayed : " + nWaiting + " waiting jobs, " + nReady + " ready jobs, last job id " + lastJobId);
+        journal = new QueueJournal(file);
+    }
+
+    /**
+     * Reads the log, an incomplete or unreadable line ends the replay (crash during a write)
+     * @param file log file
+     * @param jobs filled with the jobs still in the queues, in enqueue order, with true if they are ready
+     * @return the highest job id found in the log
+     */
+    static long replay(File file, Map<Long, Boolean> jobs) throws IOException {
+        long lastJobId = 0;
+        if (!file.exists()) return lastJobId;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            int c;
+            StringBuilder line = new StringBuilder();
+            while ((c = reader.read()) != -1) {
+                if (c != '\n') {
+                    line.append((char) c);
+                    continue;
+                }
+                if ((line.length() < 3) || (line.charAt(1) != ' ')) break;
+                long jobId;
+                try {
+                    jobId = Long.parseLong(line.substring(2));
+                } catch (NumberFormatException e) {
+                    break;
+                }
+                switch (line.charAt(0)) {
+                    case 'E': jobs.putIfAbsent(jobId, false); break;
+                    case 'R': if (jobs.containsKey(jobId)) jobs.put(jobId, true); break;
+                    case 'D': jobs.remove(jobId); break;
+                    case 'N': break;
+                    default:
+                        log.accept("Unknown line in queue log " + file + " : " + line);
+                }
+                lastJobId = Math.max(lastJobId, jobId);
+                line.setLength(0);
+            }
+            if (line.length() > 0) {
+                log.accept("Ignoring incomplete line at the end of queue log " + file);
+            }
+        }
+        return lastJobId;
+    }
+
+    QueueJournal(File file) throws IOException {
+        this.file = file;
+        compact();
+        writer = new Thread(this::write, "queue-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    void write() {
+        List<String> batch = new ArrayList<>(); // lines not written yet, kept when a write fails
+        StringBuilder text = new StringBuilder();
+        boolean failed = false;
+        while (running || !pending.isEmpty() || !batch.isEmpty()) {
+            try {
+                if (batch.isEmpty()) {
+                    String first = pending.poll(groupCommitIntervalInMs, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                }
+                pending.drainTo(batch);
+                if (failed) {
+                    // The log may end with a part of the failed batch : it is rewritten from the queues first,
+                    // the batch is then appended again, replaying it after the snapshot changes nothing
+                    compact();
+                    failed = false;
+                }
+                for (String line : batch) text.append(line).append('\n');
+                ByteBuffer buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) channel.write(buffer);
+                channel.force(false);
+                numberOfLines += batch.size();
+                batch.clear();
+                if (numberOfLines > compactionThreshold) compact();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                failed = true;
+                if (!running) {
+                    log.accept("Could not write queue log " + file + ", " + batch.size() + " lines lost on close : " + e.getMessage());
+                    return;
+                }
+                log.accept("Could not write queue log " + file + ", " + batch.size() + " lines kept for the next write : " + e.getMessage());
+                try {
+                    Thread.sleep(retryDelayInMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } finally {
+                text.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * Replaces the log by the current state of the queues : written in a temporary file, flushed and renamed
+     */
+    void compact() throws IOException {
+        StringBuilder text = new StringBuilder();
+        long lines;
+        synchronized (ElastixJobQueueServlet.queue) {
+            lines = 1 + 2 * ElastixJobQueueServlet.queueReadyToBeProcessed.size() + ElastixJobQueueServlet.queue.size();
+            text.append("N ").append(ElastixJobQueueServlet.jobIds.last()).append('\n');
+            for (ElastixJobQueueServlet.WaitingJob wjob : ElastixJobQueueServlet.queueReadyToBeProcessed) {
+                text.append("E ").append(wjob.jobId).append('\n');
+                text.append("R ").append(wjob.jobId).append('\n');
+            }
+            for (ElastixJobQueueServlet.WaitingJob wjob : ElastixJobQueueServlet.queue) {
+                text.append("E ").append(wjob.jobId).append('\n');
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) out.write(buffer);
+            out.force(true);
+        }
+        if (channel != null) channel.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        numberOfLines = lines;
+    }
+
+    /**
+     * Writes the pending lines and stops the writer thread
+     */
+    public static synchronized void close() {
+        QueueJournal current = journal;
+        if (current == null) return;
+        journal = null;
+        current.running = false; // no interrupt : it would close the channel, the writer ends after its next poll
+        try {
+            current.writer.join();
+            current.channel.close();
+        } catch (InterruptedException | IOException e) {
+            log.accept("Could not close queue log " + current.file + " : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves the job id generators above all the jobs kept on disk, so that a restarted server
+     * does not overwrite them, even if the clock went backwards
+     * @param config provided configuration
+     */
+    static void recoverJobIndexes(RegistrationServerConfig config) {
+        ElastixJobQueueServlet.jobIds.atLeast(Math.max(config.initialElastixJobIndex, lastJobIdOnDisk(new File(ElastixServlet.elastixJobsFolder))));
+        for (JobArchive.Entry entry : JobArchive.list()) {
+            ElastixJobQueueServlet.jobIds.atLeast(entry.jobId);
+        }
+        TransformixServlet.jobIds.atLeast(Math.max(config.initialTransformixIndex, lastJobIdOnDisk(new File(TransformixServlet.transformixJobsFolder))));
+        log.accept("Last job ids [elastix:" + ElastixJobQueueServlet.jobIds.last() + "; transformix:" + TransformixServlet.jobIds.last() + "]");
+    }
+
+    /**
+     * @param folder jobs folder
+     * @return the highest N of the job_N folders and job_N.zip files of a jobs folder, 0 if there is none
+     */
+    static long lastJobIdOnDisk(File folder) {
+        long lastJobId = 0;
+        String[] names = folder.list((dir, name) -> name.startsWith("job_"));
+        if (names == null) return lastJobId;
+        for (String name : names) {
+            String id = name.substring("job_".length());
+            if (id.endsWith(".zip")) id = id.substring(0, id.length() - ".zip".length());
+            try {
+                lastJobId = Math.max(lastJobId, Long.parseLong(id));
+            } catch (NumberFormatException e) {
+                // not a job folder
+            }
+        }
+        return lastJobId;
+    }
+}
@@ -32,17 +32,21 @@
  */
 package ch.epfl.biop.server;
 
+import ch.epfl.biop.wrappers.VirtualThreads;
 import ch.epfl.biop.wrappers.elastix.Elastix;
 import ch.epfl.biop.wrappers.transformix.Transformix;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
 import org.eclipse.jetty.server.*;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.unixsocket.UnixSocketConnector;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.scijava.util.VersionUtils;
 
 import javax.servlet.MultipartConfigElement;
 import java.io.File;
+import java.nio.file.Files;
 
 /**
  * Creates the server by creating all required Servlet:
@@ -50,6 +54,8 @@ import java.io.File;
  * {@link ElastixServlet} for processing elastix requests
  * {@link TransformixServlet} for processing transformix requests (no queueing needed - that's fast)
  * {@link StatusServlet} to keep track live of the server status
+ * {@link MetricsServlet} to export latency histograms and counters in the Prometheus format
+ * {@link JobsServlet} to retrieve the timeline of recent jobs
  *
  * Also initializes and sets the configuration to the different servlets
  *
@@ -70,28 +76,53 @@ public class RegistrationServer {
         System.out.println("--- Setting transformix location (warning : global settings) : " + config.transformixLocation);
         Transformix.setExePath(new File(config.transformixLocation));
 
-        System.out.println("--- Settings initial Job indexes [elastix:" + config.initialElastixJobIndex + "; transformix:" + config.initialTransformixIndex + "]");
-        ElastixJobQueueServlet.jobIndex = config.initialElastixJobIndex;
-        TransformixServlet.jobIndex = config.initialTransformixIndex;
+        JobIdGenerator.setConfiguration(config);
+        System.out.println("--- Settings job ids node " + JobIdGenerator.nodeId + " - initial Job indexes [elastix:" + config.initialElastixJobIndex + "; transformix:" + config.initialTransformixIndex + "]");
+        ElastixJobQueueServlet.jobIds.atLeast(config.initialElastixJobIndex);
+        TransformixServlet.jobIds.atLeast(config.initialTransformixIndex);
 
         System.out.println("--- Settings servlet request timeout (ms) " + config.requestTimeOutInMs);
         ElastixServlet.timeOut = config.requestTimeOutInMs;
         TransformixServlet.timeOut = config.requestTimeOutInMs;
 
+        System.out.println("--- Settings transformix batching window (ms) " + config.transformixBatchWindowInMs + " - max batch size " + config.transformixMaxBatchSize);
+        TransformixBatcher.batchWindowInMs = config.transformixBatchWindowInMs;
+        TransformixBatcher.maxBatchSize = config.transformixMaxBatchSize;
+
+        System.out.println("--- Settings logs level " + config.logLevel + (config.logAsJson ? " - json output" : " - text output"));
+        AsyncLog.level = AsyncLog.Level.valueOf(config.logLevel.toUpperCase());
+        AsyncLog.json = config.logAsJson;
+
+        System.out.println("--- Settings execution backend " + config.executionBackend);
+        ExecutionBackends.setConfiguration(config);
+
+        System.out.println("--- Settings compression level of responses " + config.responseCompressionLevel + " - of archives " + config.archiveCompressionLevel);
+        ZipPackager.setConfiguration(config);
+
         System.out.println("--- Settings Elastix thread per task number " + config.nThreadsPerElastixTask);
         ElastixServlet.nThreadPerTask = config.nThreadsPerElastixTask;
 
         System.out.println("--- Settings elastix servlet max number of simultaneous requests " + config.maxNumberOfSimultaneousRequests);
         ElastixServlet.maxNumberOfSimultaneousRequests = config.maxNumberOfSimultaneousRequests;
+        if (ExecutionBackends.backend == ClusterCoordinator.BACKEND) {
+            System.out.println("--- Cluster coordinator : the max number of simultaneous requests follows the slots of the workers");
+            ClusterCoordinator.updateCapacity();
+        }
 
         try {
             System.out.print("--- Settings jobs data location for elastix : ");
             ElastixServlet.setJobsDataLocation(config.jobsDataLocation);
             System.out.println(ElastixServlet.elastixJobsFolder);
 
+            System.out.println("--- Settings job archive quota (MB) " + config.archiveMaxSizeInMB + " - eviction policy " + config.archiveEvictionPolicy);
+            JobArchive.setConfiguration(config, new File(ElastixServlet.elastixJobsFolder, "archive"));
+
             System.out.print("--- Settings jobs data location for transformix : ");
             TransformixServlet.setJobsDataLocation(config.jobsDataLocation);
             System.out.println(TransformixServlet.transformixJobsFolder);
+
+            System.out.println("--- Settings queue log " + (config.queueJournal ? "enabled - group commit interval (ms) " + config.queueJournalGroupCommitIntervalInMs : "disabled"));
+            QueueJournal.setConfiguration(config);
         } catch (Exception e) {
             System.err.println("Error during server creation:");
             e.printStackTrace();
@@ -104,6 +135,11 @@ public class RegistrationServer {
     final public static String ELASTIX_PATH = "/elastix";
     final public static String ELASTIX_QUEUE_PATH = "/elastix/startjob";
     final public static String TRANSFORMIX_PATH = "/transformix";
+    final public static String METRICS_PATH = "/metrics";
+    final public static String JOBS_PATH = "/jobs/*";
+    final public static String CLUSTER_PATH_ROOT = "/cluster";
+    final public static String CLUSTER_PATH = CLUSTER_PATH_ROOT + "/*";
+    final public static String ADMIN_PATH = "/admin/*";
 
     final public static int DefaultLocalPort = 8090;
 
@@ -112,21 +148,50 @@ public class RegistrationServer {
         ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
         context.setContextPath("/");
         context.setAttribute("javax.servlet.context.tempdir",new File("tmp"));
+        ServerPools.addHandOffListener(context);
 
-        int maxThreads = Math.max(4,4+config.maxNumberOfSimultaneousRequests);
-        int minThreads = 1;
-        int idleTimeout = 120;
+        // Each worker slot holds a pull request
+        int longPolls = (ExecutionBackends.backend == ClusterCoordinator.BACKEND) ? ClusterCoordinator.maxNumberOfWorkerSlots : 0;
 
-        QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads, minThreads, idleTimeout);
+        System.out.println("--- Settings control plane threads " + config.controlPlaneThreads + " - data plane threads " + config.dataPlaneThreads + " - data plane queue " + config.dataPlaneQueueSize);
+        if (config.virtualThreads) {
+            System.out.println("--- Settings virtual threads " + (VirtualThreads.isAvailable() ? "enabled" : "not available (JDK 21+ and 'java21' maven profile needed), platform threads are used"));
+        }
+        ServerPools.setConfiguration(config);
+        QueuedThreadPool threadPool = ServerPools.createControlPlane(longPolls);
+        // An elastix request keeps its thread while it runs, the coordinator runs as many as its workers have slots
+        int elastixRequests = (ExecutionBackends.backend == ClusterCoordinator.BACKEND) ? ClusterCoordinator.maxNumberOfWorkerSlots : config.maxNumberOfSimultaneousRequests;
+        ServerPools.createDataPlane(elastixRequests + 4);
 
         server = new Server(threadPool);
 
         // ---- HTTP
 
-        ServerConnector connector = new ServerConnector(server);
+        ServerConnector connector;
+        if (config.http2) {
+            // HTTP/1.1 and HTTP/2 cleartext on the same port : the HTTP/1.1 connection switches to h2c
+            // when a client starts with the HTTP/2 preface (prior knowledge) or asks for an upgrade
+            System.out.println("--- Settings HTTP/2 (h2c) - max concurrent streams per connection " + config.http2MaxConcurrentStreams);
+            HttpConfiguration httpConfiguration = new HttpConfiguration();
+            HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(httpConfiguration);
+            h2c.setMaxConcurrentStreams(config.http2MaxConcurrentStreams);
+            connector = new ServerConnector(server, new HttpConnectionFactory(httpConfiguration), h2c);
+        } else {
+            connector = new ServerConnector(server);
+        }
         connector.setPort(localPort);
 
-        server.setConnectors(new Connector[] { connector });
+        if (config.unixSocket.isEmpty()) {
+            server.setConnectors(new Connector[] { connector });
+        } else {
+            System.out.println("--- Settings unix socket " + config.unixSocket);
+            UnixSocketConnector unixSocketConnector = new UnixSocketConnector(server);
+            // A socket file left by a server which was killed prevents the bind
+            Files.deleteIfExists(new File(config.unixSocket).toPath());
+            unixSocketConnector.setUnixSocket(config.unixSocket);
+            server.setConnectors(new Connector[] { connector, unixSocketConnector });
+        }
+        ServerPools.addConnectorThreads(server.getConnectors());
 
         // ---- HTTP End
 
@@ -141,13 +206,34 @@ public class RegistrationServer {
         StatusServlet.setConfiguration(config);
         context.addServlet(StatusServlet.class, STATUS_PATH);
 
+        context.addServlet(MetricsServlet.class, METRICS_PATH);
+
+        JobTrace.maxNumberOfTraces = config.maxNumberOfJobTraces;
+        context.addServlet(JobsServlet.class, JOBS_PATH);
+
         ElastixJobQueueServlet.setConfiguration(config);
         context.addServlet(ElastixJobQueueServlet.class, ELASTIX_QUEUE_PATH);
 
+        context.addServlet(ClusterServlet.class, CLUSTER_PATH);
+
+        ServerAdmin.setConfiguration(config);
+        context.addServlet(AdminServlet.class, ADMIN_PATH);
+
         server.start();
+        ElastixJobQueueServlet.startCleaner();
+
+        if (!config.coordinatorUrl.isEmpty()) {
+            System.out.println("--- Cluster worker of " + config.coordinatorUrl);
+            ClusterWorker.start(config, localPort);
+        }
     }
 
     void stop() throws Exception {
+        ClusterWorker.stop();
         server.stop();
+        ElastixJobQueueServlet.stopCleaner();
+        ServerPools.stop();
+        QueueJournal.close();
+        JobIdGenerator.releaseNodeId();
     }
 }
@@ -58,6 +58,45 @@ public class RegistrationServerConfig {
      */
     public int localPort = 8090;
 
+    /**
+     * Also accepts HTTP/2 cleartext (h2c) connections on the local port, HTTP/1.1 clients are still served.
+     * A cluster worker also uses HTTP/2 to reach its coordinator, see {@link ch.epfl.biop.wrappers.RemoteTaskClient#http2}
+     */
+    public boolean http2 = false;
+
+    /**
+     * Max number of requests multiplexed on a single HTTP/2 connection
+     */
+    public int http2MaxConcurrentStreams = 128;
+
+    /**
+     * If not empty, path of a unix domain socket file the server also listens on (Linux and macOS), for clients
+     * running on the same host, see {@link ch.epfl.biop.wrappers.RemoteTaskClient#useUnixSocket(String, String)}
+     */
+    public String unixSocket = "";
+
+    /**
+     * Threads for the short requests : queue updates, status, metrics, see {@link ServerPools}
+     */
+    public int controlPlaneThreads = 8;
+
+    /**
+     * Threads for the elastix and transformix requests (upload, registration, download), at least
+     * maxNumberOfSimultaneousRequests + 4, see {@link ServerPools}
+     */
+    public int dataPlaneThreads = 16;
+
+    /**
+     * Elastix and transformix requests waiting for a data plane thread before the next ones get a 503
+     */
+    public int dataPlaneQueueSize = 64;
+
+    /**
+     * Runs the data plane requests and the cluster worker pulls on virtual threads (JDK 21+, 'java21' maven profile),
+     * platform threads are used if they are not available
+     */
+    public boolean virtualThreads = false;
+
     /**
      * Http request timeout
      */
@@ -142,10 +181,8 @@ public class RegistrationServerConfig {
     public String jobsDataLocation = "src/test/resources/tmp/";
 
     /**
-     * Each elastix job has a unique index. It would make sense to always start at 0 and increment
-     * but the server may have crashed. If there were some jobs kept on the server, you do
-     * not want to erase these previous, thus you will restart the server with a job index greater
-     * that the one of the last saved job data.
+     * Job ids are now time based, see {@link JobIdGenerator}, and above the last job found in the queue log,
+     * in the job folders and in the archive. This is only kept as a lower bound.
      */
     public int initialElastixJobIndex = 0;
 
@@ -167,4 +204,164 @@ public class RegistrationServerConfig {
      */
     public long maxFileSize = 1024 * 1024;
 
+    /**
+     * Transformix requests sharing the same transform file and arriving within this time window
+     * are processed with a single transformix call, see {@link TransformixBatcher}
+     *
+     * Each batched request waits at most this duration before being processed. 0 disables batching
+     */
+    public int transformixBatchWindowInMs = 10;
+
+    /**
+     * Maximal number of transformix requests processed in a single transformix call
+     */
+    public int transformixMaxBatchSize = 64;
+
+    /**
+     * Number of recent jobs for which the timeline (enqueue, polls, upload, processing, zip, send) is kept
+     * in memory, see {@link JobTrace}
+     */
+    public int maxNumberOfJobTraces = 1000;
+
+    /**
+     * Minimal level of the server logs (DEBUG, INFO, WARN or ERROR), see {@link AsyncLog}
+     */
+    public String logLevel = "INFO";
+
+    /**
+     * Server logs are written as json lines if true, as plain text otherwise
+     */
+    public boolean logAsJson = true;
+
+    /**
+     * "process" : elastix and transformix executables are run
+     * "simulated" : no executable is needed, tasks keep a cpu busy during a sampled duration and write
+     * realistic output files, see {@link ExecutionBackends}. Used for capacity tests.
+     * "cluster" : this server is a coordinator, the jobs are run by the workers, see {@link ClusterCoordinator}
+     */
+    public String executionBackend = "process";
+
+    /**
+     * Simulated backend only, distribution of the task durations: constant, uniform, normal, lognormal or exponential
+     */
+    public String simulatedDurationDistribution = "lognormal";
+
+    /**
+     * Simulated backend only, mean and standard deviation of the elastix task duration
+     */
+    public int simulatedElastixDurationInMs = 3000;
+    public int simulatedElastixDurationSdInMs = 1000;
+
+    /**
+     * Simulated backend only, mean and standard deviation of the transformix task duration, without the points
+     */
+    public int simulatedTransformixDurationInMs = 50;
+    public int simulatedTransformixDurationSdInMs = 20;
+
+    /**
+     * Simulated backend only, additional transformix duration per point
+     */
+    public double simulatedTransformixDurationPerPointInMs = 0.01;
+
+    /**
+     * Simulated backend only, seed of the sampled durations
+     */
+    public long simulatedSeed = 42;
+
+    /**
+     * Archived jobs are appended to segment files of about this size, see {@link JobArchive}
+     */
+    public int archiveSegmentSizeInMB = 256;
+
+    /**
+     * Disk quota of the job archive
+     */
+    public long archiveMaxSizeInMB = 10 * 1024;
+
+    /**
+     * What happens when the job archive is full:
+     * "oldest" : the oldest jobs are deleted
+     * "none" : new jobs are not archived anymore
+     */
+    public String archiveEvictionPolicy = "oldest";
+
+    /**
+     * Deflate level (0-9) of the results sent to the clients, fast by default, see {@link ZipPackager}
+     */
+    public int responseCompressionLevel = 1;
+
+    /**
+     * Deflate level (0-9) of the archived jobs, strong by default
+     */
+    public int archiveCompressionLevel = 9;
+
+    /**
+     * Number of threads compressing large zip entries in parallel, 0 for the number of cores
+     */
+    public int packagingThreads = 0;
+
+    /**
+     * Keeps a log of the elastix job queue on disk, so that a restarted server restores the waiting jobs,
+     * see {@link QueueJournal}
+     */
+    public boolean queueJournal = true;
+
+    /**
+     * Max time a queue change waits before being flushed to the disk with the following ones
+     */
+    public int queueJournalGroupCommitIntervalInMs = 5;
+
+    /**
+     * The queue log is rewritten with the current queue only once it has this number of lines
+     */
+    public int queueJournalCompactionThreshold = 100000;
+
+    /**
+     * Node id (0-1023) put in the job ids, it should be different for each server sharing a jobsDataLocation,
+     * a server does not start with the node id of a running one.
+     * -1 : derived from the process id and the host name, only if no other server runs on the jobsDataLocation, see {@link JobIdGenerator}
+     */
+    public long nodeId = -1;
+
+    /**
+     * If set, this server is a cluster worker : it pulls jobs from this coordinator (ex: http://coordinator:8090),
+     * see {@link ClusterWorker}. Its number of slots is maxNumberOfSimultaneousRequests.
+     */
+    public String coordinatorUrl = "";
+
+    /**
+     * Name of the cluster worker, host name and port by default
+     */
+    public String clusterWorkerName = "";
+
+    /**
+     * Shared secret between the coordinator and its workers, required in cluster mode
+     */
+    public String clusterToken = "";
+
+    /**
+     * Max duration of a pull request of a worker when no job is pending
+     */
+    public int clusterPullTimeoutInMs = 20000;
+
+    /**
+     * Cluster coordinator : routes the elastix jobs to the workers which already have their fixed image, see {@link JobRouter}
+     */
+    public boolean clusterAffinity = true;
+
+    /**
+     * Cluster coordinator : max load of a worker relative to the mean load before its jobs go to the next worker of the ring
+     */
+    public double clusterAffinityLoadFactor = 1.25;
+
+    /**
+     * Cluster coordinator : a job not taken by its worker within this delay is given to any worker
+     */
+    public int clusterAffinitySpillDelayInMs = 100;
+
+    /**
+     * Cluster worker : number of fixed images kept to avoid receiving them again
+     */
+    public int clusterWorkerFixedImageCacheSize = 16;
+
 }
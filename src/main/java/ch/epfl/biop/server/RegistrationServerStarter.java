@@ -32,11 +32,9 @@
  */
 package ch.epfl.biop.server;
 
-import ch.epfl.biop.wrappers.elastix.*;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
-import java.io.File;
 import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -85,39 +83,7 @@ public class RegistrationServerStarter {
             e.printStackTrace();
         }
 
-        //StressTest(); // Uncomment for testing
-    }
-
-    public static void StressTest() {
-        for (int i=0;i<200;i++){
-            final int iFinal = i;
-            new Thread(() -> {
-                try {
-                    TestRegister(iFinal);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }).start();
-        }
-    }
-
-    private static void TestRegister(int idx) throws Exception {
-
-        RegistrationParameters rp = new RegParamAffine_Fast();
-
-        if (!new File("src/test/resources/out/"+idx+"/").exists()) {
-            Files.createDirectory(Paths.get("src/test/resources/out/" + idx + "/"));
-        }
-
-        ElastixTaskSettings settings = new ElastixTaskSettings()
-                .fixedImage(() -> "src/test/resources/atlas.tif")
-                .movingImage(() -> "src/test/resources/unregistered.tif")
-                .addTransform(() -> RegisterHelper.getFileFromRegistrationParameters(rp))
-                .outFolder(()-> "src/test/resources/out/"+idx+"/");
-
-        ElastixTask remoteTask = new RemoteElastixTask("http://localhost:8090");
-        remoteTask.setSettings(settings);
-        remoteTask.run();
+        // See LoadGenerator to test the server under load
     }
 
 }
@@ -0,0 +1,269 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSyntaxException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Administration of the running server, see {@link AdminServlet}
+ *
+ * - hot reconfiguration : the capacity, queue, timeout, batching and log settings of a {@link RegistrationServerConfig}
+ * can be changed while the server runs (see {@link ServerAdmin#HOT_SETTINGS}). They are applied all at once, the
+ * queued and running jobs are kept. The other settings need a restart.
+ *
+ * - drain : the server stops accepting new jobs (503), the jobs already queued or running are finished. A cluster
+ * worker stops pulling jobs. {@link DrainState#safeToStop} tells when the server can be stopped without losing work.
+ *
+ */
+public class ServerAdmin {
+
+    static Consumer<String> log = AsyncLog.consumer(ServerAdmin.class, AsyncLog.Level.INFO);
+
+    /**
+     * Settings of {@link RegistrationServerConfig} which can be changed while the server runs
+     */
+    final static Set<String> HOT_SETTINGS = new LinkedHashSet<>(Arrays.asList(
+            "maxNumberOfSimultaneousRequests", "nThreadsPerElastixTask",
+            "elastixTaskEstimatedDurationInMs", "maxQueueEstimatedWaitingTimeInS", "maxDelayBetweenQueueUpdateRequestInS",
+            "dataPlaneThreads", "requestTimeOutInMs",
+            "transformixBatchWindowInMs", "transformixMaxBatchSize",
+            "responseCompressionLevel", "archiveCompressionLevel",
+            "maxNumberOfJobTraces", "logLevel", "logAsJson"));
+
+    /**
+     * If true, new jobs are rejected, see {@link ServerAdmin#drain()}
+     */
+    static volatile boolean draining = false;
+
+    /**
+     * Configuration of the running server
+     */
+    static RegistrationServerConfig config;
+
+    public static synchronized void setConfiguration(RegistrationServerConfig config) {
+        ServerAdmin.config = config;
+    }
+
+    static synchronized RegistrationServerConfig getConfiguration() {
+        return config;
+    }
+
+    /**
+     * Applies settings to the running server : either all of them or none
+     * @param settings the settings to change, the other ones keep their current value
+     * @return the new configuration of the server
+     * @throws IllegalArgumentException if a setting is unknown or has an invalid value
+     * @throws RestartRequiredException if a setting cannot be changed while the server runs
+     */
+    static synchronized RegistrationServerConfig reconfigure(JsonObject settings) throws RestartRequiredException {
+        Gson gson = new Gson();
+        JsonObject current = gson.toJsonTree(config).getAsJsonObject();
+        JsonObject merged = gson.toJsonTree(config).getAsJsonObject();
+        List<String> restartRequired = new ArrayList<>();
+        for (Map.Entry<String, JsonElement> setting : settings.entrySet()) {
+            String name = setting.getKey();
+            if (!current.has(name)) {
+                throw new IllegalArgumentException("Unknown setting " + name);
+            }
+            // The number of slots of a cluster worker is its number of pulling threads
+            boolean hot = HOT_SETTINGS.contains(name) && !(ClusterWorker.running && name.equals("maxNumberOfSimultaneousRequests"));
+            if (!hot && !current.get(name).equals(setting.getValue())) {
+                restartRequired.add(name);
+            }
+            merged.add(name, setting.getValue());
+        }
+        if (!restartRequired.isEmpty()) {
+            throw new RestartRequiredException(restartRequired);
+        }
+
+        RegistrationServerConfig next;
+        try {
+            next = gson.fromJson(merged, RegistrationServerConfig.class);
+        } catch (JsonSyntaxException e) {
+            throw new IllegalArgumentException("Invalid setting : " + e.getMessage());
+        }
+        validate(next);
+        apply(config, next);
+        config = next;
+        log.accept("Configuration updated : " + settings);
+        return next;
+    }
+
+    static void validate(RegistrationServerConfig config) {
+        atLeast("maxNumberOfSimultaneousRequests", config.maxNumberOfSimultaneousRequests, 1);
+        atLeast("nThreadsPerElastixTask", config.nThreadsPerElastixTask, 1);
+        atLeast("elastixTaskEstimatedDurationInMs", config.elastixTaskEstimatedDurationInMs, 1);
+        atLeast("maxQueueEstimatedWaitingTimeInS", config.maxQueueEstimatedWaitingTimeInS, 0);
+        atLeast("maxDelayBetweenQueueUpdateRequestInS", config.maxDelayBetweenQueueUpdateRequestInS, 1);
+        atLeast("dataPlaneThreads", config.dataPlaneThreads, 1);
+        atLeast("requestTimeOutInMs", config.requestTimeOutInMs, 1);
+        atLeast("transformixBatchWindowInMs", config.transformixBatchWindowInMs, 0);
+        atLeast("transformixMaxBatchSize", config.transformixMaxBatchSize, 1);
+        atLeast("maxNumberOfJobTraces", config.maxNumberOfJobTraces, 0);
+        if ((config.responseCompressionLevel < -1) || (config.responseCompressionLevel > 9)
+                || (config.archiveCompressionLevel < -1) || (config.archiveCompressionLevel > 9)) {
+            throw new IllegalArgumentException("Compression levels should be between -1 and 9");
+        }
+        try {
+            AsyncLog.Level.valueOf(config.logLevel.toUpperCase());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new IllegalArgumentException("Invalid log level " + config.logLevel);
+        }
+    }
+
+    static void atLeast(String name, int value, int min) {
+        if (value < min) throw new IllegalArgumentException(name + " should be at least " + min);
+    }
+
+    /**
+     * @param previous configuration of the server
+     * @param config new configuration
+     */
+    static void apply(RegistrationServerConfig previous, RegistrationServerConfig config) {
+        // With the locks of the queue and of the admission, each job is scheduled entirely with the old settings or with the new ones
+        synchronized (ElastixJobQueueServlet.queue) {
+            synchronized (ElastixServlet.class) {
+                int estimatedElastixJobProcessingTimeInMs = ElastixJobQueueServlet.estimatedElastixJobProcessingTimeInMs;
+                ElastixJobQueueServlet.setConfiguration(config);
+                if (config.elastixTaskEstimatedDurationInMs == previous.elastixTaskEstimatedDurationInMs) {
+                    // Keeps the estimate learned from the measured durations (cluster coordinator) unless a new one is given
+                    ElastixJobQueueServlet.estimatedElastixJobProcessingTimeInMs = estimatedElastixJobProcessingTimeInMs;
+                }
+                if (ExecutionBackends.backend != ClusterCoordinator.BACKEND) {
+                    // The capacity of a coordinator follows the slots of its workers
+                    ElastixServlet.maxNumberOfSimultaneousRequests = config.maxNumberOfSimultaneousRequests;
+                }
+                ElastixServlet.nThreadPerTask = config.nThreadsPerElastixTask;
+                ElastixServlet.timeOut = config.requestTimeOutInMs;
+                TransformixServlet.timeOut = config.requestTimeOutInMs;
+                TransformixBatcher.batchWindowInMs = config.transformixBatchWindowInMs;
+                TransformixBatcher.maxBatchSize = config.transformixMaxBatchSize;
+                ZipPackager.setConfiguration(config);
+                JobTrace.maxNumberOfTraces = config.maxNumberOfJobTraces;
+                AsyncLog.level = AsyncLog.Level.valueOf(config.logLevel.toUpperCase());
+                AsyncLog.json = config.logAsJson;
+                StatusServlet.setConfiguration(config);
+                int elastixRequests = (ExecutionBackends.backend == ClusterCoordinator.BACKEND) ? ClusterCoordinator.maxNumberOfWorkerSlots : config.maxNumberOfSimultaneousRequests;
+                ServerPools.resizeDataPlane(config.dataPlaneThreads, elastixRequests + 4);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting new jobs : new elastix jobs and transformix requests get a 503, a cluster worker stops pulling
+     * jobs. The jobs already queued or running are finished.
+     */
+    static void drain() {
+        draining = true;
+        log.accept("Draining : new jobs are rejected");
+    }
+
+    /**
+     * Accepts new jobs again, after {@link ServerAdmin#drain()}
+     */
+    static void resume() {
+        draining = false;
+        log.accept("Resumed : new jobs are accepted");
+    }
+
+    static DrainState getDrainState() {
+        DrainState state = new DrainState();
+        state.draining = draining;
+        synchronized (ElastixJobQueueServlet.queue) {
+            state.queuedElastixJobs = ElastixJobQueueServlet.queue.size() + ElastixJobQueueServlet.queueReadyToBeProcessed.size();
+        }
+        state.runningElastixJobs = ElastixServlet.getNumberOfCurrentTasks();
+        state.runningTransformixJobs = TransformixServlet.getNumberOfCurrentTasks();
+        state.dataPlaneRequests = ServerPools.getDataPlaneRequests();
+        state.busyWorkerSlots = ClusterWorker.busySlots.get();
+        state.safeToStop = state.draining && (state.queuedElastixJobs == 0) && (state.runningElastixJobs == 0)
+                && (state.runningTransformixJobs == 0) && (state.dataPlaneRequests == 0) && (state.busyWorkerSlots == 0);
+        return state;
+    }
+
+    /**
+     * Progress of a drain, serialized in json by {@link AdminServlet}
+     */
+    public static class DrainState {
+
+        boolean draining;
+
+        /**
+         * Elastix jobs waiting in the queue, or ready and not sent yet by their client
+         */
+        int queuedElastixJobs;
+
+        int runningElastixJobs;
+
+        int runningTransformixJobs;
+
+        /**
+         * Elastix and transformix requests being processed or waiting on the data plane, see {@link ServerPools}
+         */
+        int dataPlaneRequests;
+
+        /**
+         * Slots of a cluster worker pulling or running a job, see {@link ClusterWorker}
+         */
+        int busyWorkerSlots;
+
+        /**
+         * True when the server is draining and has no work left : it can be stopped
+         */
+        boolean safeToStop;
+    }
+
+    /**
+     * Some settings cannot be changed while the server runs
+     */
+    static class RestartRequiredException extends Exception {
+
+        final List<String> settings;
+
+        RestartRequiredException(List<String> settings) {
+            super("These settings need a restart of the server : " + settings);
+            this.settings = settings;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+/**
+ * Receives the low level events of the server: queue transitions, job stages, subprocess executions
+ * and multipart ingestion. See {@link ServerEvents} for the recorder in use.
+ *
+ * The default recorder does nothing. On JDK 11+, a recorder emitting Java Flight Recorder events is
+ * compiled by the 'jfr' maven profile, so that recordings show where the server time goes.
+ *
+ */
+public interface ServerEventRecorder {
+
+    /**
+     * Records a change of the elastix queue
+     * @param type enqueue, ready (the job leaves the waiting queue), lease_expired or rejected
+     * @param jobId id of the job
+     * @param queueSize number of jobs in the waiting queue after the change
+     */
+    void queueEvent(String type, long jobId, int queueSize);
+
+    /**
+     * Starts recording a stage of a job
+     * @param task elastix or transformix
+     * @param jobId id of the job
+     * @param stage name of the stage: upload, run, zip, send, archive
+     * @return a span which should be ended when the stage is over
+     */
+    Span jobStage(String task, long jobId, String stage);
+
+    /**
+     * Starts recording an elastix or transformix process
+     * @param task elastix or transformix
+     * @param jobId id of the job
+     * @return a span which should be ended when the process exited, successfully or not
+     */
+    ProcessSpan subprocess(String task, long jobId);
+
+    /**
+     * Starts recording the ingestion of a part of a multipart request
+     * @param task elastix or transformix
+     * @param jobId id of the job
+     * @param part tag of the part
+     * @return a span which should be ended when the part is written on the server
+     */
+    Span multipartIngestion(String task, long jobId, String part);
+
+    interface Span {
+        /**
+         * @param bytes size of the data processed during the span, -1 if not relevant
+         */
+        void end(long bytes);
+    }
+
+    interface ProcessSpan {
+        /**
+         * @param outputBytes size of the results written by the process
+         * @param exitCode exit code of the process, -1 if it failed or was interrupted
+         */
+        void end(long outputBytes, int exitCode);
+    }
+}
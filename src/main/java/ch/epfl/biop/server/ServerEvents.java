@@ -0,0 +1,80 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+/**
+ * Gives access to the {@link ServerEventRecorder} of the server
+ *
+ * The Java Flight Recorder implementation is used if it has been compiled (JDK 11+, 'jfr' maven profile)
+ * and if the running JVM supports it. Otherwise events are ignored.
+ *
+ */
+public class ServerEvents {
+
+    final static String JFR_RECORDER_CLASS = "ch.epfl.biop.server.jfr.JfrServerEventRecorder";
+
+    final static ServerEventRecorder.Span NO_SPAN = bytes -> {};
+
+    final static ServerEventRecorder.ProcessSpan NO_PROCESS_SPAN = (outputBytes, exitCode) -> {};
+
+    final static ServerEventRecorder NO_RECORDER = new ServerEventRecorder() {
+        @Override
+        public void queueEvent(String type, long jobId, int queueSize) {}
+
+        @Override
+        public Span jobStage(String task, long jobId, String stage) {
+            return NO_SPAN;
+        }
+
+        @Override
+        public ProcessSpan subprocess(String task, long jobId) {
+            return NO_PROCESS_SPAN;
+        }
+
+        @Override
+        public Span multipartIngestion(String task, long jobId, String part) {
+            return NO_SPAN;
+        }
+    };
+
+    public static final ServerEventRecorder recorder = loadRecorder();
+
+    static ServerEventRecorder loadRecorder() {
+        try {
+            return (ServerEventRecorder) Class.forName(JFR_RECORDER_CLASS).getDeclaredConstructor().newInstance();
+        } catch (Throwable t) {
+            // Not compiled, or running on a JVM older than 11 (UnsupportedClassVersionError)
+            return NO_RECORDER;
+        }
+    }
+}
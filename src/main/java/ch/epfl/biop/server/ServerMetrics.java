@@ -0,0 +1,232 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the registration server, for capacity planning and to find which stage of a job dominates its latency
+ *
+ * For each kind of task (elastix, transformix), a {@link LatencyHistogram} per job stage:
+ * - queue_wait: time between the enqueue request and the moment the job is ready to be processed (elastix only)
+ * - upload: reading the multipart request and writing the files on the server
+ * - run: elastix / transformix execution
+ * - zip: packaging of the result
+ * - send: sending the result to the client
+ * - archive: storage of the job data, if the user agreed (elastix only)
+ *
+ * and counters for rejected, timed out, cancelled and failed jobs, and for queued jobs cleaned because the
+ * client did not ask for an update in time (expired leases).
+ *
+ * All metrics are exported by the {@link MetricsServlet}
+ *
+ */
+public class ServerMetrics {
+
+    final public static String ELASTIX = "elastix";
+    final public static String TRANSFORMIX = "transformix";
+
+    public static class TaskMetrics {
+
+        final public LatencyHistogram queueWait = new LatencyHistogram();
+        final public LatencyHistogram upload = new LatencyHistogram();
+        final public LatencyHistogram run = new LatencyHistogram();
+        final public LatencyHistogram zip = new LatencyHistogram();
+        final public LatencyHistogram send = new LatencyHistogram();
+        final public LatencyHistogram archive = new LatencyHistogram();
+
+        /**
+         * Rejected because the queue is full
+         */
+        final public LongAdder rejectedQueueFull = new LongAdder();
+
+        /**
+         * Rejected because too many jobs are being processed
+         */
+        final public LongAdder rejectedBusy = new LongAdder();
+
+        /**
+         * Rejected because the server is draining, see {@link ServerAdmin#drain()}
+         */
+        final public LongAdder rejectedDraining = new LongAdder();
+
+        final public LongAdder timeouts = new LongAdder();
+        final public LongAdder cancellations = new LongAdder();
+        final public LongAdder errors = new LongAdder();
+        final public LongAdder completed = new LongAdder();
+
+        /**
+         * Jobs removed from the queue because the client did not ask for an update in time
+         */
+        final public LongAdder cleanedLeases = new LongAdder();
+
+        /**
+         * Archived jobs deleted because of the archive quota
+         */
+        final public LongAdder archiveEvictions = new LongAdder();
+
+        /**
+         * Jobs sent to a cluster worker, see {@link ClusterCoordinator}
+         */
+        final public LongAdder dispatched = new LongAdder();
+
+        /**
+         * Jobs given to another cluster worker because their worker did not answer in time
+         */
+        final public LongAdder requeued = new LongAdder();
+
+        /**
+         * Jobs sent to a cluster worker which already had their fixed image, see {@link JobRouter}
+         */
+        final public LongAdder cacheHits = new LongAdder();
+
+        /**
+         * Jobs given to another cluster worker than the one holding their fixed image, because it was busy
+         */
+        final public LongAdder spilled = new LongAdder();
+
+        /**
+         * Jobs submitted within the JVM of the server, without http, see {@link ElastixJobProcessor#process}
+         */
+        final public LongAdder inProcess = new LongAdder();
+
+        Map<String, LatencyHistogram> stages() {
+            Map<String, LatencyHistogram> stages = new LinkedHashMap<>();
+            stages.put("queue_wait", queueWait);
+            stages.put("upload", upload);
+            stages.put("run", run);
+            stages.put("zip", zip);
+            stages.put("send", send);
+            stages.put("archive", archive);
+            return stages;
+        }
+
+        Map<String, LongAdder> events() {
+            Map<String, LongAdder> events = new LinkedHashMap<>();
+            events.put("rejected_queue_full", rejectedQueueFull);
+            events.put("rejected_busy", rejectedBusy);
+            events.put("rejected_draining", rejectedDraining);
+            events.put("timeout", timeouts);
+            events.put("cancelled", cancellations);
+            events.put("error", errors);
+            events.put("completed", completed);
+            events.put("lease_cleaned", cleanedLeases);
+            events.put("archive_evicted", archiveEvictions);
+            events.put("cluster_dispatched", dispatched);
+            events.put("cluster_requeued", requeued);
+            events.put("cluster_cache_hit", cacheHits);
+            events.put("cluster_spilled", spilled);
+            events.put("in_process", inProcess);
+            return events;
+        }
+    }
+
+    final public static TaskMetrics elastix = new TaskMetrics();
+
+    final public static TaskMetrics transformix = new TaskMetrics();
+
+    /**
+     * @return the mean measured duration of an elastix job (upload, run, zip and send), or -1 if no job has been processed yet
+     */
+    public static int getMeasuredElastixJobDurationInMs() {
+        if (elastix.run.getCount() == 0) return -1;
+        return (int) (Math.max(0, elastix.upload.getMeanInMs()) + elastix.run.getMeanInMs()
+                + Math.max(0, elastix.zip.getMeanInMs()) + Math.max(0, elastix.send.getMeanInMs()));
+    }
+
+    /**
+     * @return all metrics in the Prometheus text format
+     */
+    public static String toPrometheusText() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("# HELP registration_stage_seconds Duration of each stage of the registration jobs\n");
+        sb.append("# TYPE registration_stage_seconds histogram\n");
+        writeStages(sb, ELASTIX, elastix);
+        writeStages(sb, TRANSFORMIX, transformix);
+
+        sb.append("# HELP registration_events_total Number of jobs per outcome\n");
+        sb.append("# TYPE registration_events_total counter\n");
+        writeEvents(sb, ELASTIX, elastix);
+        writeEvents(sb, TRANSFORMIX, transformix);
+
+        sb.append("# HELP registration_current_tasks Number of jobs being processed\n");
+        sb.append("# TYPE registration_current_tasks gauge\n");
+        sb.append("registration_current_tasks{task=\"elastix\"} ").append(ElastixServlet.getNumberOfCurrentTasks()).append('\n');
+        sb.append("registration_current_tasks{task=\"transformix\"} ").append(TransformixServlet.getNumberOfCurrentTasks()).append('\n');
+
+        sb.append("# HELP registration_draining 1 if the server does not accept new jobs, see ServerAdmin\n");
+        sb.append("# TYPE registration_draining gauge\n");
+        sb.append("registration_draining ").append(ServerAdmin.draining ? 1 : 0).append('\n');
+
+        sb.append("# HELP registration_queue_size Number of elastix jobs waiting in the queue\n");
+        sb.append("# TYPE registration_queue_size gauge\n");
+        sb.append("registration_queue_size ").append(ElastixJobQueueServlet.getQueueSize()).append('\n');
+
+        sb.append("# HELP registration_archive_bytes Disk space used by the job archive\n");
+        sb.append("# TYPE registration_archive_bytes gauge\n");
+        sb.append("registration_archive_bytes ").append(JobArchive.getSizeInBytes()).append('\n');
+
+        sb.append("# HELP registration_archive_jobs Number of jobs in the job archive\n");
+        sb.append("# TYPE registration_archive_jobs gauge\n");
+        sb.append("registration_archive_jobs ").append(JobArchive.getNumberOfJobs()).append('\n');
+
+        sb.append("# HELP registration_cluster_workers Number of live cluster workers\n");
+        sb.append("# TYPE registration_cluster_workers gauge\n");
+        sb.append("registration_cluster_workers ").append(ClusterCoordinator.getNumberOfWorkers()).append('\n');
+
+        sb.append("# HELP registration_cluster_slots Number of slots of the live cluster workers\n");
+        sb.append("# TYPE registration_cluster_slots gauge\n");
+        sb.append("registration_cluster_slots ").append(ClusterCoordinator.getNumberOfSlots()).append('\n');
+
+        ServerPools.writeMetrics(sb);
+
+        return sb.toString();
+    }
+
+    static void writeStages(StringBuilder sb, String task, TaskMetrics metrics) {
+        metrics.stages().forEach((stage, histogram) -> {
+            // Transformix jobs are neither queued nor archived
+            if (task.equals(TRANSFORMIX) && (stage.equals("queue_wait") || stage.equals("archive"))) return;
+            histogram.writeTo(sb, "registration_stage_seconds", "task=\"" + task + "\",stage=\"" + stage + "\"");
+        });
+    }
+
+    static void writeEvents(StringBuilder sb, String task, TaskMetrics metrics) {
+        metrics.events().forEach((event, counter) ->
+            sb.append("registration_events_total{task=\"").append(task).append("\",event=\"").append(event).append("\"} ").append(counter.sum()).append('\n')
+        );
+    }
+}
@@ -0,0 +1,284 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import ch.epfl.biop.wrappers.VirtualThreads;
+import org.eclipse.jetty.server.AbstractConnector;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.MultiPartCleanerListener;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.unixsocket.UnixSocketConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread pools of the server, so that long requests cannot starve the short ones:
+ *
+ * - control plane : the jetty pool, which reads all requests and runs the cheap ones (queue updates
+ * of {@link ElastixJobQueueServlet}, {@link StatusServlet}, metrics, jobs, cluster pulls). It stays available
+ * because it never runs an upload, a registration or a download.
+ *
+ * - data plane : a bounded pool for the {@link ElastixServlet} and {@link TransformixServlet} requests, which are
+ * put in async mode and processed here, from the multipart upload to the result download. When all its threads are
+ * busy, up to {@link ServerPools#dataPlaneQueueSize} requests wait, the next ones get a 503.
+ *
+ * A request is handed off to the data plane only once jetty has released it, see {@link ServerPools#submitOnRelease}.
+ *
+ * The saturation of both pools is exported in the metrics, see {@link ServerPools#writeMetrics(StringBuilder)}.
+ */
+public class ServerPools {
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, threads running the control plane requests
+     */
+    public static int controlPlaneThreads = 8;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, threads running the uploads, registrations and downloads
+     */
+    public static int dataPlaneThreads = 16;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, data plane requests waiting for a thread
+     */
+    public static int dataPlaneQueueSize = 64;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, the data plane requests run on virtual threads if they
+     * are available (see {@link VirtualThreads}) : a request blocked on an upload, a subprocess or a download
+     * then does not hold a platform thread, and {@link ServerPools#dataPlaneThreads} can be raised
+     */
+    public static boolean virtualThreads = false;
+
+    static QueuedThreadPool control;
+
+    static ThreadPoolExecutor data;
+
+    /**
+     * Timeouts of the data plane requests, see {@link DataPlaneRequest}
+     */
+    final static ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "data-plane-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Data plane requests rejected because the pool and its queue were full
+     */
+    final static LongAdder rejected = new LongAdder();
+
+    public static void setConfiguration(RegistrationServerConfig config) {
+        controlPlaneThreads = config.controlPlaneThreads;
+        dataPlaneThreads = config.dataPlaneThreads;
+        dataPlaneQueueSize = config.dataPlaneQueueSize;
+        virtualThreads = config.virtualThreads;
+    }
+
+    /**
+     * @param longPolls requests which can be held by long polls, see {@link ClusterServlet}
+     * @return the jetty pool, for the control plane
+     */
+    static synchronized QueuedThreadPool createControlPlane(int longPolls) {
+        control = new QueuedThreadPool(controlPlaneThreads + longPolls, 1, 120);
+        control.setName("control-plane");
+        return control;
+    }
+
+    /**
+     * The acceptors and selectors of the connectors keep a thread of the jetty pool, which is thus enlarged
+     * @param connectors of the server, before it starts
+     */
+    static synchronized void addConnectorThreads(Connector[] connectors) {
+        int leasedThreads = 0;
+        for (Connector connector : connectors) {
+            if (connector instanceof AbstractConnector) {
+                leasedThreads += ((AbstractConnector) connector).getAcceptors();
+            }
+            if (connector instanceof ServerConnector) {
+                leasedThreads += ((ServerConnector) connector).getSelectorManager().getSelectorCount();
+            } else if (connector instanceof UnixSocketConnector) {
+                leasedThreads += ((UnixSocketConnector) connector).getSelectorManager().getSelectorCount();
+            }
+        }
+        control.setMaxThreads(control.getMaxThreads() + leasedThreads);
+    }
+
+    /**
+     * @param minThreads at least one thread per elastix request which can be processed at the same time
+     */
+    static synchronized void createDataPlane(int minThreads) {
+        if (data != null) data.shutdown();
+        int nThreads = Math.max(dataPlaneThreads, minThreads);
+        AtomicInteger index = new AtomicInteger();
+        // Virtual threads keep the bounds of the pool, so that the admission and the 503s do not change
+        ThreadFactory threadFactory = (virtualThreads && VirtualThreads.isAvailable()) ? VirtualThreads.threadFactory("data-plane-") : r -> {
+            Thread thread = new Thread(r, "data-plane-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        data = new ThreadPoolExecutor(nThreads, nThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(1, dataPlaneQueueSize)), threadFactory);
+        data.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Changes the number of threads of the data plane while the server runs, the requests being processed go on
+     * @param threads new value of {@link ServerPools#dataPlaneThreads}
+     * @param minThreads at least one thread per elastix request which can be processed at the same time
+     */
+    static synchronized void resizeDataPlane(int threads, int minThreads) {
+        dataPlaneThreads = threads;
+        if (data == null) return;
+        int nThreads = Math.max(dataPlaneThreads, minThreads);
+        // The core size can never exceed the max size
+        if (nThreads > data.getMaximumPoolSize()) {
+            data.setMaximumPoolSize(nThreads);
+            data.setCorePoolSize(nThreads);
+        } else {
+            data.setCorePoolSize(nThreads);
+            data.setMaximumPoolSize(nThreads);
+        }
+    }
+
+    /**
+     * @return the number of data plane requests being processed or waiting for a thread
+     */
+    static int getDataPlaneRequests() {
+        return (data == null) ? 0 : data.getActiveCount() + data.getQueue().size();
+    }
+
+    /**
+     * @param request processing of a data plane request
+     * @return its future, which can be cancelled
+     * @throws RejectedExecutionException if the data plane is saturated, the request should get a 503
+     */
+    static Future<?> submit(Runnable request) {
+        try {
+            return data.submit(request);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * @param timeout of a data plane request, should be short
+     * @param delayInMs after which it runs
+     * @return its future, which can be cancelled
+     */
+    static ScheduledFuture<?> schedule(Runnable timeout, long delayInMs) {
+        return timeouts.schedule(timeout, delayInMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Request attribute holding its hand off to the data plane
+     */
+    final static String HAND_OFF = ServerPools.class.getName() + ".handOff";
+
+    /**
+     * Hands off an async request to the data plane when its first dispatch returns. Jetty closes the multipart
+     * parts of a request at this point, even if it is async : parts read by the data plane before would be lost.
+     * @param request started in async mode
+     * @param handOff submits the processing of the request with {@link ServerPools#submit(Runnable)}
+     */
+    static void submitOnRelease(ServletRequest request, Runnable handOff) {
+        request.setAttribute(HAND_OFF, handOff);
+    }
+
+    /**
+     * Runs the hand offs of {@link ServerPools#submitOnRelease}. Request listeners are called in reverse order : the
+     * multipart cleaner is registered after, so that it runs before the data plane starts reading the parts
+     * @param context of the servlets, before the server starts
+     */
+    static void addHandOffListener(ServletContextHandler context) {
+        context.addEventListener(new ServletRequestListener() {
+            @Override
+            public void requestDestroyed(ServletRequestEvent event) {
+                Object handOff = event.getServletRequest().getAttribute(HAND_OFF);
+                if (handOff != null) {
+                    event.getServletRequest().removeAttribute(HAND_OFF);
+                    ((Runnable) handOff).run();
+                }
+            }
+
+            @Override
+            public void requestInitialized(ServletRequestEvent event) {}
+        });
+        context.addEventListener(MultiPartCleanerListener.INSTANCE);
+    }
+
+    static void stop() {
+        if (data != null) data.shutdownNow();
+    }
+
+    static void writeMetrics(StringBuilder sb) {
+        sb.append("# HELP registration_pool_threads Threads of the control plane and data plane pools\n");
+        sb.append("# TYPE registration_pool_threads gauge\n");
+        if (control != null) {
+            sb.append("registration_pool_threads{pool=\"control\",state=\"busy\"} ").append(control.getBusyThreads()).append('\n');
+            sb.append("registration_pool_threads{pool=\"control\",state=\"max\"} ").append(control.getMaxThreads()).append('\n');
+        }
+        if (data != null) {
+            sb.append("registration_pool_threads{pool=\"data\",state=\"busy\"} ").append(data.getActiveCount()).append('\n');
+            sb.append("registration_pool_threads{pool=\"data\",state=\"max\"} ").append(data.getMaximumPoolSize()).append('\n');
+        }
+
+        sb.append("# HELP registration_pool_queue_size Tasks waiting for a thread of the pool\n");
+        sb.append("# TYPE registration_pool_queue_size gauge\n");
+        if (control != null) {
+            sb.append("registration_pool_queue_size{pool=\"control\"} ").append(control.getQueueSize()).append('\n');
+        }
+        if (data != null) {
+            sb.append("registration_pool_queue_size{pool=\"data\"} ").append(data.getQueue().size()).append('\n');
+        }
+
+        sb.append("# HELP registration_pool_rejected_total Requests rejected with a 503 because the pool was saturated\n");
+        sb.append("# TYPE registration_pool_rejected_total counter\n");
+        sb.append("registration_pool_rejected_total{pool=\"data\"} ").append(rejected.sum()).append('\n');
+    }
+}
@@ -34,33 +34,62 @@ package ch.epfl.biop.server;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.eclipse.jetty.server.MultiPartCleanerListener;
+import org.eclipse.jetty.util.MultiMap;
+import org.eclipse.jetty.util.UrlEncoded;
 
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequestEvent;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.Part;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 public class ServletUtils {
 
-    static String copyFileToServer(String tempFileFolder, HttpServletRequest request, String tag, String fileNameOut) throws IOException, ServletException {
+    static String copyFileToServer(String task, long jobId, String tempFileFolder, HttpServletRequest request, String tag, String fileNameOut) throws IOException, ServletException {
         String pathFileOut;
+        ServerEventRecorder.Span span = ServerEvents.recorder.multipartIngestion(task, jobId, tag);
         Part part = request.getPart(tag);
         String fileNameIn = part.getSubmittedFileName();
         String fileExtension = FilenameUtils.getExtension(fileNameIn);
         pathFileOut = tempFileFolder + fileNameOut + "." + fileExtension;
-        System.out.println(fileNameIn + " > " + pathFileOut);
+        AsyncLog.debug(ServletUtils.class, fileNameIn + " > " + pathFileOut);
         Files.copy(part.getInputStream(), Paths.get(pathFileOut),
                 StandardCopyOption.REPLACE_EXISTING);
+        span.end(part.getSize());
         return pathFileOut;
     }
 
+    /**
+     * Deletes the multipart parts of a request read on the data plane : jetty only cleans the parts read
+     * before the request is released, see {@link ServerPools#submitOnRelease}
+     * @param context of the servlet, the request has none once it is released
+     * @param request whose parts are not needed anymore
+     */
+    static void deleteParts(ServletContext context, HttpServletRequest request) {
+        MultiPartCleanerListener.INSTANCE.requestDestroyed(new ServletRequestEvent(context, request));
+    }
+
+    /**
+     * Reads a parameter of the query string only : unlike {@link HttpServletRequest#getParameter(String)},
+     * it does not parse the body of a multipart request
+     * @param request client
+     * @param name of the parameter
+     * @return the first value of the parameter in the query string, or null if it is absent
+     */
+    static String queryParameter(HttpServletRequest request, String name) {
+        String query = request.getQueryString();
+        if (query == null) return null;
+        MultiMap<String> parameters = new MultiMap<>();
+        UrlEncoded.decodeUtf8To(query, parameters);
+        return parameters.getValue(name, 0);
+    }
+
     public static void eraseFolder(String currentElastixJobFolder) {
         try {
             FileUtils.deleteDirectory(new File(currentElastixJobFolder));
@@ -69,25 +98,31 @@ public class ServletUtils {
         }
     }
 
-    public static void zipFile(File fileToZip, String fileName, ZipOutputStream zipOut) throws IOException {
-        if (fileToZip.isHidden()) {
-            return;
+    /**
+     * Hard link (same file, no copy) if the file system supports it, copy otherwise
+     */
+    static void link(File source, File link) throws IOException {
+        Files.deleteIfExists(link.toPath());
+        try {
+            Files.createLink(link.toPath(), source.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source.toPath(), link.toPath());
         }
-        if (fileToZip.isDirectory()) {
-            File[] children = fileToZip.listFiles();
-            for (File childFile : children) {
-                zipFile(childFile, childFile.getName(), zipOut);
+    }
+
+    /**
+     * @param folder folder or file
+     * @return the total size of the files contained in a folder, or the size of a file
+     */
+    public static long sizeOf(File folder) {
+        if (!folder.isDirectory()) return folder.length();
+        long size = 0;
+        File[] children = folder.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += sizeOf(child);
             }
-            return;
-        }
-        FileInputStream fis = new FileInputStream(fileToZip);
-        ZipEntry zipEntry = new ZipEntry(fileName);
-        zipOut.putNextEntry(zipEntry);
-        byte[] bytes = new byte[1024];
-        int length;
-        while ((length = fis.read(bytes)) >= 0) {
-            zipOut.write(bytes, 0, length);
         }
-        fis.close();
+        return size;
     }
 }
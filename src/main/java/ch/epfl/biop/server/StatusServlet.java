@@ -50,6 +50,8 @@ import java.io.IOException;
  *  - its configuration
  *  - how many jobs have processed, how many are processed, how many are on the queue
  *
+ *  Latency histograms of each job stage are exposed by the {@link MetricsServlet}
+ *
  *  see {@link StatusServlet.ServerStatus} for all info being sent
  *
  */
@@ -72,9 +74,9 @@ public class StatusServlet extends HttpServlet {
 
         String serverVersion = VersionUtils.getVersion(RegistrationServer.class); // Returns the version declared in the pom file
 
-        long currentElastixJobIndex = ElastixJobQueueServlet.jobIndex;
+        long currentElastixJobIndex = ElastixJobQueueServlet.jobIds.last();
 
-        long currentTransformixJobIndex = TransformixServlet.jobIndex;
+        long currentTransformixJobIndex = TransformixServlet.jobIds.last();
 
         int numberOfCurrentElastixTasks = ElastixServlet.getNumberOfCurrentTasks();
 
@@ -82,10 +84,26 @@ public class StatusServlet extends HttpServlet {
 
         int numberOfElastixTasksEnqueued = ElastixJobQueueServlet.getQueueSize();
 
-        int estimatedQueueProcessingTimeInS = ElastixJobQueueServlet.getQueueSize()*StatusServlet.config.elastixTaskEstimatedDurationInMs/1000;
+        /**
+         * Mean duration of the elastix jobs processed so far, -1 if none has been processed
+         */
+        int measuredElastixTaskDurationInMs = ServerMetrics.getMeasuredElastixJobDurationInMs();
+
+        /**
+         * Uses the measured job duration when available, and the configured estimation otherwise.
+         * Jobs are processed {@link RegistrationServerConfig#maxNumberOfSimultaneousRequests} at a time
+         */
+        int estimatedQueueProcessingTimeInS = (int) ((long) numberOfElastixTasksEnqueued
+                * (measuredElastixTaskDurationInMs > 0 ? measuredElastixTaskDurationInMs : StatusServlet.config.elastixTaskEstimatedDurationInMs)
+                / Math.max(1, StatusServlet.config.maxNumberOfSimultaneousRequests) / 1000);
 
         int numberOfRejectedRequestsBecauseOfFullQueue = ElastixJobQueueServlet.numberOfRejectedRequestsFullQueue.get();
 
+        /**
+         * True if the server does not accept new jobs, see {@link ServerAdmin#drain()}
+         */
+        boolean draining = ServerAdmin.draining;
+
         RegistrationServerConfig config = StatusServlet.config;
     }
 }
@@ -0,0 +1,363 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import ch.epfl.biop.wrappers.transformix.TransformixTask;
+import ch.epfl.biop.wrappers.transformix.TransformixTaskSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces transformix requests which share the same transform file into a single transformix call
+ *
+ * Transforming a few points is fast, most of the time of a transformix job is spent in launching the
+ * process and in writing / reading files. When many clients transform points through the same registration
+ * in the same time window, the points of all these requests are merged into a single points file,
+ * transformix is launched once, and the output points are split back to each request output folder.
+ *
+ * The first request of a batch is the 'leader': it waits {@link TransformixBatcher#batchWindowInMs} for other
+ * requests sharing its transform, or less if the batch gets full, then runs the batch on its own thread. The other
+ * requests wait for the leader to complete their result, at most {@link TransformixServlet#timeOut}.
+ *
+ * If anything goes wrong while merging or splitting, each request of the batch is processed individually, on
+ * the thread of its own request.
+ *
+ */
+
+public class TransformixBatcher {
+
+    public static Consumer<String> log = AsyncLog.consumer(TransformixBatcher.class, AsyncLog.Level.INFO);
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, 0 or less disables batching
+     */
+    public static int batchWindowInMs = 10;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, a full batch is launched without waiting for the window
+     */
+    public static int maxBatchSize = 64;
+
+    /**
+     * Batches which can still accept requests, the key identifies the transform file content and the points type
+     * this object also serves as the synchronization lock
+     */
+    final static Map<String, Batch> openBatches = new HashMap<>();
+
+    /**
+     * Blocks until the transformed points of this request are written in outputFolder
+     * @param jobId transformix job id of the request
+     * @param ptsPath input points file, already copied to the server
+     * @param transformPath transform file, already copied to the server
+     * @param outputFolder where transformix results should be written
+     * @throws Exception if transformix failed
+     */
+    public static void run(long jobId, String ptsPath, String transformPath, String outputFolder) throws Exception {
+
+        BatchRequest request = new BatchRequest(jobId, ptsPath, transformPath, outputFolder);
+
+        String key = null;
+        if (batchWindowInMs > 0) {
+            try {
+                request.points = PointsFile.read(ptsPath);
+                key = request.points.type + ":" + hash(transformPath);
+            } catch (IOException e) {
+                log.accept("Job " + jobId + " points file cannot be batched : " + e.getMessage());
+            }
+        }
+
+        if (key == null) {
+            runSingle(request);
+            return;
+        }
+
+        Batch batch;
+        boolean isLeader;
+        synchronized (openBatches) {
+            batch = openBatches.get(key);
+            isLeader = (batch == null);
+            if (isLeader) {
+                batch = new Batch();
+                openBatches.put(key, batch);
+            }
+            batch.requests.add(request);
+            if (batch.requests.size() >= maxBatchSize) {
+                openBatches.remove(key); // Full - the next request will start a new batch
+                batch.full.countDown(); // and the leader does not wait for the end of the window
+            }
+        }
+
+        if (isLeader) {
+            try {
+                batch.full.await(batchWindowInMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Other requests may already wait for this batch : it has to be processed anyway
+                Thread.currentThread().interrupt();
+            }
+            synchronized (openBatches) {
+                if (openBatches.get(key) == batch) {
+                    openBatches.remove(key);
+                }
+            }
+            try {
+                runBatch(batch);
+            } catch (Throwable t) {
+                // The other requests wait for the leader : none of them is left without a result
+                for (BatchRequest batchRequest : batch.requests) {
+                    batchRequest.done.completeExceptionally(t);
+                }
+            }
+        }
+
+        try {
+            if (request.done.get(TransformixServlet.timeOut, TimeUnit.MILLISECONDS) == Outcome.RUN_INDIVIDUALLY) {
+                runSingle(request);
+            }
+        } catch (TimeoutException e) {
+            throw new IOException("Job " + jobId + " : no result from its batch within " + TransformixServlet.timeOut + " ms");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static void runSingle(BatchRequest request) throws Exception {
+        TransformixTaskSettings settings = new TransformixTaskSettings();
+        settings.pts(() -> request.ptsPath);
+        settings.transform(() -> request.transformPath);
+        settings.outFolder(() -> request.outputFolder);
+
+        TransformixTask transformixTask = ExecutionBackends.backend.newTransformixTask();
+        transformixTask.setSettings(settings);
+        ServerEventRecorder.ProcessSpan processSpan = ServerEvents.recorder.subprocess(ServerMetrics.TRANSFORMIX, request.jobId);
+        int exitCode = -1; // failed or interrupted
+        long outputSize = -1;
+        try {
+            transformixTask.run();
+            exitCode = 0; // the task throws if the process did not succeed
+            outputSize = ServletUtils.sizeOf(new File(request.outputFolder));
+        } finally {
+            processSpan.end(outputSize, exitCode);
+        }
+    }
+
+    private static void runBatch(Batch batch) {
+        List<BatchRequest> requests = batch.requests; // No more modification : the batch is closed
+
+        if (requests.size() == 1) {
+            requests.get(0).done.complete(Outcome.RUN_INDIVIDUALLY);
+            return;
+        }
+
+        BatchRequest leader = requests.get(0);
+        log.accept("Batch of " + requests.size() + " transformix jobs led by job " + leader.jobId);
+
+        String batchFolder = Paths.get(TransformixServlet.transformixJobsFolder, "batch_" + leader.jobId).toString() + File.separator;
+        String batchFolderOutputs = batchFolder + "output" + File.separator;
+
+        try {
+            Files.createDirectories(Paths.get(batchFolderOutputs));
+
+            // Merges all points in a single file
+            List<String> mergedPoints = new ArrayList<>();
+            for (BatchRequest request : requests) {
+                mergedPoints.addAll(request.points.points);
+            }
+            String mergedPtsPath = batchFolder + "pts.txt";
+            PointsFile.write(mergedPtsPath, leader.points.type, mergedPoints);
+
+            runSingle(new BatchRequest(leader.jobId, mergedPtsPath, leader.transformPath, batchFolderOutputs));
+
+            // Splits the output points back to each request
+            List<String> outputLines = new ArrayList<>();
+            for (String line : Files.readAllLines(Paths.get(batchFolderOutputs, "outputpoints.txt"), StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) outputLines.add(line);
+            }
+
+            if (outputLines.size() != mergedPoints.size()) {
+                throw new IOException("Transformix returned " + outputLines.size() + " points instead of " + mergedPoints.size());
+            }
+
+            File logFile = new File(batchFolderOutputs, "transformix.log");
+            int offset = 0;
+            for (BatchRequest request : requests) {
+                int nPoints = request.points.points.size();
+                List<String> requestLines = new ArrayList<>(nPoints);
+                for (int i = 0; i < nPoints; i++) {
+                    requestLines.add(renumber(outputLines.get(offset + i), offset));
+                }
+                offset += nPoints;
+                Files.write(Paths.get(request.outputFolder, "outputpoints.txt"), requestLines, StandardCharsets.UTF_8);
+                if (logFile.exists()) {
+                    Files.copy(logFile.toPath(), Paths.get(request.outputFolder, "transformix.log"), StandardCopyOption.REPLACE_EXISTING);
+                }
+                request.done.complete(Outcome.PROCESSED);
+            }
+        } catch (Exception e) {
+            log.accept("Batch led by job " + leader.jobId + " failed (" + e.getMessage() + "), processing jobs individually");
+            for (BatchRequest request : requests) {
+                request.done.complete(Outcome.RUN_INDIVIDUALLY); // no effect on the requests already processed
+            }
+        } finally {
+            ServletUtils.eraseFolder(batchFolder);
+        }
+    }
+
+    /**
+     * Output lines look like "Point	12	; InputIndex = [ ... ] ..." : the point index is shifted back
+     * so that the result is identical to the one of a non batched request
+     */
+    static String renumber(String outputLine, int offset) {
+        if (offset == 0 || !outputLine.startsWith("Point")) return outputLine;
+        String[] tokens = outputLine.split("\t", 3);
+        if (tokens.length < 3) return outputLine;
+        try {
+            long index = Long.parseLong(tokens[1].trim());
+            return tokens[0] + "\t" + (index - offset) + "\t" + tokens[2];
+        } catch (NumberFormatException e) {
+            return outputLine;
+        }
+    }
+
+    static String hash(String path) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(Files.readAllBytes(Paths.get(path)));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Result of a batch for one of its requests
+     */
+    enum Outcome {
+        /**
+         * The output points of the request are written
+         */
+        PROCESSED,
+        /**
+         * The request is processed alone, by its own thread
+         */
+        RUN_INDIVIDUALLY
+    }
+
+    static class Batch {
+        final List<BatchRequest> requests = new ArrayList<>();
+
+        /**
+         * Released when the batch reaches {@link TransformixBatcher#maxBatchSize}
+         */
+        final CountDownLatch full = new CountDownLatch(1);
+    }
+
+    static class BatchRequest {
+        final long jobId;
+        final String ptsPath;
+        final String transformPath;
+        final String outputFolder;
+        final CompletableFuture<Outcome> done = new CompletableFuture<>();
+        PointsFile points;
+
+        BatchRequest(long jobId, String ptsPath, String transformPath, String outputFolder) {
+            this.jobId = jobId;
+            this.ptsPath = ptsPath;
+            this.transformPath = transformPath;
+            this.outputFolder = outputFolder;
+        }
+    }
+
+    /**
+     * Transformix input points file:
+     * first line 'point' or 'index', second line the number of points, then one point per line
+     */
+    static class PointsFile {
+        String type;
+        List<String> points;
+
+        static PointsFile read(String path) throws IOException {
+            List<String> lines = new ArrayList<>();
+            for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) lines.add(line.trim());
+            }
+            if (lines.size() < 2) throw new IOException("Invalid points file");
+            PointsFile pf = new PointsFile();
+            pf.type = lines.get(0).toLowerCase();
+            if (!pf.type.equals("point") && !pf.type.equals("index")) throw new IOException("Unknown points type " + pf.type);
+            int nPoints;
+            try {
+                nPoints = Integer.parseInt(lines.get(1));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid number of points " + lines.get(1));
+            }
+            if (lines.size() - 2 != nPoints) throw new IOException("Expected " + nPoints + " points, found " + (lines.size() - 2));
+            pf.points = lines.subList(2, lines.size());
+            return pf;
+        }
+
+        static void write(String path, String type, List<String> points) throws IOException {
+            List<String> lines = new ArrayList<>(points.size() + 2);
+            lines.add(type);
+            lines.add(Integer.toString(points.size()));
+            lines.addAll(points);
+            Files.write(Paths.get(path), lines, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -32,26 +32,22 @@
  */
 package ch.epfl.biop.server;
 
-import ch.epfl.biop.wrappers.transformix.DefaultTransformixTask;
-import ch.epfl.biop.wrappers.transformix.TransformixTask;
-import ch.epfl.biop.wrappers.transformix.TransformixTaskSettings;
 import org.eclipse.jetty.server.Response;
 
-import javax.servlet.AsyncContext;
-import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
-import java.util.zip.ZipOutputStream;
 
 import static ch.epfl.biop.server.ServletUtils.copyFileToServer;
 
@@ -61,11 +57,15 @@ import static ch.epfl.biop.server.ServletUtils.copyFileToServer;
  * Works similarly as the {@link ElastixServlet}, except that there's no queueing system
  * and no data is kept on the server
  *
+ * Concurrent requests sharing the same transform file are coalesced by the {@link TransformixBatcher}
+ *
+ * Requests are processed by the data plane pool, see {@link ServerPools}
+ *
  */
 
 public class TransformixServlet extends HttpServlet {
 
-    public static Consumer<String> log = (str) -> {};//System.out.println(TransformixServlet.class+":"+str);
+    public static Consumer<String> log = AsyncLog.consumer(TransformixServlet.class, AsyncLog.Level.INFO);
 
     final public static String InputPtsFileTag = "InputPts";
     final public static String TransformFilesTag = "transformFiles";
@@ -78,9 +78,12 @@ public class TransformixServlet extends HttpServlet {
         response.getWriter().println("{ \"status\": \"ok\"}");
     }
 
-    public static long jobIndex=0;
+    /**
+     * Gives the ids of the transformix jobs, see {@link JobIdGenerator}
+     */
+    final static JobIdGenerator jobIds = new JobIdGenerator();
 
-    public static int timeOut = 50000;
+    public static volatile int timeOut = 50000;
 
     public static void setJobsDataLocation(String jobsDataLocation) throws IOException {
         if (jobsDataLocation.endsWith(File.separator)) {
@@ -95,102 +98,134 @@ public class TransformixServlet extends HttpServlet {
         }
     }
 
-    static synchronized long getJobIndex() {
-        jobIndex++;
-        return jobIndex;
+    static long getJobIndex() {
+        return jobIds.next();
     }
 
     @Override
-    protected void doPost(HttpServletRequest request, HttpServletResponse response) {
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+        if (ServerAdmin.draining) {
+            ServerMetrics.transformix.rejectedDraining.increment();
+            // The upload is not read on this jetty thread: the connection is closed, and jetty discards the body
+            response.setHeader("Connection", "close");
+            response.setStatus(503);
+            return;
+        }
 
-        final long currentJobId = getJobIndex();
+        // A folder left by another server sharing the jobs folder is never reused
+        final long currentJobId = jobIds.createJobFolder(transformixJobsFolder, getJobIndex());
+        String currentTransformixJobFolder = Paths.get(transformixJobsFolder, "job_" + currentJobId).toString()+File.separator;
 
-        AsyncContext async = request.startAsync();
-        async.setTimeout(timeOut);
+        DataPlaneRequest dataPlaneRequest = new DataPlaneRequest(request, ServerMetrics.transformix, timeOut);
 
-        new Thread(() -> {
+        Runnable taskToPerform = () -> {
+            if (!dataPlaneRequest.start()) return; // Timed out while waiting for a data plane thread
+            AsyncLog.setJobId(currentJobId);
+            numberOfCurrentTask.getAndIncrement();
             try {
                 log.accept("Job " + currentJobId + " started");
                 log.accept("----------- STARTING TRANSFORMIX JOB " + currentJobId);
-                numberOfCurrentTask.getAndIncrement();
-
-                TransformixTaskSettings settings = new TransformixTaskSettings();
-
-                if (!new File(transformixJobsFolder, "job_" + currentJobId).exists()) {
-                    Files.createDirectory(Paths.get(transformixJobsFolder, "job_" + currentJobId));
-                }
-
-                String currentTransformixJobFolder = Paths.get(transformixJobsFolder, "job_" + currentJobId).toString()+File.separator;
 
                 String currentTransformixJobFolderOutputs = currentTransformixJobFolder+"output"+File.separator;
+                Files.createDirectory(Paths.get(currentTransformixJobFolder,  "output"));
 
-                if (!new File(currentTransformixJobFolderOutputs).exists()) {
-                    Files.createDirectory(Paths.get(currentTransformixJobFolder,  "output"));
-                }
+                JobTrace trace = JobTrace.get(ServerMetrics.TRANSFORMIX, currentJobId);
+                trace.mark("upload_start");
+                long uploadStart = System.nanoTime();
+                ServerEventRecorder.Span uploadSpan = ServerEvents.recorder.jobStage(ServerMetrics.TRANSFORMIX, currentJobId, "upload");
 
-                String ptsPath = copyFileToServer(currentTransformixJobFolder, request, InputPtsFileTag, "pts");
-                settings.pts(() -> ptsPath);
+                String ptsPath = copyFileToServer(ServerMetrics.TRANSFORMIX, currentJobId, currentTransformixJobFolder, request, InputPtsFileTag, "pts");
 
-                String mImagePath = copyFileToServer(currentTransformixJobFolder, request, TransformFilesTag, "transforms");
-                settings.transform(() -> mImagePath);
+                String transformPath = copyFileToServer(ServerMetrics.TRANSFORMIX, currentJobId, currentTransformixJobFolder, request, TransformFilesTag, "transforms");
 
-                String outputFolder = currentTransformixJobFolderOutputs;
+                ServerMetrics.transformix.upload.recordSince(uploadStart);
+                uploadSpan.end(request.getContentLengthLong());
+                trace.mark("upload_end");
+                ServletUtils.deleteParts(getServletContext(), request);
 
-                settings.outFolder(() -> outputFolder);
+                String outputFolder = currentTransformixJobFolderOutputs;
 
-                TransformixTask transformixTask = new DefaultTransformixTask();
-                transformixTask.setSettings(settings);
+                // Requests sharing the same transform may be processed in a single transformix call
+                trace.mark("process_start");
+                long runStart = System.nanoTime();
+                ServerEventRecorder.Span runSpan = ServerEvents.recorder.jobStage(ServerMetrics.TRANSFORMIX, currentJobId, "run");
+                TransformixBatcher.run(currentJobId, ptsPath, transformPath, outputFolder);
+                runSpan.end(ServletUtils.sizeOf(new File(outputFolder)));
+                ServerMetrics.transformix.run.recordSince(runStart);
+                trace.mark("process_end");
+
+                if (!dataPlaneRequest.isAlive()) {
+                    log.accept("Job " + currentJobId + " interrupted");
+                    ServerMetrics.transformix.cancellations.increment();
+                    response.setStatus(Response.SC_INTERNAL_SERVER_ERROR);
+                    return;
+                }
 
-                try {
-                    transformixTask.run();
-                    String sourceFile = outputFolder;
-                    FileOutputStream fos = new FileOutputStream(currentTransformixJobFolder + "res.zip");
-                    ZipOutputStream zipOut = new ZipOutputStream(fos);
-                    File fileToZip = new File(sourceFile);
+                long zipStart = System.nanoTime();
+                ServerEventRecorder.Span zipSpan = ServerEvents.recorder.jobStage(ServerMetrics.TRANSFORMIX, currentJobId, "zip");
+                String sourceFile = outputFolder;
+                try (OutputStream fos = new BufferedOutputStream(new FileOutputStream(currentTransformixJobFolder + "res.zip"), 64 * 1024)) {
+                    ZipPackager.zip(new File(sourceFile), fos, ZipPackager.responseLevel);
+                }
 
-                    ServletUtils.zipFile(fileToZip, fileToZip.getName(), zipOut);
-                    zipOut.close();
-                    fos.close();
+                File fileResZip = new File (currentTransformixJobFolder + "res.zip");
 
-                    File fileResZip = new File (currentTransformixJobFolder + "res.zip");
+                String registrationResultFileName = "transformix_result.zip";
+                ServerMetrics.transformix.zip.recordSince(zipStart);
+                zipSpan.end(fileResZip.length());
+                trace.mark("zip");
 
-                    String registrationResultFileName = "transformix_result.zip";
+                long sendStart = System.nanoTime();
+                ServerEventRecorder.Span sendSpan = ServerEvents.recorder.jobStage(ServerMetrics.TRANSFORMIX, currentJobId, "send");
 
-                    response.setContentType("application/zip");
-                    response.addHeader("Content-Disposition", "attachment; filename=" + registrationResultFileName);
-                    response.setContentLength((int) fileResZip.length());
+                response.setContentType("application/zip");
+                response.addHeader("Content-Disposition", "attachment; filename=" + registrationResultFileName);
+                response.addHeader("Server-Timing", trace.getServerTiming());
+                response.setContentLength((int) fileResZip.length());
+                response.setStatus(Response.SC_OK);
 
-                    FileInputStream fileInputStream = new FileInputStream(fileResZip);
+                try (FileInputStream fileInputStream = new FileInputStream(fileResZip)) {
                     ServletOutputStream responseOutputStream = response.getOutputStream();
                     int bytes;
                     while ((bytes = fileInputStream.read()) != -1) {
                         responseOutputStream.write(bytes);
                     }
-
-                    log.accept("----------- ENDING TRANSFORMIX JOB " + currentJobId);
                     responseOutputStream.close();
-                    fileInputStream.close();
-                    response.setStatus(Response.SC_OK);
-                    async.complete();
-                    numberOfCurrentTask.decrementAndGet();
-                    ServletUtils.eraseFolder(currentTransformixJobFolder);
-
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    response.setStatus(Response.SC_INTERNAL_SERVER_ERROR);
-                    async.complete();
-                    numberOfCurrentTask.decrementAndGet();
-                    ServletUtils.eraseFolder(currentTransformixJobFolder);
                 }
 
-            } catch (IOException|ServletException e) {
+                log.accept("----------- ENDING TRANSFORMIX JOB " + currentJobId);
+                ServerMetrics.transformix.send.recordSince(sendStart);
+                sendSpan.end(fileResZip.length());
+                trace.mark("send");
+                ServerMetrics.transformix.completed.increment();
+
+            } catch (Exception e) {
+                // Also catches unchecked exceptions : the data plane would swallow them and leave the request hanging
                 e.printStackTrace();
+                ServerMetrics.transformix.errors.increment();
                 response.setStatus(Response.SC_INTERNAL_SERVER_ERROR);
-                async.complete();
+            } finally {
+                // Whatever the outcome, the request is completed once and its data is removed
+                ServletUtils.deleteParts(getServletContext(), request);
+                dataPlaneRequest.complete();
                 numberOfCurrentTask.decrementAndGet();
+                ServletUtils.eraseFolder(currentTransformixJobFolder);
+                AsyncLog.clearJobId();
             }
-        }).start();
-
+        };
+
+        dataPlaneRequest.submitOnRelease(request, taskToPerform, () -> {
+            log.accept("Data plane saturated - transformix job " + currentJobId + " will not be processed");
+            ServerMetrics.transformix.rejectedBusy.increment();
+            ServletUtils.eraseFolder(currentTransformixJobFolder);
+            response.setStatus(503);
+        }, () -> {
+            log.accept("Timed out while waiting for a data plane thread - transformix job " + currentJobId + " will not be processed");
+            ServletUtils.deleteParts(getServletContext(), request);
+            ServletUtils.eraseFolder(currentTransformixJobFolder);
+            response.setStatus(503);
+        });
     }
 
     static AtomicInteger numberOfCurrentTask = new AtomicInteger(0);
@@ -0,0 +1,499 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Packages job folders into zip files, faster than a {@link java.util.zip.ZipOutputStream}:
+ *
+ * - each entry is either STORED or DEFLATED : already compressed files (by extension), tiny files and files
+ * which do not compress (deflate probe on their first bytes) are stored
+ * - large entries are deflated in parallel blocks, like pigz : each block is compressed on its own thread,
+ * with the end of the previous block as dictionary, and the blocks are written in order
+ * - the deflate level is chosen per use : {@link ZipPackager#responseLevel} (fast) for the results sent to the clients,
+ * {@link ZipPackager#archiveLevel} (strong) for the {@link JobArchive}
+ *
+ * Zip files are written without zip64 extensions, they are readable by {@link java.util.zip.ZipInputStream}. Folders
+ * which may not fit (4 GB of files, {@link ZipPackager#MAX_ENTRIES} files) are rejected before anything is written.
+ * Entries are named after their path relative to the zipped folder.
+ */
+public class ZipPackager {
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, deflate level of the results sent to the clients
+     */
+    public static int responseLevel = 1;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, deflate level of the archived jobs
+     */
+    public static int archiveLevel = 9;
+
+    /**
+     * Files smaller than this are stored : compressing them saves nothing
+     */
+    public static int storedBelowSizeInBytes = 256;
+
+    /**
+     * Size of the beginning of a file which is deflated to decide whether the file is compressible
+     */
+    public static int probeSizeInBytes = 64 * 1024;
+
+    /**
+     * Files which compress to more than this ratio during the probe are stored
+     */
+    public static double incompressibleRatio = 0.9;
+
+    /**
+     * Files larger than this are deflated in parallel blocks
+     */
+    public static int parallelThresholdInBytes = 1024 * 1024;
+
+    public static int blockSizeInBytes = 1024 * 1024;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, number of threads which deflate blocks
+     */
+    public static int numberOfThreads = Runtime.getRuntime().availableProcessors();
+
+    final static int DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * Limits of a zip without zip64 extensions : 0xFFFF and 0xFFFFFFFF mean that the value is in a zip64 record
+     */
+    final static int MAX_ENTRIES = 0xFFFF - 1;
+
+    final static long MAX_SIZE_IN_BYTES = 0xFFFFFFFFL - 1;
+
+    final static Set<String> compressedExtensions = new HashSet<>(Arrays.asList(
+            "zip", "gz", "bz2", "xz", "7z", "png", "jpg", "jpeg", "jp2", "gif", "webp", "mp4", "h5", "czi"));
+
+    static ExecutorService pool = null;
+
+    static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(Math.max(1, numberOfThreads), r -> {
+                Thread t = new Thread(r, "zip-packager");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Appends the configuration
+     * @param config provided configuration
+     */
+    public static synchronized void setConfiguration(RegistrationServerConfig config) {
+        responseLevel = config.responseCompressionLevel;
+        archiveLevel = config.archiveCompressionLevel;
+        if ((config.packagingThreads > 0) && (config.packagingThreads != numberOfThreads)) {
+            numberOfThreads = config.packagingThreads;
+            if (pool != null) pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Zips the files of a folder, or a single file
+     * @param folder folder (or file) to zip
+     * @param out where the zip is written, not closed
+     * @param level deflate level, 0 stores all entries
+     * @return the number of bytes written
+     * @throws IOException if a file cannot be read, the zip cannot be written, or if the folder is too large for a zip
+     * without zip64 extensions
+     */
+    public static long zip(File folder, OutputStream out, int level) throws IOException {
+        long[] filesAndBytes = new long[2];
+        count(folder, filesAndBytes);
+        if (filesAndBytes[0] > MAX_ENTRIES) {
+            throw new IOException(folder + " has " + filesAndBytes[0] + " files, more than the " + MAX_ENTRIES + " of a zip without zip64 extensions");
+        }
+        if (filesAndBytes[1] > MAX_SIZE_IN_BYTES) {
+            throw new IOException(folder + " has " + filesAndBytes[1] + " bytes of files, more than the 4 GB of a zip without zip64 extensions");
+        }
+        ZipWriter writer = new ZipWriter(out);
+        if (folder.isDirectory()) {
+            addFolder(writer, folder, "", level);
+        } else {
+            writer.add(folder, folder.getName(), level);
+        }
+        writer.finish();
+        return writer.position;
+    }
+
+    /**
+     * Counts the files which {@link ZipPackager#zip} writes, and their size (stored size, the deflated one is not known yet)
+     * @param file folder or file
+     * @param filesAndBytes incremented with the number of files and their total size
+     */
+    static void count(File file, long[] filesAndBytes) {
+        if (!file.isDirectory()) {
+            filesAndBytes[0]++;
+            filesAndBytes[1] += file.length();
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            if (!child.isHidden()) count(child, filesAndBytes);
+        }
+    }
+
+    static void addFolder(ZipWriter writer, File folder, String path, int level) throws IOException {
+        File[] children = folder.listFiles();
+        if (children == null) return;
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isHidden()) continue;
+            if (child.isDirectory()) {
+                addFolder(writer, child, path + child.getName() + "/", level);
+            } else {
+                writer.add(child, path + child.getName(), level);
+            }
+        }
+    }
+
+    /**
+     * @param file to zip
+     * @param level deflate level
+     * @return true if the file should be deflated
+     */
+    static boolean shouldDeflate(File file, int level) throws IOException {
+        if (level == 0) return false;
+        if (file.length() < storedBelowSizeInBytes) return false;
+        String name = file.getName().toLowerCase();
+        int dot = name.lastIndexOf('.');
+        if ((dot >= 0) && (compressedExtensions.contains(name.substring(dot + 1)))) return false;
+
+        // Probe : deflates the beginning of the file at the fastest level
+        byte[] sample = new byte[(int) Math.min(file.length(), probeSizeInBytes)];
+        int length;
+        try (InputStream is = new FileInputStream(file)) {
+            length = readFully(is, sample);
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[sample.length + 1024];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(buffer);
+            }
+            return compressed < incompressibleRatio * length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static int readFully(InputStream is, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = is.read(buffer, total, buffer.length - total);
+            if (read < 0) break;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * @param file stored entry
+     * @return the crc of the file content, written in the local header before the data
+     */
+    static long crc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream is = new FileInputStream(file)) {
+            int length;
+            while ((length = is.read(buffer)) >= 0) {
+                crc.update(buffer, 0, length);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Deflates a block as a part of a raw deflate stream
+     * @param block data
+     * @param length of the data in the block
+     * @param dictionary end of the previous block, or null for the first block
+     * @param last true for the last block of the entry : the deflate stream is finished
+     * @param level deflate level
+     * @return compressed data, which can be concatenated to the ones of the previous blocks
+     */
+    static byte[] deflateBlock(byte[] block, int length, byte[] dictionary, boolean last, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) deflater.setDictionary(dictionary);
+            deflater.setInput(block, 0, length);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                // Sync flush : the block ends on a byte boundary, without ending the stream
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Minimal zip writer, which accepts data deflated outside of it
+     */
+    static class ZipWriter {
+
+        final OutputStream out;
+
+        long position = 0;
+
+        final List<CentralEntry> entries = new ArrayList<>();
+
+        final int dosTime, dosDate;
+
+        ZipWriter(OutputStream out) {
+            this.out = out;
+            Calendar now = Calendar.getInstance();
+            dosTime = (now.get(Calendar.HOUR_OF_DAY) << 11) | (now.get(Calendar.MINUTE) << 5) | (now.get(Calendar.SECOND) >> 1);
+            dosDate = ((now.get(Calendar.YEAR) - 1980) << 9) | ((now.get(Calendar.MONTH) + 1) << 5) | now.get(Calendar.DAY_OF_MONTH);
+        }
+
+        static class CentralEntry {
+            byte[] name;
+            int flags, method;
+            long crc, compressedSize, size, offset;
+        }
+
+        void add(File file, String name, int level) throws IOException {
+            if (file.length() >= 0xFFFFFFFFL) throw new IOException("File " + file + " is too large for a zip without zip64 extensions");
+            CentralEntry entry = new CentralEntry();
+            entry.name = name.getBytes(StandardCharsets.UTF_8);
+            entry.offset = position;
+            entry.size = file.length();
+            if (shouldDeflate(file, level)) {
+                // Sizes and crc are only known at the end : they are written in a data descriptor
+                entry.method = 8;
+                entry.flags = 0x0808; // data descriptor, utf-8 names
+                writeLocalHeader(entry);
+                long start = position;
+                CRC32 crc = new CRC32();
+                if ((file.length() >= parallelThresholdInBytes) && (numberOfThreads > 1)) {
+                    deflateParallel(file, level, crc);
+                } else {
+                    deflateSequential(file, level, crc);
+                }
+                entry.crc = crc.getValue();
+                entry.compressedSize = position - start;
+                writeInt(0x08074b50);
+                writeInt(entry.crc);
+                writeInt(entry.compressedSize);
+                writeInt(entry.size);
+            } else {
+                // ZipInputStream needs the sizes and crc of stored entries before the data
+                entry.method = 0;
+                entry.flags = 0x0800; // utf-8 names
+                entry.crc = crc(file);
+                entry.compressedSize = entry.size;
+                writeLocalHeader(entry);
+                long copied = Files.copy(file.toPath(), out);
+                position += copied;
+                if (copied != entry.size) throw new IOException("File " + file + " changed while being zipped");
+            }
+            if (entry.compressedSize >= 0xFFFFFFFFL) throw new IOException("Entry " + name + " is too large for a zip without zip64 extensions");
+            entries.add(entry);
+        }
+
+        void deflateSequential(File file, int level, CRC32 crc) throws IOException {
+            Deflater deflater = new Deflater(level, true);
+            byte[] input = new byte[64 * 1024];
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream is = new FileInputStream(file)) {
+                int length;
+                while ((length = is.read(input)) >= 0) {
+                    crc.update(input, 0, length);
+                    deflater.setInput(input, 0, length);
+                    while (!deflater.needsInput()) {
+                        write(buffer, deflater.deflate(buffer));
+                    }
+                }
+                deflater.finish();
+                while (!deflater.finished()) {
+                    write(buffer, deflater.deflate(buffer));
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+
+        void deflateParallel(File file, int level, CRC32 crc) throws IOException {
+            ExecutorService executor = getPool();
+            int window = 2 * Math.max(1, numberOfThreads);
+            ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+            long remaining = file.length();
+            byte[] dictionary = null;
+            try (InputStream is = new FileInputStream(file)) {
+                while (remaining > 0) {
+                    byte[] block = new byte[(int) Math.min(blockSizeInBytes, remaining)];
+                    int length = readFully(is, block);
+                    if (length < block.length) throw new IOException("File " + file + " changed while being zipped");
+                    remaining -= length;
+                    crc.update(block, 0, length);
+                    final byte[] blockDictionary = dictionary;
+                    final boolean last = (remaining == 0);
+                    pending.add(executor.submit(() -> deflateBlock(block, length, blockDictionary, last, level)));
+                    dictionary = Arrays.copyOfRange(block, Math.max(0, length - DICTIONARY_SIZE), length);
+                    if (pending.size() >= window) {
+                        writeBlock(pending.poll());
+                    }
+                }
+                while (!pending.isEmpty()) {
+                    writeBlock(pending.poll());
+                }
+            } finally {
+                pending.forEach(f -> f.cancel(true));
+            }
+        }
+
+        void writeBlock(Future<byte[]> block) throws IOException {
+            try {
+                byte[] compressed = block.get();
+                write(compressed, compressed.length);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while zipping", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Block compression failed", e.getCause());
+            }
+        }
+
+        void writeLocalHeader(CentralEntry entry) throws IOException {
+            boolean descriptor = (entry.flags & 0x0008) != 0;
+            writeInt(0x04034b50);
+            writeShort(20); // version needed
+            writeShort(entry.flags);
+            writeShort(entry.method);
+            writeShort(dosTime);
+            writeShort(dosDate);
+            writeInt(descriptor ? 0 : entry.crc);
+            writeInt(descriptor ? 0 : entry.compressedSize);
+            writeInt(descriptor ? 0 : entry.size);
+            writeShort(entry.name.length);
+            writeShort(0); // extra field length
+            write(entry.name, entry.name.length);
+        }
+
+        void finish() throws IOException {
+            if (entries.size() >= 0xFFFF) throw new IOException("Too many entries for a zip without zip64 extensions");
+            long centralDirectoryOffset = position;
+            for (CentralEntry entry : entries) {
+                writeInt(0x02014b50);
+                writeShort(20); // version made by
+                writeShort(20); // version needed
+                writeShort(entry.flags);
+                writeShort(entry.method);
+                writeShort(dosTime);
+                writeShort(dosDate);
+                writeInt(entry.crc);
+                writeInt(entry.compressedSize);
+                writeInt(entry.size);
+                writeShort(entry.name.length);
+                writeShort(0); // extra field length
+                writeShort(0); // comment length
+                writeShort(0); // disk number
+                writeShort(0); // internal attributes
+                writeInt(0); // external attributes
+                writeInt(entry.offset);
+                write(entry.name, entry.name.length);
+            }
+            long centralDirectorySize = position - centralDirectoryOffset;
+            if (centralDirectoryOffset >= 0xFFFFFFFFL) throw new IOException("Zip too large without zip64 extensions");
+            writeInt(0x06054b50);
+            writeShort(0);
+            writeShort(0);
+            writeShort(entries.size());
+            writeShort(entries.size());
+            writeInt(centralDirectorySize);
+            writeInt(centralDirectoryOffset);
+            writeShort(0); // comment length
+            out.flush();
+        }
+
+        void write(byte[] bytes, int length) throws IOException {
+            out.write(bytes, 0, length);
+            position += length;
+        }
+
+        void writeShort(int value) throws IOException {
+            out.write(value & 0xFF);
+            out.write((value >>> 8) & 0xFF);
+            position += 2;
+        }
+
+        void writeInt(long value) throws IOException {
+            writeShort((int) (value & 0xFFFF));
+            writeShort((int) ((value >>> 16) & 0xFFFF));
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpClientTransport;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.client.util.OutputStreamContentProvider;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2;
+import org.eclipse.jetty.unixsocket.client.HttpClientTransportOverUnixSockets;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Jetty http client behind the Apache http client api used by the remote tasks, for the transports
+ * the Apache client does not have:
+ *
+ * - HTTP/2 cleartext (h2c, prior knowledge), see {@link RemoteTaskClient#http2} : all requests to a server - uploads,
+ * queue updates, status polls - are streams multiplexed on a single connection, with compressed headers. A new
+ * connection is only opened when the server limit of concurrent streams is reached. The server must have http2
+ * enabled ({@link ch.epfl.biop.server.RegistrationServerConfig#http2}).
+ *
+ * - Unix domain socket, see {@link RemoteTaskClient#useUnixSocket(String, String)} : for a server on the same host,
+ * without the TCP stack ({@link ch.epfl.biop.server.RegistrationServerConfig#unixSocket}).
+ *
+ * Request bodies are streamed while the request is sent, response bodies are read while they arrive.
+ *
+ */
+public class JettyTaskClient extends CloseableHttpClient {
+
+    final HttpClient httpClient;
+
+    final ClientConnectionManager connectionManager = new JettyConnectionManager();
+
+    /**
+     * @return a client multiplexing the requests over HTTP/2 connections
+     */
+    public static JettyTaskClient http2(int maxConnectionsPerServer, int maxIdleTimeInMs) {
+        return new JettyTaskClient(new HttpClientTransportOverHTTP2(new HTTP2Client()), "remote-task-h2", maxConnectionsPerServer, maxIdleTimeInMs);
+    }
+
+    /**
+     * @param unixSocket path of the socket file of the server, whatever the host of the request urls
+     * @return a client sending all its requests to the server listening on this socket
+     */
+    public static JettyTaskClient unixSocket(String unixSocket, int maxConnectionsPerServer, int maxIdleTimeInMs) {
+        return new JettyTaskClient(new HttpClientTransportOverUnixSockets(unixSocket), "remote-task-uds", maxConnectionsPerServer, maxIdleTimeInMs);
+    }
+
+    public JettyTaskClient(HttpClientTransport transport, String name, int maxConnectionsPerServer, int maxIdleTimeInMs) {
+        QueuedThreadPool executor = new QueuedThreadPool();
+        executor.setName(name);
+        executor.setDaemon(true);
+        httpClient = new HttpClient(transport, null);
+        httpClient.setExecutor(executor);
+        httpClient.setScheduler(new ScheduledExecutorScheduler(name + "-scheduler", true));
+        httpClient.setMaxConnectionsPerDestination(maxConnectionsPerServer);
+        httpClient.setIdleTimeout(maxIdleTimeInMs);
+        httpClient.setFollowRedirects(false);
+        // Bodies are passed as they are, like the apache client of the server does
+        httpClient.getContentDecoderFactories().clear();
+        try {
+            httpClient.start();
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not start the " + name + " client", e);
+        }
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+        URI uri = (request instanceof HttpUriRequest) ? ((HttpUriRequest) request).getURI() : URI.create(request.getRequestLine().getUri());
+        if ((!uri.isAbsolute()) && (target != null)) {
+            uri = URI.create(target.toURI()).resolve(uri);
+        }
+
+        Request jettyRequest = httpClient.newRequest(uri).method(request.getRequestLine().getMethod());
+        for (Header header : request.getAllHeaders()) {
+            if (isHopByHop(header.getName())) continue;
+            jettyRequest.header(header.getName(), header.getValue());
+        }
+
+        long timeOutInMs = 0;
+        if (request instanceof Configurable) {
+            RequestConfig config = ((Configurable) request).getConfig();
+            if ((config != null) && (config.getSocketTimeout() > 0)) {
+                timeOutInMs = config.getSocketTimeout();
+                jettyRequest.idleTimeout(timeOutInMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        HttpEntity entity = (request instanceof HttpEntityEnclosingRequest) ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+        OutputStreamContentProvider content = null;
+        if (entity != null) {
+            content = new OutputStreamContentProvider();
+            jettyRequest.content(content, entity.getContentType() == null ? null : entity.getContentType().getValue());
+        }
+
+        InputStreamResponseListener listener = new InputStreamResponseListener();
+        jettyRequest.send(listener);
+
+        if (content != null) {
+            try (OutputStream out = content.getOutputStream()) {
+                entity.writeTo(out);
+            } catch (IOException e) {
+                // The request failed or the server answered before reading all the body : the listener tells which
+                jettyRequest.abort(e);
+            }
+        }
+
+        Response response;
+        try {
+            response = listener.get(timeOutInMs > 0 ? timeOutInMs : Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            jettyRequest.abort(e);
+            throw new InterruptedIOException("Interrupted during request to " + uri);
+        } catch (TimeoutException e) {
+            jettyRequest.abort(e);
+            throw new IOException("No response from " + uri + " within " + timeOutInMs + " ms");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new ClientProtocolException(e.getCause());
+        }
+
+        int version = response.getVersion().getVersion();
+        JettyResponse result = new JettyResponse(new ProtocolVersion("HTTP", version / 10, version % 10), response.getStatus(), response.getReason());
+        for (HttpField field : response.getHeaders()) {
+            result.addHeader(field.getName(), field.getValue());
+        }
+        BasicHttpEntity body = new BasicHttpEntity();
+        body.setContent(listener.getInputStream());
+        body.setContentLength(response.getHeaders().getLongField(HttpHeader.CONTENT_LENGTH.asString()));
+        body.setContentType(result.getFirstHeader(HttpHeader.CONTENT_TYPE.asString()));
+        body.setContentEncoding(result.getFirstHeader(HttpHeader.CONTENT_ENCODING.asString()));
+        result.setEntity(body);
+        return result;
+    }
+
+    /**
+     * Connection specific headers are set by the jetty client (and are not allowed in HTTP/2)
+     */
+    static boolean isHopByHop(String name) {
+        return name.equalsIgnoreCase("Connection") || name.equalsIgnoreCase("Keep-Alive")
+                || name.equalsIgnoreCase("Transfer-Encoding") || name.equalsIgnoreCase("Upgrade")
+                || name.equalsIgnoreCase("Host") || name.equalsIgnoreCase("Content-Length");
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            httpClient.stop();
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    @Deprecated
+    public HttpParams getParams() {
+        return new BasicHttpParams();
+    }
+
+    @Override
+    @Deprecated
+    public ClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * The connections are pooled by the jetty client : idle and expired ones are closed by its own idle timeout,
+     * and a shutdown stops it
+     */
+    @Deprecated
+    class JettyConnectionManager implements ClientConnectionManager {
+
+        final SchemeRegistry schemeRegistry = SchemeRegistryFactory.createDefault();
+
+        @Override
+        public SchemeRegistry getSchemeRegistry() {
+            return schemeRegistry;
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+            return new ClientConnectionRequest() {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit unit) throws ConnectionPoolTimeoutException {
+                    throw new ConnectionPoolTimeoutException("Connections to " + route + " are managed by the jetty client");
+                }
+
+                @Override
+                public void abortRequest() {}
+            };
+        }
+
+        @Override
+        public void releaseConnection(ManagedClientConnection conn, long validDuration, TimeUnit timeUnit) {}
+
+        @Override
+        public void closeExpiredConnections() {}
+
+        @Override
+        public void closeIdleConnections(long idletime, TimeUnit tunit) {}
+
+        @Override
+        public void shutdown() {
+            try {
+                close();
+            } catch (IOException e) {
+                // Already stopped
+            }
+        }
+    }
+
+    static class JettyResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+        JettyResponse(ProtocolVersion version, int status, String reason) {
+            super(version, status, reason);
+        }
+
+        /**
+         * Closing the body before its end aborts the request (or resets the HTTP/2 stream)
+         */
+        @Override
+        public void close() throws IOException {
+            getEntity().getContent().close();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers;
+
+import ch.epfl.biop.server.AsyncLog;
+import com.google.gson.Gson;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static ch.epfl.biop.server.RegistrationServer.STATUS_PATH;
+
+/**
+ * Pool of registration servers, used by a {@link ch.epfl.biop.wrappers.elastix.RemoteElastixTask} to
+ * send each job to the server with the lowest predicted waiting time.
+ *
+ * The prediction is made from a snapshot of the status of each server ({@link ch.epfl.biop.server.StatusServlet}),
+ * refreshed every {@link RemoteServerPool#statusRefreshPeriodInMs} in the background. Between two refreshes, the
+ * jobs sent by this client are added to the snapshot, so that a burst of jobs is spread over all servers.
+ *
+ * A server which rejects a job (503) or which cannot be reached is considered unavailable until its next
+ * successful status refresh: the jobs are sent to the other servers first.
+ *
+ */
+public class RemoteServerPool {
+
+    public static Consumer<String> log = AsyncLog.consumer(RemoteServerPool.class, AsyncLog.Level.INFO);
+
+    /**
+     * Period between two status requests to each server
+     */
+    public static int statusRefreshPeriodInMs = 2000;
+
+    /**
+     * Timeout of status requests
+     */
+    public static int statusTimeOutInMs = 2000;
+
+    final List<String> serverUrls;
+
+    final Map<String, ServerState> states = new ConcurrentHashMap<>();
+
+    final ScheduledFuture<?> refreshTask;
+
+    /**
+     * Creates a pool and starts refreshing the status of its servers
+     * @param serverUrls root url of each server, for instance http://localhost:8090
+     */
+    public RemoteServerPool(String... serverUrls) {
+        if (serverUrls.length == 0) throw new IllegalArgumentException("A server pool needs at least one server");
+        this.serverUrls = new ArrayList<>(Arrays.asList(serverUrls));
+        for (String url : serverUrls) {
+            states.put(url, new ServerState());
+        }
+        refreshAll();
+        refreshTask = RemoteTaskExecutor.getScheduler().scheduleWithFixedDelay(
+                () -> RemoteTaskExecutor.getIoExecutor().execute(this::refreshAll),
+                statusRefreshPeriodInMs, statusRefreshPeriodInMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return all servers of the pool, sorted by increasing predicted waiting time - unavailable servers last
+     */
+    public List<String> getServersByPredictedWait() {
+        List<String> sorted = new ArrayList<>(serverUrls);
+        sorted.sort(Comparator.comparingDouble(url -> states.get(url).getPredictedWaitInMs()));
+        return sorted;
+    }
+
+    /**
+     * @return the number of servers in the pool
+     */
+    public int size() {
+        return serverUrls.size();
+    }
+
+    /**
+     * Should be called each time a job is enqueued on a server
+     * @param serverUrl server which accepted the job
+     */
+    public void notifyJobSent(String serverUrl) {
+        states.get(serverUrl).jobsSentSinceRefresh.incrementAndGet();
+    }
+
+    /**
+     * Should be called when a server rejected a job or could not be reached
+     * @param serverUrl server which failed
+     */
+    public void notifyFailure(String serverUrl) {
+        log.accept("Server "+serverUrl+" unavailable until next status refresh");
+        states.get(serverUrl).available = false;
+    }
+
+    /**
+     * Stops refreshing the status of the servers
+     */
+    public void close() {
+        refreshTask.cancel(false);
+    }
+
+    void refreshAll() {
+        for (String url : serverUrls) {
+            refresh(url);
+        }
+    }
+
+    void refresh(String serverUrl) {
+        ServerState state = states.get(serverUrl);
+        HttpGet statusRequest = new HttpGet(serverUrl + STATUS_PATH);
+        statusRequest.setConfig(RemoteTaskClient.getRequestConfig(statusTimeOutInMs));
+        try (CloseableHttpResponse response = RemoteTaskClient.getHttpClient().execute(statusRequest)) {
+            String json = EntityUtils.toString(response.getEntity());
+            if (response.getStatusLine().getStatusCode() != 200) {
+                state.available = false;
+                return;
+            }
+            ServerStatusSnapshot snapshot = new Gson().fromJson(json, ServerStatusSnapshot.class);
+            state.snapshot = snapshot;
+            state.jobsSentSinceRefresh.set(0);
+            state.available = (snapshot != null);
+        } catch (Exception e) {
+            state.available = false;
+        }
+    }
+
+    /**
+     * Status of a server as seen by this client
+     */
+    static class ServerState {
+
+        volatile ServerStatusSnapshot snapshot;
+
+        volatile boolean available = false;
+
+        final AtomicInteger jobsSentSinceRefresh = new AtomicInteger();
+
+        double getPredictedWaitInMs() {
+            ServerStatusSnapshot s = snapshot;
+            if ((!available) || (s == null) || (s.config == null)) return Double.MAX_VALUE;
+            int slots = Math.max(1, s.config.maxNumberOfSimultaneousRequests);
+            double taskDurationInMs = (s.measuredElastixTaskDurationInMs > 0) ? s.measuredElastixTaskDurationInMs : s.config.elastixTaskEstimatedDurationInMs;
+            int waitingTasks = s.numberOfCurrentElastixTasks
+                    + s.numberOfElastixTasksEnqueued
+                    + jobsSentSinceRefresh.get()
+                    - slots + 1;
+            // Ties between idle servers are broken by their load
+            return Math.max(0, waitingTasks) * taskDurationInMs / slots
+                    + (double) (s.numberOfCurrentElastixTasks + jobsSentSinceRefresh.get()) / slots;
+        }
+    }
+
+    /**
+     * Subset of the json sent by {@link ch.epfl.biop.server.StatusServlet}, only what's necessary to predict the waiting time
+     */
+    static class ServerStatusSnapshot {
+
+        int numberOfCurrentElastixTasks;
+
+        int numberOfElastixTasksEnqueued;
+
+        int measuredElastixTaskDurationInMs;
+
+        ConfigSnapshot config;
+
+        static class ConfigSnapshot {
+
+            int maxNumberOfSimultaneousRequests;
+
+            int elastixTaskEstimatedDurationInMs;
+        }
+    }
+}
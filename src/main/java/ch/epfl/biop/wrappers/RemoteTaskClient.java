@@ -0,0 +1,277 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers;
+
+import ch.epfl.biop.server.AsyncLog;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Http client shared by all remote tasks ({@link ch.epfl.biop.wrappers.elastix.RemoteElastixTask},
+ * {@link ch.epfl.biop.wrappers.transformix.RemoteTransformixTask})
+ *
+ * Connections to the registration servers are pooled and kept alive between requests: the enqueue request,
+ * all the queue update requests and the registration request of a job - and of successive jobs - reuse
+ * the same connections instead of paying a TCP handshake each time.
+ *
+ * The client is created lazily with the static settings below. These settings should thus be modified
+ * before the first remote task is run, or followed by a call to {@link RemoteTaskClient#close()}.
+ *
+ * With {@link RemoteTaskClient#http2}, requests are instead multiplexed over HTTP/2 connections. Servers on the
+ * same host can be reached through a unix domain socket, see {@link RemoteTaskClient#useUnixSocket(String, String)}.
+ *
+ * Call {@link RemoteTaskClient#close()} on shutdown to release all connections.
+ *
+ */
+public class RemoteTaskClient {
+
+    public static Consumer<String> log = AsyncLog.consumer(RemoteTaskClient.class, AsyncLog.Level.INFO);
+
+    /**
+     * Maximal number of connections opened to all servers
+     */
+    public static int maxTotalConnections = 200;
+
+    /**
+     * Maximal number of connections opened to a single server
+     */
+    public static int maxConnectionsPerRoute = 50;
+
+    /**
+     * Duration a connection is kept alive when the server does not specify it.
+     * Should be lower than the server idle timeout (30 s for Jetty by default)
+     */
+    public static int keepAliveInMs = 20000;
+
+    /**
+     * Connections idle for more than this duration are closed by a background thread
+     */
+    public static int maxIdleTimeInMs = 30000;
+
+    /**
+     * A pooled connection which has been inactive for more than this duration is checked
+     * before being reused - avoids using connections already closed by the server
+     */
+    public static int validateAfterInactivityInMs = 2000;
+
+    /**
+     * Number of times a request is retried when the server did not respond
+     */
+    public static int maxRetries = 3;
+
+    /**
+     * Uses HTTP/2 cleartext with prior knowledge ({@link JettyTaskClient}) instead of HTTP/1.1 : all the requests
+     * to a server are multiplexed on a single connection. All servers used must have http2 enabled
+     */
+    public static boolean http2 = false;
+
+    private static CloseableHttpClient httpClient;
+
+    private static PoolingHttpClientConnectionManager connectionManager;
+
+    /**
+     * @return the shared http client, created on first call
+     */
+    public static synchronized CloseableHttpClient getHttpClient() {
+        if (httpClient == null) {
+            CloseableHttpClient tcpClient = http2 ? JettyTaskClient.http2(maxConnectionsPerRoute, maxIdleTimeInMs) : createPooledClient();
+            httpClient = unixSockets.isEmpty() ? tcpClient : new UnixSocketRoutes(tcpClient);
+        }
+        return httpClient;
+    }
+
+    private static CloseableHttpClient createPooledClient() {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotalConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setValidateAfterInactivity(validateAfterInactivityInMs);
+
+        return HttpClientBuilder
+                .create()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .evictExpiredConnections()
+                .evictIdleConnections(maxIdleTimeInMs, TimeUnit.MILLISECONDS)
+                .setRetryHandler((exception, executionCount, context) -> {
+                    if (executionCount > maxRetries) {
+                        log.accept("Maximum tries reached for client http pool ");
+                        return false;
+                    }
+                    if (exception instanceof NoHttpResponseException) {
+                        log.accept("No response from server on " + executionCount + " call");
+                        return true;
+                    }
+                    return false;
+                })
+                .build();
+    }
+
+    /**
+     * Sends the requests to a server running on the same host through its unix domain socket
+     * ({@link ch.epfl.biop.server.RegistrationServerConfig#unixSocket}) instead of TCP. The url of the server
+     * is still used in the requests (http://localhost:8090 for instance)
+     * @param serverUrl url of the server, as given to the remote tasks
+     * @param unixSocket path of the socket file, null to go back to TCP
+     */
+    public static synchronized void useUnixSocket(String serverUrl, String unixSocket) {
+        if (unixSocket == null) {
+            unixSockets.remove(hostAndPort(serverUrl));
+        } else {
+            unixSockets.put(hostAndPort(serverUrl), unixSocket);
+        }
+        close(); // created again with the new routes
+    }
+
+    /**
+     * Unix socket paths, by host and port of the servers
+     */
+    final static Map<String, String> unixSockets = new ConcurrentHashMap<>();
+
+    static String hostAndPort(String url) {
+        URI uri = URI.create(url);
+        return hostAndPort(uri.getHost(), uri.getPort());
+    }
+
+    static String hostAndPort(String host, int port) {
+        return host.toLowerCase() + ":" + (port == -1 ? 80 : port);
+    }
+
+    /**
+     * Requests to the servers with a unix socket go through their own client, all the others through the tcp client
+     */
+    static class UnixSocketRoutes extends CloseableHttpClient {
+
+        final CloseableHttpClient tcpClient;
+
+        final Map<String, CloseableHttpClient> unixSocketClients = new HashMap<>();
+
+        UnixSocketRoutes(CloseableHttpClient tcpClient) {
+            this.tcpClient = tcpClient;
+            unixSockets.forEach((server, unixSocket) ->
+                    unixSocketClients.put(server, JettyTaskClient.unixSocket(unixSocket, maxConnectionsPerRoute, maxIdleTimeInMs)));
+        }
+
+        @Override
+        protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+            CloseableHttpClient client = (target == null) ? null : unixSocketClients.get(hostAndPort(target.getHostName(), target.getPort()));
+            return (client == null ? tcpClient : client).execute(target, request, context);
+        }
+
+        @Override
+        public void close() throws IOException {
+            tcpClient.close();
+            for (CloseableHttpClient client : unixSocketClients.values()) {
+                client.close();
+            }
+        }
+
+        @Override
+        @Deprecated
+        public HttpParams getParams() {
+            return tcpClient.getParams();
+        }
+
+        @Override
+        @Deprecated
+        public ClientConnectionManager getConnectionManager() {
+            return tcpClient.getConnectionManager();
+        }
+    }
+
+    /**
+     * @param timeOutInMs connection, pool and socket timeout
+     * @return a request configuration which can be set on each request
+     */
+    public static RequestConfig getRequestConfig(int timeOutInMs) {
+        return RequestConfig.custom()
+                .setConnectTimeout(timeOutInMs)
+                .setConnectionRequestTimeout(timeOutInMs)
+                .setSocketTimeout(timeOutInMs).build();
+    }
+
+    /**
+     * Closes all pooled connections and the eviction thread. The next call to {@link RemoteTaskClient#getHttpClient()}
+     * creates a new client
+     */
+    public static synchronized void close() {
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            httpClient = null;
+            connectionManager = null;
+        }
+    }
+
+    /**
+     * Uses the Keep-Alive timeout sent by the server, or {@link RemoteTaskClient#keepAliveInMs}
+     */
+    final static ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+        HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+        while (it.hasNext()) {
+            HeaderElement he = it.nextElement();
+            if (he.getValue() != null && he.getName().equalsIgnoreCase("timeout")) {
+                try {
+                    return Math.min(Long.parseLong(he.getValue()) * 1000, keepAliveInMs);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return keepAliveInMs;
+    };
+
+}
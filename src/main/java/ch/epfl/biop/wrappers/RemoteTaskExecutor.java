@@ -0,0 +1,312 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Threads shared by all asynchronous remote tasks
+ * (see {@link ch.epfl.biop.wrappers.elastix.RemoteElastixTask#runAsync()})
+ *
+ * - a single scheduler thread which only wakes up jobs once their waiting time in the server queue is over
+ * - a small pool of {@link RemoteTaskExecutor#ioThreads} threads which sends the requests: queue updates, uploads and downloads
+ *
+ * Submitting hundreds of jobs thus costs a handful of threads instead of one sleeping thread per job.
+ *
+ * The number of jobs simultaneously sent to a single server is bounded by {@link RemoteTaskExecutor#maxInFlightPerServer},
+ * the other jobs wait on the client side, in submission order.
+ *
+ */
+public class RemoteTaskExecutor {
+
+    /**
+     * Number of threads performing http requests for all asynchronous remote tasks
+     */
+    public static int ioThreads = 4;
+
+    /**
+     * Maximal number of jobs, per server, which have been sent and are not complete yet
+     */
+    public static int maxInFlightPerServer = 8;
+
+    /**
+     * If true and if they are available (see {@link VirtualThreads}), the steps run each on a new virtual thread instead
+     * of the {@link RemoteTaskExecutor#ioThreads} threads : a step blocked on an upload or a download does not delay
+     * the others. Set it before the first asynchronous task, or call {@link RemoteTaskExecutor#close()} first.
+     */
+    public static boolean virtualThreads = false;
+
+    private static ExecutorService ioExecutor;
+
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * Limiter of each server with tasks in flight, by root url
+     */
+    final static Map<String, InFlightLimiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * Step of an asynchronous remote task
+     */
+    public interface Step {
+        void run() throws Exception;
+    }
+
+    /**
+     * Starts a task as soon as the number of in flight tasks of its server is below {@link RemoteTaskExecutor#maxInFlightPerServer}
+     * @param server root url of the server the task is sent to
+     * @param task starts the task, should not block, and returns a future completed when the task is over
+     * @param <T> result type of the task
+     * @return a future completed with the result of the task - cancelling it cancels the task
+     */
+    public static <T> CompletableFuture<T> submit(String server, Supplier<CompletableFuture<T>> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        acquire(server, () -> {
+            if (result.isDone()) { // Cancelled while waiting
+                release(server);
+                return;
+            }
+            CompletableFuture<T> taskFuture;
+            try {
+                taskFuture = task.get();
+            } catch (Throwable t) {
+                release(server);
+                result.completeExceptionally(t);
+                return;
+            }
+            taskFuture.whenComplete((value, error) -> {
+                release(server);
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            });
+            result.whenComplete((value, error) -> {
+                if (result.isCancelled()) taskFuture.cancel(true);
+            });
+        });
+        return result;
+    }
+
+    /**
+     * Step of a task which holds a slot of a server
+     */
+    public interface SlotStep {
+        void run(Slot slot) throws Exception;
+    }
+
+    /**
+     * In flight slot of a task on a server, released when the task is over, or before if the task leaves the server
+     */
+    public static class Slot {
+
+        public final String server;
+
+        final AtomicBoolean released = new AtomicBoolean(false);
+
+        Slot(String server) {
+            this.server = server;
+        }
+
+        /**
+         * Frees the slot, only the first call has an effect
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) RemoteTaskExecutor.release(server);
+        }
+    }
+
+    /**
+     * Takes a slot of the first server with less than {@link RemoteTaskExecutor#maxInFlightPerServer} tasks in
+     * flight, or waits for a slot of the first server if all are busy, then executes a step on the io pool
+     * @param servers root urls of the servers the task can be sent to, by order of preference
+     * @param result future of the task, the slot is released when it is done
+     * @param step runs the task on the server of the slot
+     */
+    public static void acquire(List<String> servers, CompletableFuture<?> result, SlotStep step) {
+        Consumer<String> start = server -> {
+            Slot slot = new Slot(server);
+            result.whenComplete((value, error) -> slot.release());
+            execute(result, () -> step.run(slot));
+        };
+        for (String server : servers) {
+            if (tryAcquire(server)) {
+                start.accept(server);
+                return;
+            }
+        }
+        String first = servers.get(0);
+        acquire(first, () -> start.accept(first));
+    }
+
+    /**
+     * @return true if a slot of the server was free, it is then taken
+     */
+    static boolean tryAcquire(String server) {
+        boolean[] acquired = {false};
+        limiters.compute(server, (url, limiter) -> {
+            if (limiter == null) limiter = new InFlightLimiter();
+            if (limiter.inFlight < maxInFlightPerServer) {
+                limiter.inFlight++;
+                acquired[0] = true;
+            }
+            return (limiter.inFlight == 0) ? null : limiter;
+        });
+        return acquired[0];
+    }
+
+    /**
+     * Runs start once a slot of the server is taken, immediately if one is free
+     */
+    static void acquire(String server, Runnable start) {
+        boolean[] acquired = {false};
+        limiters.compute(server, (url, limiter) -> {
+            if (limiter == null) limiter = new InFlightLimiter();
+            if (limiter.inFlight < maxInFlightPerServer) {
+                limiter.inFlight++;
+                acquired[0] = true;
+            } else {
+                limiter.waiting.add(start);
+            }
+            return limiter;
+        });
+        if (acquired[0]) start.run();
+    }
+
+    /**
+     * Frees a slot of the server, or hands it over to the next task waiting for it
+     */
+    static void release(String server) {
+        Runnable[] next = {null};
+        limiters.computeIfPresent(server, (url, limiter) -> {
+            next[0] = limiter.waiting.poll();
+            if (next[0] == null) limiter.inFlight--;
+            // A server is only kept while it has tasks : the map does not grow with the servers used over time
+            return (limiter.inFlight == 0) ? null : limiter;
+        });
+        if (next[0] != null) {
+            // The slot is handed over to the next waiting task
+            getIoExecutor().execute(next[0]);
+        }
+    }
+
+    /**
+     * Executes a step on the io pool, the result is completed exceptionally if the step fails
+     * @param result future of the task the step belongs to, the step is skipped if it is already done
+     * @param step to perform
+     */
+    public static void execute(CompletableFuture<?> result, Step step) {
+        getIoExecutor().execute(() -> {
+            if (result.isDone()) return;
+            try {
+                step.run();
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+    }
+
+    /**
+     * Executes a step on the io pool after some delay, without holding any thread during the delay
+     * @param result future of the task the step belongs to, the step is skipped if it is already done
+     * @param step to perform
+     * @param delayInMs delay before performing the step
+     */
+    public static void schedule(CompletableFuture<?> result, Step step, long delayInMs) {
+        getScheduler().schedule(() -> execute(result, step), delayInMs, TimeUnit.MILLISECONDS);
+    }
+
+    static synchronized ExecutorService getIoExecutor() {
+        if (ioExecutor == null) {
+            ioExecutor = (virtualThreads && VirtualThreads.isAvailable()) ? VirtualThreads.newThreadPerTaskExecutor("remote-task-io-")
+                    : Executors.newFixedThreadPool(ioThreads, daemonThreadFactory("remote-task-io-"));
+        }
+        return ioExecutor;
+    }
+
+    static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("remote-task-scheduler-"));
+        }
+        return scheduler;
+    }
+
+    /**
+     * Stops the threads of the asynchronous tasks, pending steps are discarded
+     */
+    public static synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (ioExecutor != null) {
+            ioExecutor.shutdownNow();
+            ioExecutor = null;
+        }
+    }
+
+    static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger index = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Counts the tasks in flight for a server and keeps the tasks waiting for a free slot. Only changed within
+     * the atomic updates of {@link RemoteTaskExecutor#limiters}
+     */
+    static class InFlightLimiter {
+
+        int inFlight = 0;
+
+        final Deque<Runnable> waiting = new ArrayDeque<>();
+    }
+}
@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers;
+
+import java.util.Random;
+
+/**
+ * Duration of a simulated elastix or transformix task, sampled from a distribution:
+ * - "constant" : always the mean
+ * - "uniform" : uniform distribution with the given mean and standard deviation
+ * - "normal" : normal distribution, negative values give 0
+ * - "lognormal" : log-normal distribution with the given mean and standard deviation, usual for task durations
+ * - "exponential" : exponential distribution with the given mean, the standard deviation is ignored
+ *
+ * The random generator is seeded : the same sequence of tasks gets the same sequence of durations
+ */
+public class SimulatedDuration {
+
+    public final String distribution;
+
+    public final double meanInMs;
+
+    public final double sdInMs;
+
+    final Random random;
+
+    public SimulatedDuration(String distribution, double meanInMs, double sdInMs, long seed) {
+        this.distribution = distribution;
+        this.meanInMs = meanInMs;
+        this.sdInMs = sdInMs;
+        this.random = new Random(seed);
+        if (!distribution.equals("constant") && !distribution.equals("uniform") && !distribution.equals("normal")
+                && !distribution.equals("lognormal") && !distribution.equals("exponential")) {
+            throw new IllegalArgumentException("Unknown duration distribution " + distribution);
+        }
+    }
+
+    /**
+     * @return a duration in ms, never negative
+     */
+    public synchronized long sampleInMs() {
+        double value;
+        switch (distribution) {
+            case "uniform":
+                value = meanInMs + sdInMs * Math.sqrt(3) * (2 * random.nextDouble() - 1);
+                break;
+            case "normal":
+                value = meanInMs + sdInMs * random.nextGaussian();
+                break;
+            case "lognormal":
+                if (meanInMs <= 0) {
+                    value = 0;
+                } else {
+                    double sigma2 = Math.log(1 + (sdInMs * sdInMs) / (meanInMs * meanInMs));
+                    double mu = Math.log(meanInMs) - sigma2 / 2;
+                    value = Math.exp(mu + Math.sqrt(sigma2) * random.nextGaussian());
+                }
+                break;
+            case "exponential":
+                value = -meanInMs * Math.log(1 - random.nextDouble());
+                break;
+            default: // constant
+                value = meanInMs;
+        }
+        return Math.max(0, Math.round(value));
+    }
+
+    static volatile long sink;
+
+    /**
+     * Keeps the current thread busy on the cpu, as an elastix or transformix process would
+     * @param durationInMs time spent
+     * @throws InterruptedException if the thread is interrupted (for instance, the task is cancelled)
+     */
+    public static void burnCpu(long durationInMs) throws InterruptedException {
+        long end = System.nanoTime() + durationInMs * 1_000_000L;
+        long x = System.nanoTime() | 1;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 10_000; i++) { // xorshift
+                x ^= x << 13;
+                x ^= x >>> 7;
+                x ^= x << 17;
+            }
+            if (Thread.interrupted()) throw new InterruptedException("Simulated task interrupted");
+        }
+        sink = x;
+    }
+}
@@ -0,0 +1,88 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Gives access to the {@link VirtualThreadSupport} of the running JVM
+ *
+ * The implementation is used if it has been compiled (JDK 21+, 'java21' maven profile) and if the running JVM
+ * supports it. Otherwise {@link VirtualThreads#isAvailable()} is false and platform threads should be used.
+ *
+ */
+public class VirtualThreads {
+
+    final static String VIRTUAL_THREADS_CLASS = "ch.epfl.biop.wrappers.java21.JdkVirtualThreads";
+
+    final static VirtualThreadSupport support = loadSupport();
+
+    static VirtualThreadSupport loadSupport() {
+        try {
+            return (VirtualThreadSupport) Class.forName(VIRTUAL_THREADS_CLASS).getDeclaredConstructor().newInstance();
+        } catch (Throwable t) {
+            // Not compiled, or running on a JVM older than 21 (UnsupportedClassVersionError)
+            return null;
+        }
+    }
+
+    public static boolean isAvailable() {
+        return support != null;
+    }
+
+    /**
+     * @param prefix of the thread names, followed by an index
+     * @return a factory of virtual threads
+     * @throws UnsupportedOperationException if virtual threads are not available
+     */
+    public static ThreadFactory threadFactory(String prefix) {
+        return get().threadFactory(prefix);
+    }
+
+    /**
+     * @param prefix of the thread names, followed by an index
+     * @return an executor which starts a new virtual thread for each task
+     * @throws UnsupportedOperationException if virtual threads are not available
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        return get().newThreadPerTaskExecutor(prefix);
+    }
+
+    static VirtualThreadSupport get() {
+        if (support == null) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21+ and a build with the 'java21' maven profile");
+        }
+        return support;
+    }
+}
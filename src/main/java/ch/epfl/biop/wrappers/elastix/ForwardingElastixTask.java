@@ -0,0 +1,67 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers.elastix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Elastix task which does not run elastix but hands its files to another component,
+ * for instance the workers of a cluster (see ch.epfl.biop.server.ClusterCoordinator)
+ *
+ * The output folder should contain the elastix results once {@link ForwardingElastixTask#run()} returns.
+ */
+public abstract class ForwardingElastixTask extends ElastixTask {
+
+    @Override
+    public void run() throws Exception {
+        List<String> parameterFilePaths = new ArrayList<>();
+        for (Supplier<String> parameterFilePath : settings.transformationParameterPathSupplier) {
+            parameterFilePaths.add(parameterFilePath.get());
+        }
+        run(settings.fixedImagePathSupplier.get(), settings.movingImagePathSupplier.get(),
+                settings.initialTransformFilePath, parameterFilePaths, settings.outputFolderSupplier.get());
+    }
+
+    /**
+     * @param fixedImagePath fixed image
+     * @param movingImagePath moving image
+     * @param initialTransformPath initial transform file, null if there is none
+     * @param parameterFilePaths registration parameter files, in order
+     * @param outputFolder where the results should be written
+     * @throws Exception if the registration failed
+     */
+    protected abstract void run(String fixedImagePath, String movingImagePath, String initialTransformPath,
+                                List<String> parameterFilePaths, String outputFolder) throws Exception;
+}
@@ -0,0 +1,55 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers.elastix;
+
+import ch.epfl.biop.server.ElastixJobProcessor;
+
+import java.util.List;
+
+/**
+ * Processes an Elastix task with the {@link ch.epfl.biop.server.RegistrationServer} running in the same JVM,
+ * for instance when Fiji itself is the server of a workstation
+ *
+ * The job goes through the queue of the server like the jobs of {@link RemoteElastixTask}, but without http :
+ * the input files are read where they are, and the results are written directly in the output folder
+ * (no multipart upload, no zip of the results), see {@link ElastixJobProcessor#process}
+ */
+public class LocalElastixTask extends ForwardingElastixTask {
+
+    @Override
+    protected void run(String fixedImagePath, String movingImagePath, String initialTransformPath,
+                       List<String> parameterFilePaths, String outputFolder) throws Exception {
+        String taskMetadata = ((settings.taskInfo != null) && (!settings.taskInfo.trim().equals(""))) ? settings.taskInfo : null;
+        ElastixJobProcessor.process(fixedImagePath, movingImagePath, initialTransformPath, parameterFilePaths, outputFolder, taskMetadata);
+    }
+}
@@ -32,25 +32,33 @@
  */
 package ch.epfl.biop.wrappers.elastix;
 
+import ch.epfl.biop.server.AsyncLog;
 import ch.epfl.biop.server.ElastixJobQueueServlet;
 import ch.epfl.biop.server.ElastixServlet;
 import com.google.gson.Gson;
-import org.apache.commons.io.IOUtils;
+import ch.epfl.biop.wrappers.RemoteServerPool;
+import ch.epfl.biop.wrappers.RemoteTaskClient;
+import ch.epfl.biop.wrappers.RemoteTaskExecutor;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
-import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.zip.ZipEntry;
@@ -61,103 +69,261 @@ import static ch.epfl.biop.server.RegistrationServer.ELASTIX_QUEUE_PATH;
 
 /**
  * Can process an Elastix task by sending it to a {@link ch.epfl.biop.server.RegistrationServer}
+ *
+ * All requests go through the shared connection pool of {@link RemoteTaskClient}
+ *
+ * The task can be bound to a single server, or to a {@link RemoteServerPool}
  */
 public class RemoteElastixTask extends ElastixTask {
 
-    public static Consumer<String> log = (str) -> System.out.println(RemoteElastixTask.class+":"+str);
+    public static Consumer<String> log = AsyncLog.consumer(RemoteElastixTask.class, AsyncLog.Level.DEBUG);
 
+    String serverRootUrl;
     String serverUrl;
     String serverUrlQueue;
 
+    /**
+     * When not null, each job is sent to the server of the pool with the lowest predicted waiting time
+     */
+    RemoteServerPool serverPool;
+
     public static int timeOutInMs = 100000;
 
     public RemoteElastixTask(String serverUrl) {
+        setServer(serverUrl);
+    }
+
+    /**
+     * @param serverPool servers the job can be sent to
+     */
+    public RemoteElastixTask(RemoteServerPool serverPool) {
+        this.serverPool = serverPool;
+    }
+
+    void setServer(String serverUrl) {
+        this.serverRootUrl = serverUrl;
         this.serverUrl = serverUrl+ELASTIX_PATH;
         this.serverUrlQueue = serverUrl+ELASTIX_QUEUE_PATH;
     }
 
     public void run() throws Exception {
 
-        //int timeoutMs = 50000;
-        RequestConfig config = RequestConfig.custom()
-                .setConnectTimeout(timeOutInMs)
-                .setConnectionRequestTimeout(timeOutInMs)
-                .setSocketTimeout(timeOutInMs).build();
-
-        CloseableHttpClient httpclient =
-                HttpClientBuilder
-                        .create()
-                        .setDefaultRequestConfig(config)
-                        .setRetryHandler((exception, executionCount, context) -> {
-                            if (executionCount > 3) {
-                                log.accept("Maximum tries reached for client http pool ");
-                                return false;
-                            }
-                            if (exception instanceof org.apache.http.NoHttpResponseException) {
-                                log.accept("No response from server on " + executionCount + " call");
-                                return true;
-                            }
-                            return false;
-                        })
-                        .build();
-
-        // Queuing job
-        long jobId;
+        ElastixJobQueueServlet.WaitingJob job = enqueue();
 
-        // id = -1 means that the client wants to enter the queue
-        HttpPost enqueueJobRequest = new HttpPost(serverUrlQueue +"?id=-1");
+        // Sends as many queue update requests as necessary in order to be allowed to process the request
+        while (job.waitingTimeInMs!=0) {
+            try {
+                Thread.sleep(job.waitingTimeInMs);
+            } catch (InterruptedException e) {
+                log.accept("RemoteElastixTask interrupted");
+                throw new InterruptedException("Remote Elastik Task interrupted");
+            }
+            job = update(job);
+        }
+
+        // Waiting time = 0 meaning we can start the really elastix registration
+        register(job.jobId);
+    }
+
+    /**
+     * Non blocking version of {@link RemoteElastixTask#run()}
+     *
+     * The waiting time in the server queue is spent without holding any thread: queue updates,
+     * upload and download are performed on the small shared pool of {@link RemoteTaskExecutor}, and
+     * the number of jobs simultaneously sent to a server is bounded by {@link RemoteTaskExecutor#maxInFlightPerServer}.
+     * With a pool, the job goes to the best server with a free slot. Extra jobs wait on the client side,
+     * without any request sent to the server.
+     *
+     * Cancelling the returned future stops the queue updates of this job.
+     *
+     * @return a future completed when the registration results are written in the output folder
+     */
+    public CompletableFuture<Void> runAsync() {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        start((serverPool == null) ? Collections.singletonList(serverRootUrl) : serverPool.getServersByPredictedWait(), result);
+        return result;
+    }
 
-        HttpResponse response;
+    /**
+     * Takes a slot of the first server with a free slot and enters its queue. With a pool, the next
+     * servers are tried if the server is overloaded or unreachable
+     * @param servers root urls of the servers, by order of preference
+     * @param result future of the task
+     */
+    private void start(List<String> servers, CompletableFuture<Void> result) {
+        if (servers.isEmpty()) {
+            result.completeExceptionally(new IOException("No server available in the pool"));
+            return;
+        }
+        RemoteTaskExecutor.acquire(servers, result, slot -> {
+            ElastixJobQueueServlet.WaitingJob job;
+            try {
+                job = enqueue(slot.server);
+            } catch (HttpException | IOException e) {
+                if (serverPool == null) throw e;
+                log.accept("Server "+slot.server+" failed to enqueue the job : "+e.getMessage());
+                serverPool.notifyFailure(slot.server);
+                slot.release();
+                List<String> others = new ArrayList<>(servers);
+                others.remove(slot.server);
+                if (others.isEmpty()) throw e;
+                start(others, result);
+                return;
+            }
+            if (serverPool != null) serverPool.notifyJobSent(slot.server);
+            setServer(slot.server);
+            next(job, slot, result);
+        });
+    }
+
+    private void next(ElastixJobQueueServlet.WaitingJob job, RemoteTaskExecutor.Slot slot, CompletableFuture<Void> result) {
+        if (job.waitingTimeInMs == 0) {
+            RemoteTaskExecutor.execute(result, () -> {
+                register(job.jobId);
+                result.complete(null);
+            });
+        } else {
+            RemoteTaskExecutor.schedule(result, () -> {
+                ElastixJobQueueServlet.WaitingJob updated;
+                try {
+                    updated = poll(job.jobId);
+                } catch (IOException e) {
+                    if (serverPool == null) throw e;
+                    log.accept("Server "+slot.server+" unreachable, job "+job.jobId+" is sent to another server");
+                    serverPool.notifyFailure(slot.server);
+                    // The job leaves the server, and waits for a slot on another one
+                    slot.release();
+                    start(serverPool.getServersByPredictedWait(), result);
+                    return;
+                }
+                next(updated, slot, result);
+            }, job.waitingTimeInMs);
+        }
+    }
+
+    /**
+     * Enters the queue of the server, or of the best server of the pool. With a pool, the job
+     * is sent to the next best server if a server is overloaded or unreachable
+     * @return the job created by the server, with its id and waiting time
+     * @throws Exception if the server (all servers of the pool) is overloaded or unreachable
+     */
+    ElastixJobQueueServlet.WaitingJob enqueue() throws Exception {
+        if (serverPool == null) return enqueue(serverRootUrl);
+
+        Exception lastError = null;
+        for (String server : serverPool.getServersByPredictedWait()) {
+            try {
+                ElastixJobQueueServlet.WaitingJob job = enqueue(server);
+                serverPool.notifyJobSent(server);
+                setServer(server);
+                return job;
+            } catch (HttpException | IOException e) {
+                log.accept("Server "+server+" failed to enqueue the job : "+e.getMessage());
+                serverPool.notifyFailure(server);
+                lastError = e;
+            }
+        }
+        if (lastError == null) throw new IOException("No server available in the pool");
+        throw lastError;
+    }
+
+    /**
+     * Asks for the new state of a queued job. With a pool, the job is enqueued again on another
+     * server if its server cannot be reached anymore
+     * @param job queued job
+     * @return the updated job
+     * @throws Exception if the job cannot be updated
+     */
+    ElastixJobQueueServlet.WaitingJob update(ElastixJobQueueServlet.WaitingJob job) throws Exception {
         try {
-            response = httpclient.execute(enqueueJobRequest);
+            return poll(job.jobId);
+        } catch (IOException e) {
+            if (serverPool == null) throw e;
+            log.accept("Server "+serverRootUrl+" unreachable, job "+job.jobId+" is sent to another server");
+            serverPool.notifyFailure(serverRootUrl);
+            return enqueue();
+        }
+    }
+
+    /**
+     * Enters the queue of a server
+     * @param server root url of the server
+     * @return the job created by the server, with its id and waiting time
+     * @throws Exception if the server is overloaded or unreachable
+     */
+    ElastixJobQueueServlet.WaitingJob enqueue(String server) throws Exception {
+
+        RequestConfig config = RemoteTaskClient.getRequestConfig(timeOutInMs);
+
+        CloseableHttpClient httpclient = RemoteTaskClient.getHttpClient();
+
+        // id = -1 means that the client wants to enter the queue
+        HttpPost enqueueJobRequest = new HttpPost(server+ELASTIX_QUEUE_PATH +"?id=-1");
+        enqueueJobRequest.setConfig(config);
+
+        String enqueueResponse;
+        try (CloseableHttpResponse response = httpclient.execute(enqueueJobRequest)) {
+            if (response.getStatusLine().getStatusCode() == 503) {
+                // Queue too big client rejected directly
+                EntityUtils.consume(response.getEntity());
+                throw new HttpException("Registration server overload.");
+            }
+            enqueueResponse = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
         } catch (ClientProtocolException e) {
             e.printStackTrace();
             throw new HttpException("Server queueing registration failed with error message : "+e.getMessage());
         }
 
-        if (response.getStatusLine().toString().equals("HTTP/1.1 503 Service Unavailable")) {
-            // Queue too big client rejected directly
-            throw new HttpException("Registration server overload.");
-        }
-
-        String enqueueResponse = IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8);
-        response.getEntity().getContent().close(); // necessary ?
-
         log.accept("Enqueue response : "+enqueueResponse);
 
         ElastixJobQueueServlet.WaitingJob job = new Gson().fromJson(enqueueResponse, ElastixJobQueueServlet.WaitingJob.class);
+        if (job == null) {
+            throw new Exception("The registration server did not return any job for the registration queue");
+        }
+        return job;
+    }
 
-        jobId = job.jobId;
+    /**
+     * Asks the server for an update of the state of a queued job
+     * @param jobId id given by the server on enqueue
+     * @return the updated job, with its waiting time
+     * @throws Exception if the job is not known anymore by the server or if the server is unreachable
+     */
+    ElastixJobQueueServlet.WaitingJob poll(long jobId) throws Exception {
 
-        enqueueJobRequest = new HttpPost(serverUrlQueue+"?id="+job.jobId); // We know the id the server will thus recognize the task
+        CloseableHttpClient httpclient = RemoteTaskClient.getHttpClient();
 
-        // Sends as many queue update requests as necessary in order to be allowed to process the request
-        while (job.waitingTimeInMs!=0) {
-            try {
-                Thread.sleep(job.waitingTimeInMs);
-            } catch (InterruptedException e) {
-                log.accept("RemoteElastixTask interrupted");
-                throw new InterruptedException("Remote Elastik Task interrupted");
-            }
-            try {
-                response = httpclient.execute(enqueueJobRequest);
-            } catch (ClientProtocolException e) {
-                e.printStackTrace();
-                throw new HttpException(" Server queueing registration failed with error message : "+e.getMessage());
-            }
+        HttpPost enqueueJobRequest = new HttpPost(serverUrlQueue+"?id="+jobId); // We know the id the server will thus recognize the task
+        enqueueJobRequest.setConfig(RemoteTaskClient.getRequestConfig(timeOutInMs));
 
-            enqueueResponse = IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8);
-            response.getEntity().getContent().close(); // necessary ?
+        String enqueueResponse;
+        try (CloseableHttpResponse response = httpclient.execute(enqueueJobRequest)) {
+            enqueueResponse = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+        } catch (ClientProtocolException e) {
+            e.printStackTrace();
+            throw new HttpException(" Server queueing registration failed with error message : "+e.getMessage());
+        }
 
-            log.accept("Enqueue response : "+enqueueResponse);
-            job = new Gson().fromJson(enqueueResponse, ElastixJobQueueServlet.WaitingJob.class); // updates the waiting time
-            if (job == null) {
-                throw new Exception("The registration server did not return any update on the queue of registration jobs");
-            }
+        log.accept("Enqueue response : "+enqueueResponse);
+        ElastixJobQueueServlet.WaitingJob job = new Gson().fromJson(enqueueResponse, ElastixJobQueueServlet.WaitingJob.class); // updates the waiting time
+        if (job == null) {
+            throw new Exception("The registration server did not return any update on the queue of registration jobs");
         }
+        return job;
+    }
+
+    /**
+     * Sends the registration request of a job which is ready to be processed, and writes the result
+     * in the output folder
+     * @param jobId id of the job, which should have a zero waiting time
+     * @throws Exception if the registration failed
+     */
+    void register(long jobId) throws Exception {
+
+        CloseableHttpClient httpclient = RemoteTaskClient.getHttpClient();
 
-        // Waiting time = 0 meaning we can start the really elastix registration
         HttpPost httppost = new HttpPost(serverUrl+"?id="+jobId);
+        httppost.setConfig(RemoteTaskClient.getRequestConfig(timeOutInMs));
 
         MultipartEntityBuilder builder = MultipartEntityBuilder.create();
         builder.setMode(HttpMultipartMode.BROWSER_COMPATIBLE);
@@ -202,6 +368,7 @@ public class RemoteElastixTask extends ElastixTask {
 
         log.accept(">>> Client sending Registration Request");
 
+        CloseableHttpResponse response;
         try {
             response = httpclient.execute(httppost);
         } catch (ClientProtocolException e) {
@@ -209,64 +376,77 @@ public class RemoteElastixTask extends ElastixTask {
             throw new HttpException("Server registration failed with error message : "+e.getMessage());
         }
 
-        log.accept(">>> Client received response status "+response.getStatusLine());
+        try {
+            log.accept(">>> Client received response status "+response.getStatusLine());
 
-        if (response.getStatusLine().toString().equals("HTTP/1.1 200 OK")) {
+            if (response.getStatusLine().getStatusCode() == 200) {
 
-            log.accept(">>> Client received result of registration request");
+                log.accept(">>> Client received result of registration request");
 
-            InputStream is = response.getEntity().getContent();
+                Header serverTiming = response.getFirstHeader("Server-Timing");
+                if (serverTiming != null) {
+                    log.accept(">>> Job "+jobId+" server timing : "+serverTiming.getValue());
+                }
 
-            File zipAns = new File(settings.outputFolderSupplier.get(), "registration_result.zip");
-            FileOutputStream fos = new FileOutputStream(zipAns);
+                // Unzips the response while it is being received
+                File destDir = new File(settings.outputFolderSupplier.get());
+                try (InputStream is = response.getEntity().getContent()) {
+                    unzip(is, destDir);
+                }
 
-            int read = 0;
-            byte[] buffer = new byte[32768];
-            while ((read = is.read(buffer)) > 0) {
-                fos.write(buffer, 0, read);
+                log.accept(">>> Client received all of registration request");
+                log.accept(settings.outputFolderSupplier.get());
+            } else {
+                EntityUtils.consume(response.getEntity());
+                throw new HttpException("Server registration failed with status line : "+response.getStatusLine());
             }
+        } finally {
+            // Releases the connection to the pool
+            response.close();
+        }
 
-            fos.close();
-            is.close();
-
-            log.accept(">>> Client received all of registration request");
-            log.accept(settings.outputFolderSupplier.get());
-
-            // Unzips response
-            File destDir = new File(settings.outputFolderSupplier.get());
-            ZipInputStream zis = new ZipInputStream(new FileInputStream(zipAns));
-            ZipEntry zipEntry = zis.getNextEntry();
-            while (zipEntry != null) {
-                File newFile = newFile(destDir, zipEntry);
-                if (zipEntry.isDirectory()) {
-                    if (!newFile.isDirectory() && !newFile.mkdirs()) {
-                        throw new IOException("Failed to create directory " + newFile);
-                    }
-                } else {
-                    // fix for Windows-created archives
-                    File parent = newFile.getParentFile();
-                    if (!parent.isDirectory() && !parent.mkdirs()) {
-                        throw new IOException("Failed to create directory " + parent);
-                    }
+    }
+
+    /**
+     * Buffer size used to unzip results
+     */
+    public static int unzipBufferSize = 256 * 1024;
+
+    /**
+     * Unzips a stream - typically a server response - directly into a folder, without
+     * writing the zip file to disk first
+     * @param is zip stream, not closed by this method
+     * @param destDir folder where the zip entries are written
+     * @throws IOException if the stream is not a valid zip, if an entry is outside destDir, or if a file cannot be written
+     */
+    public static void unzip(InputStream is, File destDir) throws IOException {
+        byte[] buffer = new byte[unzipBufferSize];
+        ZipInputStream zis = new ZipInputStream(new BufferedInputStream(is, unzipBufferSize));
+        ZipEntry zipEntry = zis.getNextEntry();
+        while (zipEntry != null) {
+            File newFile = newFile(destDir, zipEntry);
+            if (zipEntry.isDirectory()) {
+                if (!newFile.isDirectory() && !newFile.mkdirs()) {
+                    throw new IOException("Failed to create directory " + newFile);
+                }
+            } else {
+                // fix for Windows-created archives
+                File parent = newFile.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Failed to create directory " + parent);
+                }
 
-                    // write file content
-                    fos = new FileOutputStream(newFile);
+                // write file content
+                try (FileOutputStream fos = new FileOutputStream(newFile)) {
                     int len;
                     while ((len = zis.read(buffer)) > 0) {
                         fos.write(buffer, 0, len);
                     }
-                    fos.close();
                 }
-                zipEntry = zis.getNextEntry();
             }
-            zis.closeEntry();
-            zis.close();
-
-            zipAns.delete();
-        } else {
-            throw new HttpException("Server registration failed with status line : "+response.getStatusLine());
+            zipEntry = zis.getNextEntry();
         }
-
+        zis.closeEntry();
     }
 
     public static File newFile(File destinationDir, ZipEntry zipEntry) throws IOException {
@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers.elastix;
+
+import ch.epfl.biop.wrappers.SimulatedDuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Elastix task which does not need the elastix executable: used to test the server capacity on any machine
+ *
+ * The task checks that its inputs exist, keeps a cpu busy during a duration sampled from {@link SimulatedElastixTask#duration},
+ * then writes one TransformParameters.i.txt file per registration parameter file, as elastix does, and an elastix.log file.
+ *
+ * The transformations written are 2D affine transformations close to the identity, chained like the ones of elastix.
+ */
+public class SimulatedElastixTask extends ElastixTask {
+
+    /**
+     * Can be configured in the server configuration
+     */
+    public static SimulatedDuration duration = new SimulatedDuration("lognormal", 3000, 1000, 0);
+
+    final static Random random = new Random(0);
+
+    final static Pattern transformPattern = Pattern.compile("\\(Transform\\s+\"([^\"]*)\"\\)");
+
+    @Override
+    public void run() throws Exception {
+        checkExists(settings.fixedImagePathSupplier.get());
+        checkExists(settings.movingImagePathSupplier.get());
+        List<String> transformTypes = new ArrayList<>();
+        for (int i = 0; i < settings.transformationParameterPathSupplier.size(); i++) {
+            String parameterPath = settings.transformationParameterPathSupplier.get(i).get();
+            checkExists(parameterPath);
+            Matcher matcher = transformPattern.matcher(new String(Files.readAllBytes(Paths.get(parameterPath)), StandardCharsets.UTF_8));
+            transformTypes.add(matcher.find() ? matcher.group(1) : "AffineTransform");
+        }
+
+        long durationInMs = duration.sampleInMs();
+        SimulatedDuration.burnCpu(durationInMs);
+
+        String outputFolder = settings.outputFolderSupplier.get();
+        String initialTransform = (settings.initialTransformFilePath != null) ? settings.initialTransformFilePath : "NoInitialTransform";
+        for (int i = 0; i < transformTypes.size(); i++) {
+            File transformFile = new File(outputFolder, "TransformParameters." + i + ".txt");
+            writeAffineTransform(transformFile, initialTransform);
+            initialTransform = transformFile.getAbsolutePath();
+        }
+
+        List<String> logLines = new ArrayList<>();
+        logLines.add("Simulated elastix task");
+        logLines.add("Registrations : " + String.join(", ", transformTypes));
+        logLines.add("Total time elapsed: " + durationInMs / 1000.0 + "s.");
+        Files.write(Paths.get(outputFolder, "elastix.log"), logLines, StandardCharsets.UTF_8);
+    }
+
+    static void checkExists(String path) throws IOException {
+        if ((path == null) || (!new File(path).exists())) {
+            throw new IOException("Simulated elastix task : file " + path + " not found");
+        }
+    }
+
+    static void writeAffineTransform(File file, String initialTransform) throws IOException {
+        double a, b, tx, ty;
+        synchronized (random) {
+            a = 1 + 0.02 * random.nextGaussian();
+            b = 0.02 * random.nextGaussian();
+            tx = 2 * random.nextGaussian();
+            ty = 2 * random.nextGaussian();
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add("(Transform \"AffineTransform\")");
+        lines.add("(NumberOfParameters 6)");
+        lines.add(String.format(Locale.US, "(TransformParameters %.6f %.6f %.6f %.6f %.6f %.6f)", a, -b, b, a, tx, ty));
+        lines.add("(InitialTransformParametersFileName \"" + initialTransform + "\")");
+        lines.add("(HowToCombineTransforms \"Compose\")");
+        lines.add("(FixedImageDimension 2)");
+        lines.add("(MovingImageDimension 2)");
+        lines.add("(FixedInternalImagePixelType \"float\")");
+        lines.add("(MovingInternalImagePixelType \"float\")");
+        lines.add("(Index 0 0)");
+        lines.add("(Spacing 1 1)");
+        lines.add("(Origin 0 0)");
+        lines.add("(Direction 1 0 0 1)");
+        lines.add("(UseDirectionCosines \"true\")");
+        lines.add("(CenterOfRotationPoint 0 0)");
+        lines.add("(ResampleInterpolator \"FinalBSplineInterpolator\")");
+        lines.add("(FinalBSplineInterpolationOrder 3)");
+        lines.add("(Resampler \"DefaultResampler\")");
+        lines.add("(DefaultPixelValue 0)");
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+    }
+}
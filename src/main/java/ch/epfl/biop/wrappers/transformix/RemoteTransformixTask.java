@@ -32,45 +32,70 @@
  */
 package ch.epfl.biop.wrappers.transformix;
 
+import ch.epfl.biop.server.AsyncLog;
 import ch.epfl.biop.server.TransformixServlet;
+import ch.epfl.biop.wrappers.RemoteTaskClient;
+import ch.epfl.biop.wrappers.RemoteTaskExecutor;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.config.RequestConfig;
+import org.apache.http.HttpException;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 
 import java.io.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 import static ch.epfl.biop.server.RegistrationServer.TRANSFORMIX_PATH;
-import static ch.epfl.biop.wrappers.elastix.RemoteElastixTask.newFile;
+import static ch.epfl.biop.wrappers.elastix.RemoteElastixTask.unzip;
 
+/**
+ * Can process a Transformix task by sending it to a {@link ch.epfl.biop.server.RegistrationServer}
+ *
+ * All requests go through the shared connection pool of {@link RemoteTaskClient}
+ */
 public class RemoteTransformixTask extends TransformixTask {
 
+    public static Consumer<String> log = AsyncLog.consumer(RemoteTransformixTask.class, AsyncLog.Level.DEBUG);
+
+    String serverRootUrl;
     String serverUrl;
 
+    public static int timeOutInMs = 50000;
+
     public RemoteTransformixTask(String serverUrl) {
+        this.serverRootUrl = serverUrl;
         this.serverUrl = serverUrl + TRANSFORMIX_PATH;
     }
 
+    /**
+     * Non blocking version of {@link RemoteTransformixTask#run()}, performed on the shared pool of {@link RemoteTaskExecutor}
+     * @return a future completed when the transformix results are written in the output folder
+     */
+    public CompletableFuture<Void> runAsync() {
+        return RemoteTaskExecutor.submit(serverRootUrl, () -> {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            RemoteTaskExecutor.execute(result, () -> {
+                run();
+                result.complete(null);
+            });
+            return result;
+        });
+    }
+
     @Override
     public void run() throws Exception {
 
-        int timeout = 50;
-        RequestConfig config = RequestConfig.custom()
-                .setConnectTimeout(timeout * 1000)
-                .setConnectionRequestTimeout(timeout * 1000)
-                .setSocketTimeout(timeout * 1000).build();
-        CloseableHttpClient httpclient =
-                HttpClientBuilder.create().setDefaultRequestConfig(config).build();
+        CloseableHttpClient httpclient = RemoteTaskClient.getHttpClient();
 
         HttpPost httppost = new HttpPost(serverUrl);
+        httppost.setConfig(RemoteTaskClient.getRequestConfig(timeOutInMs));
 
         MultipartEntityBuilder builder = MultipartEntityBuilder.create();
         builder.setMode(HttpMultipartMode.BROWSER_COMPATIBLE);
@@ -85,52 +110,20 @@ public class RemoteTransformixTask extends TransformixTask {
 
         HttpEntity entity = builder.build();
         httppost.setEntity(entity);
-        HttpResponse response = httpclient.execute(httppost);
-        InputStream is = response.getEntity().getContent();
-        File zipAns = new File(settings.outputFolderSupplier.get(), "registration_result.zip");
-        FileOutputStream fos = new FileOutputStream(zipAns);
-
-        int read;
-        byte[] buffer = new byte[32768];
-        while( (read = is.read(buffer)) > 0) {
-            fos.write(buffer, 0, read);
-        }
-
-        fos.close();
-        is.close();
-
-        //System.out.println(settings.outputFolderSupplier.get());
-
-        File destDir = new File(settings.outputFolderSupplier.get());
-        ZipInputStream zis = new ZipInputStream(new FileInputStream(zipAns));
-        ZipEntry zipEntry = zis.getNextEntry();
-        while (zipEntry != null) {
-            File newFile = newFile(destDir, zipEntry);
-            if (zipEntry.isDirectory()) {
-                if (!newFile.isDirectory() && !newFile.mkdirs()) {
-                    throw new IOException("Failed to create directory " + newFile);
-                }
-            } else {
-                // fix for Windows-created archives
-                File parent = newFile.getParentFile();
-                if (!parent.isDirectory() && !parent.mkdirs()) {
-                    throw new IOException("Failed to create directory " + parent);
-                }
-
-                // write file content
-                fos = new FileOutputStream(newFile);
-                int len;
-                while ((len = zis.read(buffer)) > 0) {
-                    fos.write(buffer, 0, len);
-                }
-                fos.close();
+        try (CloseableHttpResponse response = httpclient.execute(httppost)) {
+            if (response.getStatusLine().getStatusCode() != 200) {
+                EntityUtils.consume(response.getEntity());
+                throw new HttpException("Server transformix failed with status line : "+response.getStatusLine());
+            }
+            Header serverTiming = response.getFirstHeader("Server-Timing");
+            if (serverTiming != null) {
+                log.accept("Server timing : "+serverTiming.getValue());
+            }
+            // Unzips the response while it is being received
+            try (InputStream is = response.getEntity().getContent()) {
+                unzip(is, new File(settings.outputFolderSupplier.get()));
             }
-            zipEntry = zis.getNextEntry();
         }
-        zis.closeEntry();
-        zis.close();
-
-        zipAns.delete();
 
     }
 
@@ -0,0 +1,160 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers.transformix;
+
+import ch.epfl.biop.wrappers.SimulatedDuration;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Transformix task which does not need the transformix executable: used to test the server capacity on any machine
+ *
+ * The task reads the input points, keeps a cpu busy during {@link SimulatedTransformixTask#duration} plus
+ * {@link SimulatedTransformixTask#durationPerPointInMs} per point, then writes an outputpoints.txt file in the
+ * transformix format and a transformix.log file.
+ *
+ * 2D affine transformations are applied to the points, other transformations are simulated by the identity.
+ */
+public class SimulatedTransformixTask extends TransformixTask {
+
+    /**
+     * Can be configured in the server configuration, duration of a task without points
+     */
+    public static SimulatedDuration duration = new SimulatedDuration("lognormal", 50, 20, 0);
+
+    /**
+     * Can be configured in the server configuration
+     */
+    public static double durationPerPointInMs = 0.01;
+
+    final static Pattern parameterPattern = Pattern.compile("\\((\\w+)\\s+([^)]*)\\)");
+
+    @Override
+    public void run() throws Exception {
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(settings.inputPtsFileSupplier.get()), StandardCharsets.UTF_8)) {
+            if (!line.trim().isEmpty()) lines.add(line.trim());
+        }
+        if (lines.size() < 2) throw new IOException("Simulated transformix task : invalid points file");
+        int nPoints = Integer.parseInt(lines.get(1));
+        if (lines.size() - 2 != nPoints) throw new IOException("Simulated transformix task : expected " + nPoints + " points, found " + (lines.size() - 2));
+
+        double[] affine = readAffine2D(settings.transformFileSupplier.get());
+
+        long durationInMs = duration.sampleInMs() + Math.round(nPoints * durationPerPointInMs);
+        SimulatedDuration.burnCpu(durationInMs);
+
+        List<String> outputLines = new ArrayList<>(nPoints);
+        for (int i = 0; i < nPoints; i++) {
+            String[] tokens = lines.get(i + 2).split("\\s+");
+            double[] in = new double[tokens.length];
+            for (int d = 0; d < tokens.length; d++) {
+                in[d] = Double.parseDouble(tokens[d]);
+            }
+            double[] out = in.clone();
+            if ((affine != null) && (in.length == 2)) {
+                double x = in[0] - affine[6], y = in[1] - affine[7];
+                out[0] = affine[0] * x + affine[1] * y + affine[4] + affine[6];
+                out[1] = affine[2] * x + affine[3] * y + affine[5] + affine[7];
+            }
+            double[] deformation = new double[in.length];
+            for (int d = 0; d < in.length; d++) {
+                deformation[d] = out[d] - in[d];
+            }
+            outputLines.add("Point\t" + i + "\t; InputIndex = " + toIndex(in) + "\t; InputPoint = " + toPoint(in)
+                    + "\t; OutputIndexFixed = " + toIndex(out) + "\t; OutputPoint = " + toPoint(out)
+                    + "\t; Deformation = " + toPoint(deformation));
+        }
+        String outputFolder = settings.outputFolderSupplier.get();
+        Files.write(Paths.get(outputFolder, "outputpoints.txt"), outputLines, StandardCharsets.UTF_8);
+
+        List<String> logLines = new ArrayList<>();
+        logLines.add("Simulated transformix task");
+        logLines.add("Transformed " + nPoints + " points");
+        logLines.add("Elapsed time: " + durationInMs / 1000.0 + " Seconds.");
+        Files.write(Paths.get(outputFolder, "transformix.log"), logLines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param transformPath elastix transform parameters file
+     * @return the 6 parameters of a 2D affine transformation followed by its center of rotation, or null if it is another transformation
+     * @throws IOException if the file cannot be read
+     */
+    static double[] readAffine2D(String transformPath) throws IOException {
+        Matcher matcher = parameterPattern.matcher(new String(Files.readAllBytes(Paths.get(transformPath)), StandardCharsets.UTF_8));
+        String transform = null;
+        String[] parameters = null, center = null;
+        while (matcher.find()) {
+            String value = matcher.group(2).trim();
+            switch (matcher.group(1)) {
+                case "Transform": transform = value.replace("\"", ""); break;
+                case "TransformParameters": parameters = value.split("\\s+"); break;
+                case "CenterOfRotationPoint": center = value.split("\\s+"); break;
+            }
+        }
+        if ((!"AffineTransform".equals(transform)) || (parameters == null) || (parameters.length != 6)) return null;
+        double[] affine = new double[8];
+        for (int i = 0; i < 6; i++) {
+            affine[i] = Double.parseDouble(parameters[i]);
+        }
+        if ((center != null) && (center.length == 2)) {
+            affine[6] = Double.parseDouble(center[0]);
+            affine[7] = Double.parseDouble(center[1]);
+        }
+        return affine;
+    }
+
+    static String toPoint(double[] values) {
+        StringBuilder sb = new StringBuilder("[ ");
+        for (double v : values) {
+            sb.append(String.format(Locale.US, "%.6f ", v));
+        }
+        return sb.append("]").toString();
+    }
+
+    static String toIndex(double[] values) {
+        StringBuilder sb = new StringBuilder("[ ");
+        for (double v : values) {
+            sb.append(Math.round(v)).append(' ');
+        }
+        return sb.append("]").toString();
+    }
+}
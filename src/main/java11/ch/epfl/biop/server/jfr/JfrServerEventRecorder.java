@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server.jfr;
+
+import ch.epfl.biop.server.ServerEventRecorder;
+
+/**
+ * Emits Java Flight Recorder events, see {@link QueueEvent}, {@link JobStageEvent}, {@link SubprocessEvent}
+ * and {@link MultipartIngestionEvent}. Loaded by {@link ch.epfl.biop.server.ServerEvents} when running on JDK 11+
+ *
+ * Events are only built when they are enabled in the current recording
+ *
+ */
+public class JfrServerEventRecorder implements ServerEventRecorder {
+
+    final static Span NO_SPAN = bytes -> {};
+
+    final static ProcessSpan NO_PROCESS_SPAN = (outputBytes, exitCode) -> {};
+
+    @Override
+    public void queueEvent(String type, long jobId, int queueSize) {
+        QueueEvent event = new QueueEvent();
+        if (!event.isEnabled()) return;
+        event.type = type;
+        event.jobId = jobId;
+        event.queueSize = queueSize;
+        event.commit();
+    }
+
+    @Override
+    public Span jobStage(String task, long jobId, String stage) {
+        JobStageEvent event = new JobStageEvent();
+        if (!event.isEnabled()) return NO_SPAN;
+        event.task = task;
+        event.jobId = jobId;
+        event.stage = stage;
+        event.begin();
+        return bytes -> {
+            event.bytes = bytes;
+            event.commit();
+        };
+    }
+
+    @Override
+    public ProcessSpan subprocess(String task, long jobId) {
+        SubprocessEvent event = new SubprocessEvent();
+        if (!event.isEnabled()) return NO_PROCESS_SPAN;
+        event.task = task;
+        event.jobId = jobId;
+        event.begin();
+        return (outputBytes, exitCode) -> {
+            event.outputBytes = outputBytes;
+            event.exitCode = exitCode;
+            event.commit();
+        };
+    }
+
+    @Override
+    public Span multipartIngestion(String task, long jobId, String part) {
+        MultipartIngestionEvent event = new MultipartIngestionEvent();
+        if (!event.isEnabled()) return NO_SPAN;
+        event.task = task;
+        event.jobId = jobId;
+        event.part = part;
+        event.begin();
+        return bytes -> {
+            event.bytes = bytes;
+            event.commit();
+        };
+    }
+}
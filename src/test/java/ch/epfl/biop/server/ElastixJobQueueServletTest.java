@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ElastixJobQueueServletTest {
+
+    int timeOut;
+
+    @Before
+    public void setUp() {
+        timeOut = ElastixServlet.timeOut;
+        clearQueues();
+    }
+
+    @After
+    public void tearDown() {
+        ElastixServlet.timeOut = timeOut;
+        clearQueues();
+    }
+
+    static void clearQueues() {
+        synchronized (ElastixJobQueueServlet.queue) {
+            ElastixJobQueueServlet.queue.clear();
+            ElastixJobQueueServlet.queueReadyToBeProcessed.clear();
+        }
+    }
+
+    static ElastixJobQueueServlet.WaitingJob job(long jobId, LocalDateTime updateTimeTarget) {
+        ElastixJobQueueServlet.WaitingJob job = new ElastixJobQueueServlet.WaitingJob();
+        job.jobId = jobId;
+        job.enqueueTimeInNs = System.nanoTime();
+        job.updateTimeTarget = updateTimeTarget;
+        return job;
+    }
+
+    @Test
+    public void expiredLeasesAreCleanedAndLiveJobsStayQueued() {
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime expired = now.minusSeconds(ElastixJobQueueServlet.cleanupTimeoutInS + 1);
+        LocalDateTime live = now.plusSeconds(10);
+        synchronized (ElastixJobQueueServlet.queue) {
+            ElastixJobQueueServlet.queue.add(job(1, expired));
+            ElastixJobQueueServlet.queue.add(job(2, live));
+            ElastixJobQueueServlet.queue.add(job(3, null)); // not updated yet
+            ElastixJobQueueServlet.queueReadyToBeProcessed.add(job(4, expired));
+            ElastixJobQueueServlet.queueReadyToBeProcessed.add(job(5, live)); // ready, request not received yet
+            ElastixJobQueueServlet.queueReadyToBeProcessed.add(job(6, now)); // lease over, still within the cleanup delay
+        }
+
+        int removed = ElastixJobQueueServlet.cleanExpiredLeases(now);
+
+        assertThat(removed).isEqualTo(2);
+        synchronized (ElastixJobQueueServlet.queue) {
+            assertThat(ElastixJobQueueServlet.queue).extracting(job -> job.jobId).containsExactly(2L, 3L);
+            assertThat(ElastixJobQueueServlet.queueReadyToBeProcessed).extracting(job -> job.jobId).containsExactly(5L, 6L);
+        }
+    }
+
+    @Test
+    public void readyJobIsKeptDuringASlowUpload() throws Exception {
+        ElastixServlet.timeOut = 60000;
+        ElastixJobQueueServlet.WaitingJob ready = ElastixJobQueueServlet.poll(-1);
+        assertThat(ready.waitingTimeInMs).isEqualTo(0);
+
+        // The upload of the request takes longer than the cleanup delay
+        LocalDateTime uploadDone = LocalDateTime.now().plusSeconds(ElastixJobQueueServlet.cleanupTimeoutInS * 4);
+        assertThat(ElastixJobQueueServlet.cleanExpiredLeases(uploadDone)).isEqualTo(0);
+
+        ElastixServlet.numberOfCurrentTask.incrementAndGet(); // as in ElastixServlet#doPost
+        try {
+            assertThat(ElastixJobProcessor.admit(ready.jobId)).isEqualTo(200);
+        } finally {
+            ElastixServlet.numberOfCurrentTask.decrementAndGet();
+        }
+    }
+
+    @Test
+    public void readyJobIsCleanedOnceTheRequestTimedOut() throws Exception {
+        ElastixServlet.timeOut = 60000;
+        ElastixJobQueueServlet.WaitingJob ready = ElastixJobQueueServlet.poll(-1);
+
+        LocalDateTime afterTimeOut = LocalDateTime.now()
+                .plusSeconds(60 + ElastixJobQueueServlet.cleanupTimeoutInS + 1);
+        assertThat(ElastixJobQueueServlet.cleanExpiredLeases(afterTimeOut)).isEqualTo(1);
+        synchronized (ElastixJobQueueServlet.queue) {
+            assertThat(ElastixJobQueueServlet.queueReadyToBeProcessed).doesNotContain(ready);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JobArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    long previousSegmentSize, previousMaxSize;
+    String previousPolicy;
+
+    File archive;
+
+    @Before
+    public void setUp() throws Exception {
+        previousSegmentSize = JobArchive.segmentSizeInBytes;
+        previousMaxSize = JobArchive.maxSizeInBytes;
+        previousPolicy = JobArchive.evictionPolicy;
+        JobArchive.segmentSizeInBytes = 256L * 1024 * 1024;
+        JobArchive.maxSizeInBytes = 256L * 1024 * 1024;
+        JobArchive.evictionPolicy = "oldest";
+        archive = new File(folder.getRoot(), "archive");
+        JobArchive.open(archive);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        JobArchive.close();
+        JobArchive.archiveFolder = null;
+        JobArchive.index.clear();
+        JobArchive.segments.clear();
+        JobArchive.currentSegmentNumber = 0;
+        JobArchive.segmentSizeInBytes = previousSegmentSize;
+        JobArchive.maxSizeInBytes = previousMaxSize;
+        JobArchive.evictionPolicy = previousPolicy;
+    }
+
+    /**
+     * @return a job folder containing a result of random (incompressible) bytes
+     */
+    File job(long jobId, int sizeInBytes) throws Exception {
+        File jobFolder = folder.newFolder("job_" + jobId);
+        byte[] data = new byte[sizeInBytes];
+        new Random(jobId).nextBytes(data);
+        Files.write(new File(jobFolder, "TransformParameters.0.txt").toPath(), data);
+        return jobFolder;
+    }
+
+    static byte[] copy(long jobId) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(JobArchive.copyTo(jobId, out)).isTrue();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void indexIsRebuiltFromTheSegments() throws Exception {
+        JobArchive.segmentSizeInBytes = 1; // one record per segment
+        JobArchive.archive(1, "{\"user\":\"a\"}", job(1, 1000));
+        JobArchive.archive(2, "{\"user\":\"b\"}", job(2, 2000));
+        JobArchive.archive(3, "", job(3, 3000));
+        byte[] zip2 = copy(2);
+
+        JobArchive.open(archive);
+
+        assertThat(JobArchive.segments).hasSize(3);
+        assertThat(JobArchive.list()).extracting(e -> e.jobId).containsExactly(1L, 2L, 3L);
+        assertThat(JobArchive.find(1).metadata).isEqualTo("{\"user\":\"a\"}");
+        assertThat(JobArchive.find(3).metadata).isEmpty();
+        assertThat(JobArchive.find(2).segment).isEqualTo(2);
+        assertThat(copy(2)).isEqualTo(zip2);
+
+        // The last segment is full : appends go on in a new one
+        JobArchive.archive(4, "", job(4, 1000));
+        assertThat(JobArchive.find(4).segment).isEqualTo(4);
+        assertThat(JobArchive.segments).hasSize(4);
+    }
+
+    @Test
+    public void truncatedLastRecordIsDropped() throws Exception {
+        JobArchive.archive(1, "first", job(1, 1000));
+        JobArchive.archive(2, "second", job(2, 1000));
+        JobArchive.Entry first = JobArchive.find(1);
+        long endOfFirstRecord = first.dataOffset + first.dataLength + 4;
+        JobArchive.close();
+
+        // Crash during the append of the second record
+        File segment = JobArchive.segments.get(1);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 10);
+        }
+
+        JobArchive.open(archive);
+
+        assertThat(JobArchive.list()).extracting(e -> e.jobId).containsExactly(1L);
+        assertThat(segment.length()).isEqualTo(endOfFirstRecord);
+
+        JobArchive.archive(3, "third", job(3, 1000));
+        JobArchive.open(archive);
+        assertThat(JobArchive.list()).extracting(e -> e.jobId).containsExactly(1L, 3L);
+        assertThat(JobArchive.find(3).dataOffset).isGreaterThan(endOfFirstRecord);
+    }
+
+    @Test
+    public void oldestSegmentsAreEvictedFirst() throws Exception {
+        JobArchive.segmentSizeInBytes = 1; // one record per segment
+        JobArchive.archive(1, "", job(1, 10000));
+        long recordSize = JobArchive.getSizeInBytes();
+        JobArchive.maxSizeInBytes = 2 * recordSize + recordSize / 2;
+        JobArchive.archive(2, "", job(2, 10000));
+        JobArchive.archive(3, "", job(3, 10000));
+        long evictions = ServerMetrics.elastix.archiveEvictions.sum();
+        File oldest = JobArchive.segments.get(1);
+
+        assertThat(JobArchive.archive(4, "", job(4, 10000))).isGreaterThan(0);
+
+        assertThat(JobArchive.find(1)).isNull();
+        assertThat(JobArchive.list()).extracting(e -> e.jobId).containsExactly(2L, 3L, 4L);
+        assertThat(oldest).doesNotExist();
+        assertThat(JobArchive.getSizeInBytes()).isLessThan(3 * recordSize + recordSize / 2);
+        assertThat(ServerMetrics.elastix.archiveEvictions.sum() - evictions).isEqualTo(1);
+
+        // The quota is checked before each append
+        JobArchive.archive(5, "", job(5, 10000));
+        assertThat(JobArchive.list()).extracting(e -> e.jobId).containsExactly(3L, 4L, 5L);
+        assertThat(JobArchive.segments.firstKey()).isEqualTo(3);
+        assertThat(ServerMetrics.elastix.archiveEvictions.sum() - evictions).isEqualTo(2);
+    }
+
+    @Test
+    public void noEvictionPolicyStopsArchiving() throws Exception {
+        JobArchive.evictionPolicy = "none";
+        JobArchive.archive(1, "", job(1, 10000));
+        JobArchive.maxSizeInBytes = JobArchive.getSizeInBytes();
+        long size = JobArchive.getSizeInBytes();
+
+        assertThat(JobArchive.archive(2, "", job(2, 10000))).isEqualTo(-1);
+
+        assertThat(JobArchive.list()).extracting(e -> e.jobId).containsExactly(1L);
+        assertThat(JobArchive.getSizeInBytes()).isEqualTo(size);
+    }
+}
@@ -0,0 +1,171 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class JobIdGeneratorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    long previousNodeId;
+
+    @Before
+    public void setUp() {
+        previousNodeId = JobIdGenerator.nodeId;
+        JobIdGenerator.nodeId = 3;
+    }
+
+    @After
+    public void tearDown() {
+        JobIdGenerator.releaseNodeId();
+        JobIdGenerator.nodeId = previousNodeId;
+    }
+
+    @Test
+    public void idsIncreaseAndAreUniqueAcrossThreads() throws Exception {
+        JobIdGenerator jobIds = new JobIdGenerator();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        List<Future<long[]>> results = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            results.add(threads.submit(() -> {
+                // More than 4096 ids per millisecond : the sequence overflows into the next milliseconds
+                long[] ids = new long[20000];
+                for (int i = 0; i < ids.length; i++) ids[i] = jobIds.next();
+                return ids;
+            }));
+        }
+        Set<Long> all = new HashSet<>();
+        for (Future<long[]> result : results) {
+            long[] ids = result.get();
+            for (int i = 1; i < ids.length; i++) {
+                assertThat(ids[i]).isGreaterThan(ids[i - 1]);
+            }
+            for (long id : ids) all.add(id);
+        }
+        threads.shutdown();
+        assertThat(all).hasSize(8 * 20000);
+        assertThat(jobIds.last()).isEqualTo(all.stream().mapToLong(Long::longValue).max().getAsLong());
+    }
+
+    @Test
+    public void idsHoldTheNodeId() {
+        JobIdGenerator jobIds = new JobIdGenerator();
+        long id = jobIds.next();
+        assertThat((id >>> JobIdGenerator.SEQUENCE_BITS) & JobIdGenerator.MAX_NODE_ID).isEqualTo(3L);
+        assertThat(id).isPositive();
+    }
+
+    @Test
+    public void atLeastMovesAboveIdsOfOtherNodes() {
+        JobIdGenerator.nodeId = 1000;
+        long otherId = new JobIdGenerator().next() + (1000L << (JobIdGenerator.NODE_BITS + JobIdGenerator.SEQUENCE_BITS)); // 1 s ahead
+        JobIdGenerator.nodeId = 3;
+
+        JobIdGenerator jobIds = new JobIdGenerator();
+        jobIds.atLeast(otherId);
+
+        long id = jobIds.next();
+        long timeShift = JobIdGenerator.NODE_BITS + JobIdGenerator.SEQUENCE_BITS;
+        assertThat(id >>> timeShift).isGreaterThanOrEqualTo(otherId >>> timeShift);
+        assertThat(id).isNotEqualTo(otherId);
+    }
+
+    @Test
+    public void existingJobFolderIsNotReused() throws Exception {
+        JobIdGenerator jobIds = new JobIdGenerator();
+        String jobsFolder = folder.newFolder("elastix").getPath();
+        long taken = jobIds.next();
+        assertThat(new File(jobsFolder, "job_" + taken).mkdir()).isTrue();
+
+        long id = jobIds.createJobFolder(jobsFolder, taken);
+
+        assertThat(id).isGreaterThan(taken);
+        assertThat(new File(jobsFolder, "job_" + id)).isDirectory();
+        assertThat(jobIds.createJobFolder(jobsFolder, jobIds.next())).isGreaterThan(id);
+    }
+
+    @Test
+    public void nodeIdIsLockedOnTheJobsFolder() throws Exception {
+        File jobsDataLocation = folder.newFolder("jobs");
+        File nodesFolder = new File(jobsDataLocation, "nodes");
+
+        JobIdGenerator.lockNodeId(jobsDataLocation, true);
+        assertThat(JobIdGenerator.tryLock(new File(nodesFolder, "node_3.lock"))).isNull();
+
+        JobIdGenerator.releaseNodeId();
+        FileLock lock = JobIdGenerator.tryLock(new File(nodesFolder, "node_3.lock"));
+        assertThat(lock).isNotNull();
+        lock.channel().close();
+    }
+
+    @Test
+    public void sharedJobsFolderNeedsDifferentExplicitNodeIds() throws Exception {
+        File jobsDataLocation = folder.newFolder("jobs");
+        File nodesFolder = new File(jobsDataLocation, "nodes");
+        assertThat(nodesFolder.mkdir()).isTrue();
+        // Another server runs on the folder with the node id 7
+        FileLock other = JobIdGenerator.tryLock(new File(nodesFolder, "node_7.lock"));
+        try {
+            assertThatThrownBy(() -> JobIdGenerator.lockNodeId(jobsDataLocation, false))
+                    .isInstanceOf(IllegalStateException.class).hasMessageContaining("shared");
+
+            JobIdGenerator.nodeId = 7;
+            assertThatThrownBy(() -> JobIdGenerator.lockNodeId(jobsDataLocation, true))
+                    .isInstanceOf(IllegalStateException.class).hasMessageContaining("already used");
+
+            JobIdGenerator.nodeId = 3;
+            JobIdGenerator.lockNodeId(jobsDataLocation, true);
+        } finally {
+            other.channel().close();
+        }
+    }
+}
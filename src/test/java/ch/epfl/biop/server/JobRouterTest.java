@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JobRouterTest {
+
+    double previousLoadFactor;
+
+    @Before
+    public void setUp() {
+        previousLoadFactor = JobRouter.loadFactor;
+        JobRouter.loadFactor = 1.25;
+    }
+
+    @After
+    public void tearDown() {
+        JobRouter.loadFactor = previousLoadFactor;
+    }
+
+    static ClusterCoordinator.Worker worker(String name, int slots) {
+        ClusterCoordinator.Worker worker = new ClusterCoordinator.Worker();
+        worker.name = name;
+        worker.slots = slots;
+        return worker;
+    }
+
+    static List<String> keys(int n) {
+        Random random = new Random(42);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < n; i++) keys.add(String.format("%016x%016x", random.nextLong(), random.nextLong()));
+        return keys;
+    }
+
+    static Map<String, String> targets(JobRouter router, List<String> keys) {
+        Map<String, String> targets = new HashMap<>();
+        for (String key : keys) targets.put(key, router.target(key).name);
+        return targets;
+    }
+
+    @Test
+    public void keysAreSpreadOverTheWorkers() {
+        JobRouter router = new JobRouter();
+        router.update(Arrays.asList(worker("a", 2), worker("b", 2), worker("c", 2)));
+
+        Map<String, String> targets = targets(router, keys(300));
+
+        assertThat(new HashSet<>(targets.values())).containsExactlyInAnyOrder("a", "b", "c");
+        assertThat(targets(router, keys(300))).isEqualTo(targets);
+    }
+
+    @Test
+    public void targetLoadStaysBelowTheBound() {
+        List<ClusterCoordinator.Worker> workers = Arrays.asList(worker("a", 4), worker("b", 4), worker("c", 2));
+        JobRouter router = new JobRouter();
+        router.update(workers);
+        String hotKey = keys(1).get(0);
+
+        // All the jobs share the same fixed image
+        for (long jobId = 0; jobId < 10; jobId++) {
+            ClusterCoordinator.Worker target = router.target(hotKey);
+            int runningJobs = workers.stream().mapToInt(w -> w.running.size()).sum();
+            assertThat(target.running.size())
+                    .isLessThan(target.slots)
+                    .isLessThan((int) Math.ceil(JobRouter.loadFactor * (runningJobs + 1) * target.slots / 10.0));
+            target.running.add(jobId);
+        }
+
+        assertThat(workers).allSatisfy(w -> assertThat(w.running).hasSize(w.slots));
+        assertThat(router.target(hotKey)).isNull();
+
+        workers.get(2).running.clear();
+        assertThat(router.target(hotKey).name).isEqualTo("c");
+    }
+
+    @Test
+    public void hotKeyIsOnlyShiftedWhenItsWorkerIsAboveTheBound() {
+        List<ClusterCoordinator.Worker> workers = Arrays.asList(worker("a", 4), worker("b", 4), worker("c", 4));
+        JobRouter router = new JobRouter();
+        router.update(workers);
+        String hotKey = keys(1).get(0);
+        ClusterCoordinator.Worker owner = router.target(hotKey);
+
+        // Busy on other keys, below the bound : the owner keeps its key
+        for (ClusterCoordinator.Worker worker : workers) worker.running.add((long) worker.name.hashCode());
+        assertThat(router.target(hotKey)).isSameAs(owner);
+
+        // Still below the bound : ceil(1.25 * (4 + 1) * 4 / 12) = 3
+        owner.running.add(-1L);
+        assertThat(router.target(hotKey)).isSameAs(owner);
+
+        // At the bound : ceil(1.25 * (5 + 1) * 4 / 12) = 3
+        owner.running.add(-2L);
+        assertThat(router.target(hotKey)).isNotSameAs(owner);
+    }
+
+    @Test
+    public void addingOrRemovingAWorkerOnlyMovesItsKeys() {
+        List<String> keys = keys(1000);
+        List<ClusterCoordinator.Worker> workers = new ArrayList<>(Arrays.asList(
+                worker("a", 2), worker("b", 2), worker("c", 2), worker("d", 2)));
+        JobRouter router = new JobRouter();
+        router.update(workers);
+        Map<String, String> before = targets(router, keys);
+
+        workers.add(worker("e", 2));
+        router.update(workers);
+        Map<String, String> added = targets(router, keys);
+
+        Set<String> moved = new HashSet<>();
+        for (String key : keys) {
+            if (!added.get(key).equals(before.get(key))) {
+                assertThat(added.get(key)).isEqualTo("e");
+                moved.add(key);
+            }
+        }
+        assertThat(moved.size()).isBetween(100, 350); // about 1/5 of the keys
+
+        workers.remove(1); // b
+        router.update(workers);
+        Map<String, String> removed = targets(router, keys);
+
+        for (String key : keys) {
+            if (added.get(key).equals("b")) {
+                assertThat(removed.get(key)).isNotEqualTo("b");
+            } else {
+                assertThat(removed.get(key)).isEqualTo(added.get(key));
+            }
+        }
+    }
+}
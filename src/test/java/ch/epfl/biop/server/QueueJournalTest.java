@@ -0,0 +1,150 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueueJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    int previousRetryDelay;
+
+    @Before
+    public void setUp() {
+        previousRetryDelay = QueueJournal.retryDelayInMs;
+        clearQueues();
+    }
+
+    @After
+    public void tearDown() {
+        QueueJournal.close();
+        QueueJournal.retryDelayInMs = previousRetryDelay;
+        clearQueues();
+    }
+
+    static void clearQueues() {
+        synchronized (ElastixJobQueueServlet.queue) {
+            ElastixJobQueueServlet.queue.clear();
+            ElastixJobQueueServlet.queueReadyToBeProcessed.clear();
+        }
+    }
+
+    File log(String... lines) throws Exception {
+        File file = new File(folder.getRoot(), "queue.wal");
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    static Map<Long, Boolean> replay(File file) throws Exception {
+        Map<Long, Boolean> jobs = new LinkedHashMap<>();
+        QueueJournal.replay(file, jobs);
+        return jobs;
+    }
+
+    @Test
+    public void replayKeepsTheJobsStillQueued() throws Exception {
+        File file = log("N 10", "E 11", "E 12", "R 11", "E 13", "D 12", "E 11", "R 14");
+
+        Map<Long, Boolean> jobs = new LinkedHashMap<>();
+        long lastJobId = QueueJournal.replay(file, jobs);
+
+        assertThat(jobs).containsExactly(entry(11L, true), entry(13L, false));
+        assertThat(lastJobId).isEqualTo(14L);
+    }
+
+    @Test
+    public void replayStopsAtAnIncompleteLine() throws Exception {
+        File file = log("E 1", "E 2", "R 1", "D");
+        Files.write(file.toPath(), "E 3".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        Map<Long, Boolean> jobs = new LinkedHashMap<>();
+        long lastJobId = QueueJournal.replay(file, jobs);
+
+        assertThat(jobs).containsExactly(entry(1L, true), entry(2L, false));
+        assertThat(lastJobId).isEqualTo(2L);
+    }
+
+    @Test
+    public void openRestoresTheQueuesAndCompactsTheLog() throws Exception {
+        File file = log("E 21", "E 22", "E 23", "R 22", "D 21");
+
+        QueueJournal.open(file, 60);
+
+        synchronized (ElastixJobQueueServlet.queue) {
+            assertThat(ElastixJobQueueServlet.queue).extracting(job -> job.jobId).containsExactly(23L);
+            assertThat(ElastixJobQueueServlet.queueReadyToBeProcessed).extracting(job -> job.jobId).containsExactly(22L);
+        }
+        assertThat(ElastixJobQueueServlet.jobIds.last()).isGreaterThanOrEqualTo(23L);
+        assertThat(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)).doesNotContain("E 21", "D 21");
+        assertThat(replay(file)).containsExactly(entry(22L, true), entry(23L, false));
+    }
+
+    @Test
+    public void linesOfAFailedWriteAreWrittenLater() throws Exception {
+        QueueJournal.retryDelayInMs = 10;
+        File file = log();
+        QueueJournal.open(file, 60);
+
+        // The next write fails, the log is then rewritten and the lines of the failed batch appended
+        QueueJournal.journal.channel.close();
+        QueueJournal.enqueued(31);
+        QueueJournal.enqueued(32);
+        QueueJournal.ready(31);
+        Thread.sleep(200);
+        QueueJournal.enqueued(33);
+        QueueJournal.close();
+
+        assertThat(replay(file)).containsExactly(entry(31L, true), entry(32L, false), entry(33L, false));
+    }
+
+    static Map.Entry<Long, Boolean> entry(long jobId, boolean ready) {
+        return new AbstractMap.SimpleEntry<>(jobId, ready);
+    }
+}
@@ -0,0 +1,243 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import ch.epfl.biop.wrappers.SimulatedDuration;
+import ch.epfl.biop.wrappers.elastix.ElastixTask;
+import ch.epfl.biop.wrappers.transformix.SimulatedTransformixTask;
+import ch.epfl.biop.wrappers.transformix.TransformixTask;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class TransformixBatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    final AtomicInteger launches = new AtomicInteger();
+
+    volatile Error failure = null;
+
+    /**
+     * Failure of the first launch only, which is the merged batch when requests are coalesced
+     */
+    volatile Exception firstLaunchFailure = null;
+
+    final Set<String> launchThreads = ConcurrentHashMap.newKeySet();
+
+    ExecutionBackend previousBackend;
+    int previousWindow, previousMaxBatchSize;
+    String previousJobsFolder;
+    SimulatedDuration previousDuration;
+
+    ExecutorService clients = Executors.newCachedThreadPool();
+
+    @Before
+    public void setUp() throws Exception {
+        previousBackend = ExecutionBackends.backend;
+        previousWindow = TransformixBatcher.batchWindowInMs;
+        previousMaxBatchSize = TransformixBatcher.maxBatchSize;
+        previousJobsFolder = TransformixServlet.transformixJobsFolder;
+        previousDuration = SimulatedTransformixTask.duration;
+
+        SimulatedTransformixTask.duration = new SimulatedDuration("constant", 0, 0, 0);
+        TransformixServlet.transformixJobsFolder = folder.newFolder("transformix").getPath() + File.separator;
+        ExecutionBackends.backend = new ExecutionBackend() {
+            @Override
+            public ElastixTask newElastixTask() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public TransformixTask newTransformixTask() {
+                return new SimulatedTransformixTask() {
+                    @Override
+                    public void run() throws Exception {
+                        int launch = launches.incrementAndGet();
+                        if (failure != null) throw failure;
+                        if ((launch == 1) && (firstLaunchFailure != null)) throw firstLaunchFailure;
+                        if (launch > 1) launchThreads.add(Thread.currentThread().getName());
+                        super.run();
+                    }
+                };
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        clients.shutdownNow();
+        ExecutionBackends.backend = previousBackend;
+        TransformixBatcher.batchWindowInMs = previousWindow;
+        TransformixBatcher.maxBatchSize = previousMaxBatchSize;
+        TransformixServlet.transformixJobsFolder = previousJobsFolder;
+        SimulatedTransformixTask.duration = previousDuration;
+    }
+
+    String transform(String name) throws Exception {
+        File file = folder.newFile(name);
+        // Batches are keyed by the content of the transform file
+        Files.write(file.toPath(), Arrays.asList("(Transform \"TranslationTransform\")", "(NumberOfParameters 2)", "// " + name), StandardCharsets.UTF_8);
+        return file.getPath();
+    }
+
+    /**
+     * @return a task running a transformix request, which returns its output lines
+     */
+    Callable<List<String>> request(long jobId, String transformPath, String... points) throws Exception {
+        File pts = folder.newFile("pts_" + jobId + ".txt");
+        List<String> lines = new ArrayList<>();
+        lines.add("point");
+        lines.add(Integer.toString(points.length));
+        lines.addAll(Arrays.asList(points));
+        Files.write(pts.toPath(), lines, StandardCharsets.UTF_8);
+        File output = folder.newFolder("output_" + jobId);
+        return () -> {
+            TransformixBatcher.run(jobId, pts.getPath(), transformPath, output.getPath() + File.separator);
+            return Files.readAllLines(Paths.get(output.getPath(), "outputpoints.txt"), StandardCharsets.UTF_8);
+        };
+    }
+
+    @Test
+    public void requestsSharingATransformAreCoalesced() throws Exception {
+        TransformixBatcher.batchWindowInMs = 500;
+        TransformixBatcher.maxBatchSize = 64;
+        String transform = transform("transform.txt");
+
+        Future<List<String>> first = clients.submit(request(1, transform, "1 2", "3 4"));
+        Future<List<String>> second = clients.submit(request(2, transform, "5 6"));
+        Future<List<String>> third = clients.submit(request(3, transform, "7 8", "9 10", "11 12"));
+
+        List<String> firstLines = first.get(10, TimeUnit.SECONDS);
+        List<String> secondLines = second.get(10, TimeUnit.SECONDS);
+        List<String> thirdLines = third.get(10, TimeUnit.SECONDS);
+
+        assertThat(launches.get()).isEqualTo(1);
+        // Each request gets its own points, numbered as in a request processed alone
+        assertThat(firstLines).hasSize(2);
+        assertThat(firstLines.get(0)).startsWith("Point\t0\t").contains("InputPoint = [ 1.000000 2.000000 ]");
+        assertThat(secondLines).hasSize(1);
+        assertThat(secondLines.get(0)).startsWith("Point\t0\t").contains("InputPoint = [ 5.000000 6.000000 ]");
+        assertThat(thirdLines).hasSize(3);
+        assertThat(thirdLines.get(2)).startsWith("Point\t2\t").contains("InputPoint = [ 11.000000 12.000000 ]");
+    }
+
+    @Test
+    public void requestsWithDifferentTransformsAreNotCoalesced() throws Exception {
+        TransformixBatcher.batchWindowInMs = 200;
+        Future<List<String>> first = clients.submit(request(1, transform("transform_a.txt"), "1 2"));
+        Future<List<String>> second = clients.submit(request(2, transform("transform_b.txt"), "3 4"));
+        assertThat(first.get(10, TimeUnit.SECONDS)).hasSize(1);
+        assertThat(second.get(10, TimeUnit.SECONDS)).hasSize(1);
+        assertThat(launches.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void fullBatchDoesNotWaitForTheWindow() throws Exception {
+        TransformixBatcher.batchWindowInMs = 20000;
+        TransformixBatcher.maxBatchSize = 2;
+        String transform = transform("transform.txt");
+
+        long start = System.nanoTime();
+        Future<List<String>> first = clients.submit(request(1, transform, "1 2"));
+        Future<List<String>> second = clients.submit(request(2, transform, "3 4"));
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(10000);
+        assertThat(launches.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void failingLeaderCompletesAllRequests() throws Exception {
+        TransformixBatcher.batchWindowInMs = 300;
+        failure = new Error("transformix crashed");
+        String transform = transform("transform.txt");
+
+        List<Future<List<String>>> requests = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            requests.add(clients.submit(request(i, transform, "1 2")));
+        }
+        for (Future<List<String>> request : requests) {
+            try {
+                request.get(10, TimeUnit.SECONDS);
+                fail("The request should have failed");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause()).isSameAs(failure);
+            }
+        }
+    }
+
+    @Test
+    public void failedBatchRequestsRunIndividuallyOnTheirOwnThreads() throws Exception {
+        TransformixBatcher.batchWindowInMs = 300;
+        firstLaunchFailure = new IOException("merged transformix call failed");
+        String transform = transform("transform.txt");
+
+        List<Future<List<String>>> requests = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            requests.add(clients.submit(request(i, transform, "1 2")));
+        }
+        for (Future<List<String>> request : requests) {
+            assertThat(request.get(10, TimeUnit.SECONDS)).hasSize(1);
+        }
+
+        // One failed batch, then each request is launched by its own client thread
+        assertThat(launches.get()).isEqualTo(4);
+        assertThat(launchThreads).hasSize(3);
+    }
+}
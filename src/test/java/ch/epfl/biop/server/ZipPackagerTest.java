@@ -0,0 +1,194 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ZipPackagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    int previousParallelThreshold, previousBlockSize, previousNumberOfThreads;
+
+    @Before
+    public void setUp() {
+        previousParallelThreshold = ZipPackager.parallelThresholdInBytes;
+        previousBlockSize = ZipPackager.blockSizeInBytes;
+        previousNumberOfThreads = ZipPackager.numberOfThreads;
+        // Small blocks : the parallel deflate is used with several blocks
+        ZipPackager.parallelThresholdInBytes = 64 * 1024;
+        ZipPackager.blockSizeInBytes = 48 * 1024;
+        ZipPackager.numberOfThreads = 4;
+    }
+
+    @After
+    public void tearDown() {
+        ZipPackager.parallelThresholdInBytes = previousParallelThreshold;
+        ZipPackager.blockSizeInBytes = previousBlockSize;
+        ZipPackager.numberOfThreads = previousNumberOfThreads;
+    }
+
+    /**
+     * @return the files of a job folder by the name of their zip entry : stored and deflated entries, sequential
+     * and parallel deflate, nested folders
+     */
+    Map<String, byte[]> jobFolder(File root) throws IOException {
+        Random random = new Random(42);
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 300 * 1024; i++) {
+            text.append("(TransformParameters ").append(i % 97).append(" 0.").append(random.nextInt(1000)).append(")\n");
+        }
+        byte[] noise = new byte[100 * 1024];
+        random.nextBytes(noise);
+
+        files.put("TransformParameters.0.txt", text.substring(0, 20 * 1024).getBytes(StandardCharsets.UTF_8));
+        files.put("result.0.mhd", text.toString().getBytes(StandardCharsets.UTF_8));
+        files.put("empty.txt", new byte[0]);
+        files.put("tiny.txt", "(Tiny)".getBytes(StandardCharsets.UTF_8));
+        files.put("noise.raw", noise);
+        files.put("preview.png", text.substring(0, 4096).getBytes(StandardCharsets.UTF_8));
+        files.put("sub/nested/IterationInfo.0.R0.txt", text.substring(0, 10 * 1024).getBytes(StandardCharsets.UTF_8));
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            File f = new File(root, file.getKey());
+            Files.createDirectories(f.getParentFile().toPath());
+            Files.write(f.toPath(), file.getValue());
+        }
+        return files;
+    }
+
+    static long crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    void checkRoundTrip(int level) throws Exception {
+        File root = folder.newFolder("job_" + level);
+        Map<String, byte[]> files = jobFolder(root);
+
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        long written = ZipPackager.zip(root, zip, level);
+        assertThat(written).isEqualTo(zip.size());
+
+        Map<String, byte[]> unzipped = new LinkedHashMap<>();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = zis.read(buffer)) > 0) content.write(buffer, 0, n);
+                byte[] bytes = content.toByteArray();
+                // Read from the local header or from the data descriptor, ZipInputStream also checks it
+                assertThat(entry.getCrc()).as(entry.getName()).isEqualTo(crc(bytes));
+                assertThat(entry.getSize()).as(entry.getName()).isEqualTo(bytes.length);
+                unzipped.put(entry.getName(), bytes);
+            }
+        }
+        assertThat(unzipped).containsOnlyKeys(files.keySet().toArray(new String[0]));
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            assertThat(unzipped.get(file.getKey())).as(file.getKey()).isEqualTo(file.getValue());
+        }
+
+        // Central directory
+        File zipFile = folder.newFile("job_" + level + ".zip");
+        Files.write(zipFile.toPath(), zip.toByteArray());
+        try (ZipFile central = new ZipFile(zipFile)) {
+            assertThat(central.size()).isEqualTo(files.size());
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                ZipEntry entry = central.getEntry(file.getKey());
+                assertThat(entry.getCrc()).as(file.getKey()).isEqualTo(crc(file.getValue()));
+                assertThat(entry.getSize()).as(file.getKey()).isEqualTo(file.getValue().length);
+            }
+        }
+    }
+
+    @Test
+    public void deflatedZipIsReadBack() throws Exception {
+        checkRoundTrip(1);
+        checkRoundTrip(9);
+    }
+
+    @Test
+    public void storedZipIsReadBack() throws Exception {
+        checkRoundTrip(0);
+    }
+
+    @Test
+    public void folderOver4GBIsRejectedBeforeWriting() throws Exception {
+        File root = folder.newFolder("large");
+        try (RandomAccessFile sparse = new RandomAccessFile(new File(root, "huge.raw"), "rw")) {
+            sparse.setLength(0x100000000L); // not written : the size is checked before any read
+        }
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+
+        assertThatThrownBy(() -> ZipPackager.zip(root, zip, 1)).isInstanceOf(IOException.class).hasMessageContaining("4 GB");
+        assertThat(zip.size()).isZero();
+    }
+
+    @Test
+    public void tooManyFilesAreRejectedBeforeWriting() throws Exception {
+        File root = folder.newFolder("many");
+        for (int i = 0; i <= ZipPackager.MAX_ENTRIES; i++) {
+            assertThat(new File(root, Integer.toString(i)).createNewFile()).isTrue();
+        }
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+
+        assertThatThrownBy(() -> ZipPackager.zip(root, zip, 1)).isInstanceOf(IOException.class).hasMessageContaining("zip64");
+        assertThat(zip.size()).isZero();
+    }
+}